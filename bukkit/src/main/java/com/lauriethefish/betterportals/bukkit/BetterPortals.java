@@ -13,6 +13,7 @@ import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
+import com.lauriethefish.betterportals.bukkit.tasks.FloodFillExecutor;
 import com.lauriethefish.betterportals.bukkit.tasks.MainUpdate;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
@@ -37,6 +38,7 @@ public class BetterPortals extends JavaPlugin {
     @Inject private IPortalClient portalClient;
     @Inject private MainUpdate mainUpdate;
     @Inject private BlockUpdateFinisher blockUpdateFinisher;
+    @Inject private FloodFillExecutor floodFillExecutor;
     @Inject private IPortalManager portalManager;
     @Inject private IEventRegistrar eventRegistrar;
     @Inject private API apiImplementation;
@@ -72,6 +74,7 @@ public class BetterPortals extends JavaPlugin {
         }
 
         blockUpdateFinisher.start();
+        floodFillExecutor.start();
         mainUpdate.start();
         portalStorage.start();
 
@@ -155,6 +158,7 @@ public class BetterPortals extends JavaPlugin {
         }
 
         blockUpdateFinisher.stop();
+        floodFillExecutor.stop();
 
         try {
             portalStorage.savePortals();
@@ -16,7 +16,7 @@ import com.lauriethefish.betterportals.bukkit.net.NetworkModule;
 import com.lauriethefish.betterportals.bukkit.player.PlayerModule;
 import com.lauriethefish.betterportals.bukkit.portal.PortalModule;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
-import com.lauriethefish.betterportals.bukkit.tasks.ThreadedBlockUpdateFinisher;
+import com.lauriethefish.betterportals.bukkit.tasks.VirtualThreadBlockUpdateFinisher;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
 import com.lauriethefish.betterportals.shared.util.ReflectionUtil;
@@ -47,7 +47,7 @@ public class MainModule extends AbstractModule {
         bind(IBlockRotator.class).to(ModernBlockRotator.class);
         bind(IChunkGenerationChecker.class).to(ModernChunkGenerationChecker.class);
 
-        bind(BlockUpdateFinisher.class).to(ThreadedBlockUpdateFinisher.class);
+        bind(BlockUpdateFinisher.class).to(VirtualThreadBlockUpdateFinisher.class);
 
         install(new EventsModule());
         install(new CommandsModule());
@@ -5,37 +5,55 @@ import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.IntRotationMatrix;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
 import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.FloodFillExecutor;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Abstract viewable block map that is intended to have the update functions perform a flood fill to find which blocks are viewable.
  */
 public abstract class FloodFillBlockMap implements IBlockMap {
+    /**
+     * Set once a block has been pushed onto the flood fill stack, so that it isn't pushed again.
+     */
+    protected static final byte FLAG_QUEUED = 1;
+    /**
+     * Set once a block has been processed by the flood fill and added to the list of reached blocks.
+     */
+    protected static final byte FLAG_VISITED = 2;
+    /**
+     * Set once a block has been added to the viewable states, so that it is never added twice.
+     */
+    protected static final byte FLAG_VIEWABLE = 4;
+
     protected final Logger logger;
     protected final RenderConfig renderConfig;
+    private final FloodFillExecutor floodFillExecutor;
 
-    protected final ConcurrentHashMap<IntVector, PacketContainer> originTileStates = new ConcurrentHashMap<>();
-    protected final ConcurrentHashMap<IntVector, PacketContainer> destTileStates = new ConcurrentHashMap<>();
+    protected final TileStateMap originTileStates = new TileStateMap();
+    protected final TileStateMap destTileStates = new TileStateMap();
 
     protected StateQueue stateQueue;
 
-    protected List<IViewableBlockInfo> nonObscuredStates = new ArrayList<>();
-
-    protected byte[] alreadyReachedMap;
+    // Set while an initial flood fill is running on another thread
+    private Future<List<IViewableBlockInfo>> pendingInitialFill;
 
     protected final IPortal portal;
     protected final Matrix rotateOriginToDest;
+    protected final IntRotationMatrix intRotateOriginToDest;
     protected final IntVector portalOriginPos;
     protected final IntVector portalDestPos;
 
@@ -43,12 +61,17 @@ public abstract class FloodFillBlockMap implements IBlockMap {
     protected final PortalDirection destDirection;
     protected boolean firstUpdate;
 
-    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig) {
+    private int currentTick;
+    private int lastFullCheckTick;
+
+    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig, FloodFillExecutor floodFillExecutor) {
         this.portal = portal;
         this.logger = logger;
         this.renderConfig = renderConfig;
+        this.floodFillExecutor = floodFillExecutor;
         this.centerPos = new IntVector(portal.getOriginPos().getVector());
         this.rotateOriginToDest = portal.getTransformations().getRotateToDestination();
+        this.intRotateOriginToDest = new IntRotationMatrix(rotateOriginToDest);
         this.destDirection = portal.getDestPos().getDirection();
         this.portalOriginPos = new IntVector(portal.getOriginPos().getVector());
         this.portalDestPos = roundBasedOnDirection(portal);
@@ -67,29 +90,88 @@ public abstract class FloodFillBlockMap implements IBlockMap {
     }
 
     protected boolean isInLine(IntVector relPos) {
-        return destDirection.swapVector(relPos).getZ() == 0;
+        return isInLine(relPos.getX(), relPos.getY(), relPos.getZ());
+    }
+
+    /**
+     * Equivalent to {@link FloodFillBlockMap#isInLine(IntVector)}, but without allocating a vector.
+     * @param relX X coordinate relative to the destination of the portal
+     * @param relY Y coordinate relative to the destination of the portal
+     * @param relZ Z coordinate relative to the destination of the portal
+     * @return Whether the position is in line with the portal window
+     */
+    protected boolean isInLine(int relX, int relY, int relZ) {
+        switch(destDirection) {
+            case EAST:
+            case WEST:
+                return relX == 0;
+            case UP:
+            case DOWN:
+                return relY == 0;
+            default:
+                return relZ == 0;
+        }
     }
 
     protected final int getArrayMapIndex(IntVector relPos) {
-        return ((relPos.getX() + (int) renderConfig.getMaxXZ()) + (relPos.getZ() + (int) renderConfig.getMaxXZ()) * renderConfig.getZMultip() + (relPos.getY() + (int) renderConfig.getMaxY()) * renderConfig.getYMultip());
+        return getArrayMapIndex(relPos.getX(), relPos.getY(), relPos.getZ());
+    }
+
+    protected final int getArrayMapIndex(int relX, int relY, int relZ) {
+        return ((relX + (int) renderConfig.getMaxXZ()) + (relZ + (int) renderConfig.getMaxXZ()) * renderConfig.getZMultip() + (relY + (int) renderConfig.getMaxY()) * renderConfig.getYMultip());
     }
 
     /**
-     * Starts a flood fill from <code>start</code> out to the edges of the viewed portal area.
-     * The fill stops when it reaches occluding blocks, as we don't need to render other blocks behind these.
-     * The origin data is also fetched, and this is placed in the viewable states
-     * @param originPos Start position of the flood fill, at the origin (non-relative)
-     * @param statesOutput List to place the new viewable states within
-     * @param firstBlockInfo Optional, used instead of adding a new block to the map for the first block. Useful for incremental updates
+     * @param index Index in the block array
+     * @return The X coordinate of the block at <code>index</code>, relative to the origin of the portal
      */
-    protected abstract void searchFromBlock(IntVector originPos, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo);
+    protected final int getRelX(int index) {
+        return (index % renderConfig.getZMultip()) - (int) renderConfig.getMaxXZ();
+    }
+
+    /**
+     * @param index Index in the block array
+     * @return The Y coordinate of the block at <code>index</code>, relative to the origin of the portal
+     */
+    protected final int getRelY(int index) {
+        return Math.floorDiv(index, renderConfig.getYMultip()) - (int) renderConfig.getMaxY();
+    }
+
+    /**
+     * @param index Index in the block array
+     * @return The Z coordinate of the block at <code>index</code>, relative to the origin of the portal
+     */
+    protected final int getRelZ(int index) {
+        int y = Math.floorDiv(index, renderConfig.getYMultip());
+        return Math.floorDiv(index - y * renderConfig.getYMultip(), renderConfig.getZMultip()) - (int) renderConfig.getMaxXZ();
+    }
+
+    /**
+     * Creates a task which performs the first flood fill from the center of the portal out to the edges of the viewed portal area.
+     * This is called on the main thread, but the task may be run on a flood fill thread if asynchronous initial updates are enabled.
+     * The task must therefore only read blocks from snapshots, and must not write to any state that is replaced by {@link IBlockMap#reset()}.
+     * @return The task, which returns the initially viewable states
+     */
+    protected abstract Callable<List<IViewableBlockInfo>> createInitialFill();
+
+    /**
+     * Called on the main thread after the initial flood fill has finished, but before its states are made viewable.
+     * Used for anything that requires the Bukkit API, like fetching tile entity data.
+     */
+    protected abstract void finishInitialFill();
+
+    /**
+     * @return The number of blocks reached by the flood fill so far
+     */
+    protected abstract int getReachedBlockCount();
 
     /**
      * Checks the origin and destination blocks for changes.
-     * At the origin, we only need to check the actually viewable blocks, since there is no need to re-flood-fill.
-     * At the destination, we must check all blocks that were reached by the flood-fill, then do a re-flood-fill for any that have changed to add blocks in a newly revealed cavern, for instance.
+     * Usually only blocks that have been reported as changed are checked, then a re-flood-fill is done from any that have changed at the destination to add blocks in a newly revealed cavern, for instance.
+     * Not every change fires an event, so every reached block is checked every {@link RenderConfig#getFullBlockCheckInterval()} ticks.
+     * @param fullCheck Whether to check every block reached by the flood fill, instead of just the changed ones
      */
-    protected abstract void checkForChanges();
+    protected abstract void checkForChanges(boolean fullCheck);
 
     protected final WrappedBlockData getBackgroundData() {
         return renderConfig.findBackgroundData(portal.getDestPos());
@@ -97,42 +179,108 @@ public abstract class FloodFillBlockMap implements IBlockMap {
 
     @Override
     public void update(int ticksSinceActivated) {
+        // The asynchronous initial fill is checked every tick so that the states are viewable as soon as possible
+        if(pendingInitialFill != null) {
+            if(pendingInitialFill.isDone()) {
+                publishAsyncInitialFill();
+            }
+            return;
+        }
+
         if(ticksSinceActivated % renderConfig.getBlockUpdateInterval() != 0) {return;}
 
+        currentTick = ticksSinceActivated;
         updateInternal();
     }
 
-    protected void updateInternal() {
-        if(alreadyReachedMap == null) {
-            alreadyReachedMap = new byte[renderConfig.getTotalArrayLength()];
-        }
+    /**
+     * @return Whether an initial flood fill is currently running on another thread
+     */
+    protected boolean isInitialFillPending() {
+        return pendingInitialFill != null;
+    }
+
+    /**
+     * @return Whether the next change check should check every reached block
+     */
+    protected boolean isFullCheckDue() {
+        return currentTick - lastFullCheckTick >= renderConfig.getFullBlockCheckInterval();
+    }
 
+    protected void updateInternal() {
         OperationTimer timer = new OperationTimer();
         if(firstUpdate) {
-            List<IViewableBlockInfo> initialStates = new ArrayList<>();
-            searchFromBlock(centerPos, initialStates, null);
-            stateQueue.addStatesInitially(initialStates);
+            Callable<List<IViewableBlockInfo>> initialFill = createInitialFill();
+            if(renderConfig.isAsyncInitialUpdate()) {
+                logger.finer("Starting asynchronous initial flood fill");
+                pendingInitialFill = floodFillExecutor.submit(initialFill);
+                return;
+            }
+
+            try {
+                publishInitialStates(initialFill.call());
+            }   catch(Exception ex) {
+                throw new RuntimeException(ex);
+            }
         }   else    {
-            checkForChanges();
+            boolean fullCheck = isFullCheckDue();
+            if(fullCheck) {
+                lastFullCheckTick = currentTick;
+            }
+            checkForChanges(fullCheck);
+            publishTileStates();
         }
+        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), getReachedBlockCount(), stateQueue.stateCount());
+    }
+
+    private void publishInitialStates(List<IViewableBlockInfo> initialStates) {
+        finishInitialFill();
+        publishTileStates();
+        stateQueue.addStatesInitially(initialStates);
         firstUpdate = false;
-        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), stateQueue.stateCount());
+        lastFullCheckTick = currentTick;
+    }
+
+    private void publishTileStates() {
+        originTileStates.publish();
+        destTileStates.publish();
+    }
+
+    private void publishAsyncInitialFill() {
+        Future<List<IViewableBlockInfo>> initialFill = pendingInitialFill;
+        pendingInitialFill = null;
+
+        try {
+            publishInitialStates(initialFill.get());
+            logger.fine("Asynchronous initial flood fill finished. Block count: %d. Viewable count: %d", getReachedBlockCount(), stateQueue.stateCount());
+        }   catch(ExecutionException ex) {
+            logger.warning("Asynchronous flood fill for portal failed, retrying next update");
+            ex.getCause().printStackTrace();
+            reset();
+        }   catch(InterruptedException | CancellationException ex) {
+            logger.fine("Asynchronous flood fill was interrupted, retrying next update");
+            reset();
+        }
     }
 
     @Override
     public void reset() {
         logger.finer("Clearing block array to save memory");
 
+        // Discard any initial fill still running, since it is for the previous activation of the portal
+        if(pendingInitialFill != null) {
+            pendingInitialFill.cancel(false);
+            pendingInitialFill = null;
+        }
+
         stateQueue = new StateQueue(logger);
-        nonObscuredStates = new ArrayList<>();
         originTileStates.clear();
         destTileStates.clear();
         firstUpdate = true;
-        alreadyReachedMap = null;
     }
 
     @Override
-    public List<IViewableBlockInfo> getViewableStates() {
+    public StateQueue.Snapshot getViewableStates() {
         if(stateQueue == null) {
             return null;
         }
@@ -140,6 +288,16 @@ public abstract class FloodFillBlockMap implements IBlockMap {
         return stateQueue.getViewableStates();
     }
 
+    @Override
+    public long getViewableStatesVersion() {
+        return stateQueue.getVersion();
+    }
+
+    @Override
+    public boolean hasTileEntities() {
+        return !(originTileStates.isEmpty() && destTileStates.isEmpty());
+    }
+
     @Override
     public @Nullable PacketContainer getOriginTileEntityPacket(@NotNull IntVector position) {
         return originTileStates.get(position);
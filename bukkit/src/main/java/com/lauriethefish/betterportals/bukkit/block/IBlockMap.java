@@ -7,8 +7,6 @@ import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
-
 /**
  * Creates a map of the blocks around the portal within the view distance.
  * Implements skipping of blocks that are fully covered by opaque blocks.
@@ -26,9 +24,21 @@ public interface IBlockMap {
      * Gets the current list of viewable positions.
      * @return The current list of viewable positions and their data, or null if no list is currently available
      */
-    @Nullable List<IViewableBlockInfo> getViewableStates();
+    @Nullable StateQueue.Snapshot getViewableStates();
+
+    /**
+     * Can be called from any thread. Read this before {@link IBlockMap#getViewableStates()}, then if the version is the same next time, the states haven't changed.
+     * @return A version number which increases whenever the viewable states change, including when the block map is reset
+     */
+    long getViewableStatesVersion();
 
 
+    /**
+     * Used to skip looking up the tile entity packets of every block when there are none.
+     * @return Whether any origin or destination tile entities are currently mapped
+     */
+    boolean hasTileEntities();
+
     /**
      * Finds if the origin block stored at <code>position</code> is mapped as a tile entity.
      * If it is, the pre-fetched (on the main thread) packet used to set the data of this entity is returned.
@@ -1,7 +1,9 @@
 package com.lauriethefish.betterportals.bukkit.block;
 
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
@@ -31,8 +33,30 @@ public interface IMultiBlockChangeManager {
     void addChange(Vector position, WrappedBlockData newData);
 
     /**
-     * Sends all queued changes.
-     * Does <i>not</i> clear changes.
+     * Adds a tile entity update packet, which is sent after the block changes.
+     * If another update is added at the same position, only the latest is sent.
+     * @param position Position of the tile entity
+     * @param packet Packet to set the data of the tile entity
+     */
+    void addTileEntityUpdate(IntVector position, PacketContainer packet);
+
+    /**
+     * Sets the position that the changes are viewed from, so that the changes closest to it can be sent first.
+     * If this isn't called, changes are sent in no particular order.
+     * @param position Position of the player's eyes
+     */
+    void setViewerPosition(Vector position);
+
+    /**
+     * Sets the plane of the portal that the changes are viewed through. Changes close to it may be sent before others.
+     * @param center Center of the portal
+     * @param normal Normal of the portal plane
+     */
+    void setPortalPlane(Vector center, Vector normal);
+
+    /**
+     * Sends all queued changes. If a per-tick limit is configured, some changes may be sent in later ticks.
+     * The manager must not be used afterwards, since the buffers holding its changes may be reused by other managers.
      */
     void sendChanges();
 
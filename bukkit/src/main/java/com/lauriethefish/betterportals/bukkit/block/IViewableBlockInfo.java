@@ -7,4 +7,10 @@ import com.lauriethefish.betterportals.api.IntVector;
  */
 public interface IViewableBlockInfo {
     IntVector getOriginPos();
+
+    /**
+     * Used as a compact key for the block, e.g. to track which blocks each player has been sent.
+     * @return The index of the block in the array of the block map that created it. See {@link FloodFillBlockMap#getArrayMapIndex(int, int, int)}
+     */
+    int getArrayIndex();
 }
@@ -0,0 +1,301 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.SectionPosition;
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Groups block changes by chunk section into reusable arrays, ready to be written to multi block change packets.
+ * Builders are intended to be pooled, so sections are kept after {@link MultiBlockChangeBuilder#clear()} and reused by the next changes.
+ * This is not thread safe.
+ * @param <D> Type of the block data of each change
+ */
+public class MultiBlockChangeBuilder<D> {
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+    // Most sections only have a few changes, so the arrays of changes start small and grow when needed
+    private static final int INITIAL_SECTION_CAPACITY = 64;
+    // Builders are kept in a pool even after every portal has closed, so only a few spare sections are kept, each with arrays of the initial capacity
+    private static final int MAX_UNUSED_SECTIONS = 8;
+
+    /**
+     * Receives the changes of one packet.
+     * The arrays are reused after the builder is cleared, so must be copied if they are kept.
+     * @param <D> Type of the block data of each change
+     */
+    @FunctionalInterface
+    public interface PacketWriter<D> {
+        void write(int sectionX, int sectionY, int sectionZ, short[] positions, D[] data, int offset, int count);
+    }
+
+    /**
+     * Finds the priority of a section when sorting. Sections with a lower priority value are written first.
+     */
+    @FunctionalInterface
+    public interface SectionPriority {
+        double get(int sectionX, int sectionY, int sectionZ);
+    }
+
+    private class Section {
+        private int sectionX;
+        private int sectionY;
+        private int sectionZ;
+        private double sortPriority;
+
+        // Positions in the format used by the packet: x << 8 | z << 4 | y
+        private short[] positions = new short[INITIAL_SECTION_CAPACITY];
+        private D[] data = arrayFactory.apply(INITIAL_SECTION_CAPACITY);
+        // One more than the index of the change at each position in the section, or zero if it hasn't been changed
+        private final short[] changeIndices = new short[SECTION_VOLUME];
+        private int count = 0;
+
+        private void add(short position, D newData) {
+            int existing = changeIndices[position];
+            // Later changes to the same block replace earlier ones
+            if(existing != 0) {
+                data[existing - 1] = newData;
+                return;
+            }
+
+            if(count == positions.length) {
+                int newCapacity = Math.min(SECTION_VOLUME, positions.length * 2);
+                positions = Arrays.copyOf(positions, newCapacity);
+                data = Arrays.copyOf(data, newCapacity);
+            }
+
+            positions[count] = position;
+            data[count] = newData;
+            count++;
+            changeIndices[position] = (short) count;
+        }
+
+        private void clear() {
+            for(int i = 0; i < count; i++) {
+                changeIndices[positions[i]] = 0;
+                data[i] = null;
+            }
+            count = 0;
+        }
+
+        // Drops the larger arrays of a busy section, so that spare sections don't keep them while the builder is pooled
+        private void shrink() {
+            if(positions.length > INITIAL_SECTION_CAPACITY) {
+                positions = new short[INITIAL_SECTION_CAPACITY];
+                data = arrayFactory.apply(INITIAL_SECTION_CAPACITY);
+            }
+        }
+
+        // Removes the first removeCount changes, moving the rest to the start of the arrays
+        private void removeFirst(int removeCount) {
+            for(int i = 0; i < removeCount; i++) {
+                changeIndices[positions[i]] = 0;
+            }
+
+            int remaining = count - removeCount;
+            System.arraycopy(positions, removeCount, positions, 0, remaining);
+            System.arraycopy(data, removeCount, data, 0, remaining);
+            for(int i = 0; i < remaining; i++) {
+                changeIndices[positions[i]] = (short) (i + 1);
+            }
+            for(int i = remaining; i < count; i++) {
+                data[i] = null;
+            }
+            count = remaining;
+        }
+    }
+
+    private final IntFunction<D[]> arrayFactory;
+
+    private final LongObjectMap<Section> sectionsByPosition = new LongObjectMap<>();
+    private final List<Section> sections = new ArrayList<>();
+    private final List<Section> unusedSections = new ArrayList<>();
+
+    // Avoid looking up the section again for consecutive changes in the same section, which is common since changes are made in brick order
+    private long lastSectionPosition;
+    private Section lastSection;
+
+    /**
+     * @param arrayFactory Used to create the arrays of block data, since generic arrays can't be created directly
+     */
+    public MultiBlockChangeBuilder(IntFunction<D[]> arrayFactory) {
+        this.arrayFactory = arrayFactory;
+    }
+
+    /**
+     * Adds a change, replacing any existing change at the same position.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @param newData The new data of the block
+     */
+    public void addChange(int x, int y, int z, D newData) {
+        getOrCreateSection(x >> 4, y >> 4, z >> 4).add((short) ((x & 0xF) << 8 | (z & 0xF) << 4 | (y & 0xF)), newData);
+    }
+
+    /**
+     * Adds the changes of a packet written by another builder, replacing any existing changes at the same positions.
+     * The arguments match those of {@link PacketWriter#write(int, int, int, short[], Object[], int, int)}, so a builder can be used as a writer for another builder.
+     * @param sectionX X coordinate of the section
+     * @param sectionY Y coordinate of the section
+     * @param sectionZ Z coordinate of the section
+     * @param positions Positions of the changes within the section
+     * @param data New data of each change
+     * @param offset Index of the first change to add
+     * @param count Number of changes to add
+     */
+    public void addChanges(int sectionX, int sectionY, int sectionZ, short[] positions, D[] data, int offset, int count) {
+        Section section = getOrCreateSection(sectionX, sectionY, sectionZ);
+        for(int i = offset; i < offset + count; i++) {
+            section.add(positions[i], data[i]);
+        }
+    }
+
+    private Section getOrCreateSection(int sectionX, int sectionY, int sectionZ) {
+        long sectionPosition = SectionPosition.pack(sectionX, sectionY, sectionZ);
+        if(lastSection != null && sectionPosition == lastSectionPosition) {
+            return lastSection;
+        }
+
+        Section section = sectionsByPosition.get(sectionPosition);
+        if(section == null) {
+            section = createSection(sectionX, sectionY, sectionZ);
+            sectionsByPosition.put(sectionPosition, section);
+        }
+        lastSection = section;
+        lastSectionPosition = sectionPosition;
+        return section;
+    }
+
+    private Section createSection(int sectionX, int sectionY, int sectionZ) {
+        Section section = unusedSections.isEmpty() ? new Section() : unusedSections.remove(unusedSections.size() - 1);
+        section.sectionX = sectionX;
+        section.sectionY = sectionY;
+        section.sectionZ = sectionZ;
+        sections.add(section);
+        return section;
+    }
+
+    /**
+     * @return The number of sections with changes
+     */
+    public int getSectionCount() {
+        return sections.size();
+    }
+
+    /**
+     * @return Whether there are no changes
+     */
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    /**
+     * @return The total number of changes, across all sections
+     */
+    public int getChangeCount() {
+        int result = 0;
+        for(Section section : sections) {
+            result += section.count;
+        }
+        return result;
+    }
+
+    /**
+     * Sorts the sections so that those with their center closest to the given position are written first.
+     * @param x X coordinate of the position
+     * @param y Y coordinate of the position
+     * @param z Z coordinate of the position
+     */
+    public void sortByDistance(double x, double y, double z) {
+        sortByPriority((sectionX, sectionY, sectionZ) -> {
+            double relX = sectionX * 16 + 8 - x;
+            double relY = sectionY * 16 + 8 - y;
+            double relZ = sectionZ * 16 + 8 - z;
+            return relX * relX + relY * relY + relZ * relZ;
+        });
+    }
+
+    /**
+     * Sorts the sections so that those with the lowest priority value are written first.
+     * @param priority Finds the priority of each section
+     */
+    public void sortByPriority(SectionPriority priority) {
+        for(Section section : sections) {
+            section.sortPriority = priority.get(section.sectionX, section.sectionY, section.sectionZ);
+        }
+
+        sections.sort(Comparator.comparingDouble(section -> section.sortPriority));
+    }
+
+    /**
+     * Writes the changes of each section, split into packets of at most <code>maxChangesPerPacket</code> changes.
+     * @param maxChangesPerPacket Maximum number of changes in each packet
+     * @param writer Receives each packet
+     */
+    public void writePackets(int maxChangesPerPacket, PacketWriter<D> writer) {
+        if(maxChangesPerPacket <= 0) {
+            throw new IllegalArgumentException("Must allow at least one change per packet");
+        }
+
+        for(Section section : sections) {
+            for(int offset = 0; offset < section.count; offset += maxChangesPerPacket) {
+                int count = Math.min(maxChangesPerPacket, section.count - offset);
+                writer.write(section.sectionX, section.sectionY, section.sectionZ, section.positions, section.data, offset, count);
+            }
+        }
+    }
+
+    /**
+     * Writes a single packet of changes from the first section, then removes the written changes.
+     * Used to send the changes gradually, in order of the sections.
+     * @param maxChanges Maximum number of changes to write
+     * @param writer Receives the packet
+     * @return The number of changes written, or zero if there are no changes
+     */
+    public int writeFirstPacket(int maxChanges, PacketWriter<D> writer) {
+        if(sections.isEmpty()) {return 0;}
+        if(maxChanges <= 0) {
+            throw new IllegalArgumentException("Must allow at least one change per packet");
+        }
+
+        Section section = sections.get(0);
+        int count = Math.min(maxChanges, section.count);
+        writer.write(section.sectionX, section.sectionY, section.sectionZ, section.positions, section.data, 0, count);
+
+        if(count == section.count) {
+            section.clear();
+            sections.remove(0);
+            sectionsByPosition.remove(SectionPosition.pack(section.sectionX, section.sectionY, section.sectionZ));
+            if(section == lastSection) {
+                lastSection = null;
+            }
+            if(unusedSections.size() < MAX_UNUSED_SECTIONS) {
+                section.shrink();
+                unusedSections.add(section);
+            }
+        }   else    {
+            section.removeFirst(count);
+        }
+        return count;
+    }
+
+    /**
+     * Removes all changes, keeping the sections to be reused.
+     */
+    public void clear() {
+        for(Section section : sections) {
+            section.clear();
+            if(unusedSections.size() < MAX_UNUSED_SECTIONS) {
+                section.shrink();
+                unusedSections.add(section);
+            }
+        }
+        sections.clear();
+        sectionsByPosition.clear();
+        lastSection = null;
+    }
+}
@@ -0,0 +1,118 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.util.BlockPositionUtil;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups a list of viewable states into 4x4x4 bricks of blocks.
+ * This allows block views to check each brick against the view through the portal, then only check the individual blocks of bricks that are partially visible.
+ * Immutable once created, so it can be shared between threads.
+ */
+public class StateBricks {
+    public static final int BRICK_SHIFT = 2;
+    public static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+
+    @Getter private final int brickCount;
+
+    // Minimum block coordinates of each brick
+    private final int[] brickX;
+    private final int[] brickY;
+    private final int[] brickZ;
+
+    // The indices of the states in brick i are in stateIndices, from brickStart[i] until brickStart[i + 1]
+    private final int[] brickStart;
+    private final int[] stateIndices;
+
+    /**
+     * Groups <code>states</code> into bricks.
+     * @param states The states to group
+     */
+    public StateBricks(List<IViewableBlockInfo> states) {
+        LongObjectMap<IntList> bricksByPosition = new LongObjectMap<>();
+        List<IntList> bricks = new ArrayList<>();
+        IntList positions = new IntList();
+
+        for(int i = 0; i < states.size(); i++) {
+            IntVector position = states.get(i).getOriginPos();
+            int x = position.getX() >> BRICK_SHIFT;
+            int y = position.getY() >> BRICK_SHIFT;
+            int z = position.getZ() >> BRICK_SHIFT;
+
+            long key = BlockPositionUtil.pack(x, y, z);
+            IntList brick = bricksByPosition.get(key);
+            if(brick == null) {
+                brick = new IntList(8);
+                bricksByPosition.put(key, brick);
+                bricks.add(brick);
+                positions.add(x);
+                positions.add(y);
+                positions.add(z);
+            }
+            brick.add(i);
+        }
+
+        brickCount = bricks.size();
+        brickX = new int[brickCount];
+        brickY = new int[brickCount];
+        brickZ = new int[brickCount];
+        brickStart = new int[brickCount + 1];
+        stateIndices = new int[states.size()];
+
+        int next = 0;
+        for(int i = 0; i < brickCount; i++) {
+            brickX[i] = positions.get(i * 3) << BRICK_SHIFT;
+            brickY[i] = positions.get(i * 3 + 1) << BRICK_SHIFT;
+            brickZ[i] = positions.get(i * 3 + 2) << BRICK_SHIFT;
+
+            brickStart[i] = next;
+            IntList brick = bricks.get(i);
+            for(int j = 0; j < brick.size(); j++) {
+                stateIndices[next] = brick.get(j);
+                next++;
+            }
+        }
+        brickStart[brickCount] = next;
+    }
+
+    public int getBrickX(int brick) {
+        return brickX[brick];
+    }
+
+    public int getBrickY(int brick) {
+        return brickY[brick];
+    }
+
+    public int getBrickZ(int brick) {
+        return brickZ[brick];
+    }
+
+    /**
+     * @param brick Index of the brick
+     * @return The position in {@link StateBricks#getStateIndex(int)} of the brick's first state
+     */
+    public int getBrickStart(int brick) {
+        return brickStart[brick];
+    }
+
+    /**
+     * @param brick Index of the brick
+     * @return The position in {@link StateBricks#getStateIndex(int)} after the brick's last state
+     */
+    public int getBrickEnd(int brick) {
+        return brickStart[brick + 1];
+    }
+
+    /**
+     * @param position Position between {@link StateBricks#getBrickStart(int)} and {@link StateBricks#getBrickEnd(int)} of a brick
+     * @return Index of the state in the state list
+     */
+    public int getStateIndex(int position) {
+        return stateIndices[position];
+    }
+}
@@ -2,47 +2,103 @@ package com.lauriethefish.betterportals.bukkit.block;
 
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
-import java.util.Collections;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Represents a queue of viewable block states
+ * Represents a queue of viewable block states.
+ * States are only ever added, by one thread at a time (the main thread), and can be read from any thread without locking.
+ * They are stored in fixed size chunks, so existing states never need to be copied when more are added.
+ * After each addition, a new {@link Snapshot} containing the new length is published, so readers always see a consistent list.
  */
 public class StateQueue {
-    private List<IViewableBlockInfo> viewableStates = null;
-    private int size = 0;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Shared between every queue, so that a new queue after a reset never reuses the version of an old one
+    private static final AtomicLong versionCounter = new AtomicLong();
 
-    private final LinkedBlockingQueue<List<IViewableBlockInfo>> newStateQueue = new LinkedBlockingQueue<>();
+    private IViewableBlockInfo[][] chunks = new IViewableBlockInfo[4][];
+    private int size = 0;
 
-    private volatile boolean hasFinishedInit = false;
+    private volatile Snapshot published;
+    private boolean hasFinishedInit = false;
 
     private final Logger logger;
 
-    public StateQueue(Logger logger) {
-        this.logger = logger;
-    }
+    /**
+     * An unmodifiable view of the states in the queue at the time it was published.
+     * States added later are not visible in this list.
+     */
+    public static class Snapshot extends AbstractList<IViewableBlockInfo> implements RandomAccess {
+        private final IViewableBlockInfo[][] chunks;
+        private final int size;
+        private final long version;
+        // Created the first time it is needed, since not every snapshot is read
+        private volatile StateBricks bricks;
+
+        private Snapshot(IViewableBlockInfo[][] chunks, int size, long version) {
+            this.chunks = chunks;
+            this.size = size;
+            this.version = version;
+        }
 
-    public List<IViewableBlockInfo> getViewableStates() {
-        // If the initial states haven't yet been added, then we return an empty list
-        if(!hasFinishedInit) {
-            logger.fine("Init not finished");
-            return Collections.emptyList();
+        @Override
+        public IViewableBlockInfo get(int index) {
+            if(index < 0 || index >= size) {throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);}
+
+            return chunks[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The version of the queue when this was published. Later snapshots always have a higher version
+         */
+        public long getVersion() {
+            return version;
         }
 
-        // Take all the newly queued states and add them to the viewable states list
-        while(!newStateQueue.isEmpty()) {
-            logger.fine("Adding queued states");
-            try {
-                List<IViewableBlockInfo> newStates = newStateQueue.take();
-                size += newStates.size();
-                viewableStates.addAll(newStates);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
+        /**
+         * Can be called from any thread. If multiple threads call this at once, each may group the states, but they'll get equivalent results.
+         * @return The states in this snapshot grouped into bricks
+         */
+        public StateBricks getBricks() {
+            StateBricks result = bricks;
+            if(result == null) {
+                result = new StateBricks(this);
+                bricks = result;
             }
+            return result;
         }
+    }
 
-        return viewableStates;
+    public StateQueue(Logger logger) {
+        this.logger = logger;
+        this.published = new Snapshot(chunks, 0, versionCounter.incrementAndGet());
+    }
+
+    /**
+     * Can be called from any thread.
+     * @return The states published so far, or an empty list if the initial states haven't been added yet
+     */
+    public Snapshot getViewableStates() {
+        return published;
+    }
+
+    /**
+     * Can be called from any thread.
+     * @return The version of the current states. This changes whenever states are added
+     */
+    public long getVersion() {
+        return published.getVersion();
     }
 
     public void addStatesInitially(List<IViewableBlockInfo> blockInfoList) {
@@ -50,14 +106,41 @@ public class StateQueue {
             throw new IllegalStateException("Cannot add initial states multiple times");
         }
 
-        viewableStates = blockInfoList;
-        size = blockInfoList.size();
+        append(blockInfoList);
         hasFinishedInit = true;
+        publish();
     }
 
     public void enqueueStates(List<IViewableBlockInfo> blockInfoList) {
         logger.fine("Enqueueing states");
-        newStateQueue.add(blockInfoList);
+        append(blockInfoList);
+
+        // States added before the initial states are published with them
+        if(hasFinishedInit) {
+            publish();
+        }
+    }
+
+    private void append(List<IViewableBlockInfo> blockInfoList) {
+        for(IViewableBlockInfo blockInfo : blockInfoList) {
+            int chunkIndex = size >> CHUNK_SHIFT;
+            if(chunkIndex == chunks.length) {
+                // Only the array of chunks is copied. Published snapshots keep the old array, which still contains every chunk they can read
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            if(chunks[chunkIndex] == null) {
+                chunks[chunkIndex] = new IViewableBlockInfo[CHUNK_SIZE];
+            }
+
+            // Slots past the published size are never read, so this is safe to write while other threads are reading
+            chunks[chunkIndex][size & CHUNK_MASK] = blockInfo;
+            size++;
+        }
+    }
+
+    private void publish() {
+        // The volatile write makes the states written above visible to any thread reading the new snapshot
+        published = new Snapshot(chunks, size, versionCounter.incrementAndGet());
     }
 
     public int stateCount() {
@@ -0,0 +1,84 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.events.PacketContainer;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.util.BlockPositionUtil;
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the packets used to send the data of the tile entities in a block map, keyed by their packed origin position.
+ * The map is modified on the main thread, but read by block view updates on other threads.
+ * Instead of locking, a copy is published for readers after each block map update that changed it. Portals rarely contain many tile entities, so copying is cheap.
+ */
+public class TileStateMap {
+    private static final LongObjectMap<PacketContainer> EMPTY = new LongObjectMap<>(2);
+
+    private final LongObjectMap<PacketContainer> states = new LongObjectMap<>();
+    private volatile LongObjectMap<PacketContainer> published = EMPTY;
+    private boolean modified = false;
+
+    /**
+     * Sets the packet for the tile entity at the given origin position. Must be called on the main thread.
+     * @param x X coordinate of the tile entity
+     * @param y Y coordinate of the tile entity
+     * @param z Z coordinate of the tile entity
+     * @param packet The packet used to send the tile entity's data
+     */
+    public void put(int x, int y, int z, @NotNull PacketContainer packet) {
+        states.put(BlockPositionUtil.pack(x, y, z), packet);
+        modified = true;
+    }
+
+    /**
+     * Removes any tile entity at the given origin position. Must be called on the main thread.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     */
+    public void remove(int x, int y, int z) {
+        if(states.remove(BlockPositionUtil.pack(x, y, z))) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Makes the changes since the last call visible to {@link TileStateMap#get(IntVector)}. Must be called on the main thread.
+     */
+    public void publish() {
+        if(!modified) {return;}
+
+        published = states.isEmpty() ? EMPTY : states.copy();
+        modified = false;
+    }
+
+    /**
+     * Removes every tile entity, including from the published map. Must be called on the main thread.
+     */
+    public void clear() {
+        states.clear();
+        published = EMPTY;
+        modified = false;
+    }
+
+    /**
+     * Can be called from any thread.
+     * @param position Origin position of the tile entity
+     * @return The last published packet for the tile entity, or null if there is none
+     */
+    public @Nullable PacketContainer get(@NotNull IntVector position) {
+        LongObjectMap<PacketContainer> current = published;
+        if(current.isEmpty()) {return null;}
+
+        return current.get(BlockPositionUtil.pack(position.getX(), position.getY(), position.getZ()));
+    }
+
+    /**
+     * Can be called from any thread.
+     * @return Whether the last published map contains any tile entities
+     */
+    public boolean isEmpty() {
+        return published.isEmpty();
+    }
+}
@@ -0,0 +1,223 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.MultiBlockChangeBuilder;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of bytes of block changes sent to each player per tick, so that activating a portal doesn't send thousands of changes in one burst.
+ * Changes that don't fit in a tick are carried over to later ticks. If a block changes again before it is sent, only its final state is sent.
+ * The sections nearest to the player's eyes and the portal plane are sent first, since they are the most noticeable.
+ * Queued changes are only valid in the world they were made for, so they are dropped if the player changes world before they are sent.
+ */
+@Singleton
+public class BlockPacketScheduler {
+    // Estimated size of a tile entity update packet, since the size of the NBT isn't known without serializing it
+    private static final int TILE_ENTITY_UPDATE_BYTES = 128;
+
+    private static class PlayerQueue {
+        private final Player player;
+        // World that the queued changes are for
+        private UUID worldId;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final MultiBlockChangeBuilder<WrappedBlockData> changes = new MultiBlockChangeBuilder<>(WrappedBlockData[]::new);
+        // Sent once all block changes have been sent, since the client ignores tile entity data for blocks that aren't tile entities yet
+        private final Map<IntVector, PacketContainer> tileEntityUpdates = new LinkedHashMap<>();
+
+        private Vector viewerPosition;
+        private Vector planeCenter;
+        private Vector planeNormal;
+
+        // Set once removed from the map of queues, so that changes are never added to a queue that won't be sent
+        private boolean removed = false;
+
+        private PlayerQueue(Player player, UUID worldId) {
+            this.player = player;
+            this.worldId = worldId;
+        }
+
+        private void clear() {
+            changes.clear();
+            tileEntityUpdates.clear();
+        }
+
+        private double getPriority(int sectionX, int sectionY, int sectionZ) {
+            double centerX = sectionX * 16 + 8;
+            double centerY = sectionY * 16 + 8;
+            double centerZ = sectionZ * 16 + 8;
+
+            double priority = 0.0;
+            if(viewerPosition != null) {
+                double relX = centerX - viewerPosition.getX();
+                double relY = centerY - viewerPosition.getY();
+                double relZ = centerZ - viewerPosition.getZ();
+                priority += relX * relX + relY * relY + relZ * relZ;
+            }
+
+            if(planeCenter != null) {
+                double planeDistance = (centerX - planeCenter.getX()) * planeNormal.getX()
+                        + (centerY - planeCenter.getY()) * planeNormal.getY()
+                        + (centerZ - planeCenter.getZ()) * planeNormal.getZ();
+                priority += planeDistance * planeDistance;
+            }
+            return priority;
+        }
+    }
+
+    private final RenderConfig renderConfig;
+
+    private final ConcurrentMap<UUID, PlayerQueue> queues = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlockPacketScheduler(RenderConfig renderConfig) {
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * @return Whether block changes should be queued here, rather than sent immediately
+     */
+    public boolean isEnabled() {
+        return renderConfig.getBlockPacketBytesPerTick() > 0;
+    }
+
+    /**
+     * Adds changes to be sent to a player over the next ticks. Can be called from any thread.
+     * @param player The player to send the changes to
+     * @param world The world that the changes are in. Changes queued for a different world are dropped
+     * @param changes The changes to add. These are copied, so the builder can be cleared afterwards
+     * @param minChunkY Sections below this are not sent
+     * @param maxChunkY Sections above this are not sent
+     * @param tileEntityUpdates Tile entity packets to send after the changes, or null if there are none
+     * @param viewerPosition Position of the player's eyes, or null if unknown
+     * @param planeCenter Center of the portal that the changes are viewed through, or null if unknown
+     * @param planeNormal Normal of the portal that the changes are viewed through
+     */
+    public void enqueue(Player player, World world, MultiBlockChangeBuilder<WrappedBlockData> changes, int minChunkY, int maxChunkY,
+                        @Nullable Map<IntVector, PacketContainer> tileEntityUpdates,
+                        @Nullable Vector viewerPosition, @Nullable Vector planeCenter, @Nullable Vector planeNormal) {
+        while(true) {
+            UUID worldId = world.getUID();
+            PlayerQueue queue = queues.computeIfAbsent(player.getUniqueId(), uuid -> new PlayerQueue(player, worldId));
+            queue.lock.lock();
+            try {
+                // Removed since it was fetched, so try again with a new queue
+                if(queue.removed) {continue;}
+
+                // The player has changed world, so the changes that haven't been sent yet are no longer valid
+                if(!queue.worldId.equals(worldId)) {
+                    queue.clear();
+                    queue.worldId = worldId;
+                }
+
+                changes.writePackets(Integer.MAX_VALUE, (sectionX, sectionY, sectionZ, positions, data, offset, count) -> {
+                    if(sectionY > maxChunkY || sectionY < minChunkY) {
+                        return;
+                    }
+                    queue.changes.addChanges(sectionX, sectionY, sectionZ, positions, data, offset, count);
+                });
+
+                if(tileEntityUpdates != null) {
+                    // Re-insert so that updated tile entities are sent after the others
+                    tileEntityUpdates.forEach((position, packet) -> {
+                        queue.tileEntityUpdates.remove(position);
+                        queue.tileEntityUpdates.put(position, packet);
+                    });
+                }
+
+                if(viewerPosition != null) {
+                    queue.viewerPosition = viewerPosition;
+                }
+                if(planeCenter != null) {
+                    queue.planeCenter = planeCenter;
+                    queue.planeNormal = planeNormal;
+                }
+                return;
+            }   finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends up to the configured number of bytes of queued changes to each player.
+     * Should be called once every tick.
+     */
+    public void update() {
+        if(queues.isEmpty()) {return;}
+
+        int maxChangesPerPacket = MultiBlockChangeManager_1_16_2.getMaxChangesPerPacket(renderConfig);
+        for(PlayerQueue queue : queues.values()) {
+            queue.lock.lock();
+            try {
+                if(queue.player.isOnline() && queue.player.getWorld().getUID().equals(queue.worldId)) {
+                    sendQueuedChanges(queue, maxChangesPerPacket);
+                }   else    {
+                    // Changes for another world would show up as ghost blocks in the player's new world
+                    queue.clear();
+                }
+
+                if(queue.changes.isEmpty() && queue.tileEntityUpdates.isEmpty()) {
+                    queue.removed = true;
+                    queues.remove(queue.player.getUniqueId(), queue);
+                }
+            }   finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    private void sendQueuedChanges(PlayerQueue queue, int maxChangesPerPacket) {
+        int remainingBytes = renderConfig.getBlockPacketBytesPerTick();
+        boolean sentAny = false;
+
+        // The player may have moved since the changes were added, so the order is updated every tick
+        queue.changes.sortByPriority(queue::getPriority);
+        while(!queue.changes.isEmpty()) {
+            int affordableChanges = (remainingBytes - MultiBlockChangeManager_1_16_2.PACKET_HEADER_BYTES) / MultiBlockChangeManager_1_16_2.BYTES_PER_CHANGE;
+            if(affordableChanges <= 0) {
+                // Always send something each tick, otherwise a budget smaller than one change would never send anything
+                if(sentAny) {return;}
+                affordableChanges = 1;
+            }
+
+            int sentChanges = queue.changes.writeFirstPacket(Math.min(affordableChanges, maxChangesPerPacket), (sectionX, sectionY, sectionZ, positions, data, offset, count) ->
+                    MultiBlockChangeManager_1_16_2.sendPacket(queue.player, sectionX, sectionY, sectionZ, positions, data, offset, count));
+
+            remainingBytes -= MultiBlockChangeManager_1_16_2.PACKET_HEADER_BYTES + sentChanges * MultiBlockChangeManager_1_16_2.BYTES_PER_CHANGE;
+            sentAny = true;
+        }
+
+        Iterator<PacketContainer> tileEntityIterator = queue.tileEntityUpdates.values().iterator();
+        while(tileEntityIterator.hasNext()) {
+            if(sentAny && remainingBytes < TILE_ENTITY_UPDATE_BYTES) {return;}
+
+            PacketContainer packet = tileEntityIterator.next();
+            tileEntityIterator.remove();
+            try {
+                ProtocolLibrary.getProtocolManager().sendServerPacket(queue.player, packet);
+            }   catch(Exception ex) {
+                ex.printStackTrace();
+            }
+
+            remainingBytes -= TILE_ENTITY_UPDATE_BYTES;
+            sentAny = true;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a small integer ID to each distinct {@link BlockData} seen by a block map.
+ * This lets the flood fill store and compare block states as integers, and caches the material properties that it checks for every block.
+ * The number of distinct states around a portal is usually small, so this stays tiny.
+ */
+public class BlockStatePalette {
+    private static final byte OCCLUDING = 1;
+    private static final byte AIR = 2;
+    private static final byte TILE_ENTITY = 4;
+
+    private final Map<BlockData, Integer> ids = new HashMap<>();
+    private final List<BlockData> states = new ArrayList<>();
+    private final List<WrappedBlockData> wrappedStates = new ArrayList<>();
+    private byte[] properties = new byte[64];
+
+    /**
+     * Finds the ID of <code>data</code>, adding it to the palette if it hasn't been seen before.
+     * @param data The data to find the ID of
+     * @return The ID. Equal block data always have the same ID
+     */
+    public int getId(BlockData data) {
+        Integer existing = ids.get(data);
+        if(existing != null) {
+            return existing;
+        }
+
+        int id = states.size();
+        states.add(data);
+        wrappedStates.add(null);
+        ids.put(data, id);
+
+        if(id == properties.length) {
+            properties = Arrays.copyOf(properties, properties.length * 2);
+        }
+
+        Material material = data.getMaterial();
+        byte flags = 0;
+        if(material.isOccluding()) {flags |= OCCLUDING;}
+        if(material.isAir()) {flags |= AIR;}
+        if(MaterialUtil.isTileEntity(material)) {flags |= TILE_ENTITY;}
+        properties[id] = flags;
+
+        return id;
+    }
+
+    /**
+     * @param id The ID of the data
+     * @return The data with the given ID
+     */
+    public BlockData getData(int id) {
+        return states.get(id);
+    }
+
+    /**
+     * Wrapping is done the first time this is called for each ID, then the wrapped data is shared.
+     * @param id The ID of the data
+     * @return The wrapped version of the data with the given ID
+     */
+    public WrappedBlockData getWrappedData(int id) {
+        WrappedBlockData wrapped = wrappedStates.get(id);
+        if(wrapped == null) {
+            wrapped = WrappedBlockData.createData(states.get(id));
+            wrappedStates.set(id, wrapped);
+        }
+        return wrapped;
+    }
+
+    public boolean isOccluding(int id) {
+        return (properties[id] & OCCLUDING) != 0;
+    }
+
+    public boolean isAir(int id) {
+        return (properties[id] & AIR) != 0;
+    }
+
+    public boolean isTileEntity(int id) {
+        return (properties[id] & TILE_ENTITY) != 0;
+    }
+}
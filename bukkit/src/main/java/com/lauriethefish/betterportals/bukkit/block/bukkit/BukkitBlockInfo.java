@@ -9,22 +9,31 @@ import org.bukkit.block.data.BlockData;
 
 public class BukkitBlockInfo implements IViewableBlockInfo {
     @Getter private final IntVector originPos;
+    @Getter private final int arrayIndex;
 
     @Getter private BlockData baseOriginData;
     @Getter @Setter private BlockData baseDestData;
     @Getter private WrappedBlockData originData;
     @Getter private WrappedBlockData renderedDestData;
 
-    public BukkitBlockInfo(IntVector originPos, BlockData originData, BlockData destData) {
+    /**
+     * @param originPos Position of the block at the origin
+     * @param arrayIndex Index of the block in the block map's array
+     * @param originData Data of the block at the origin
+     * @param wrappedOriginData Wrapped version of <code>originData</code>, which may be shared with other blocks
+     * @param destData Unrotated data of the block at the destination
+     */
+    public BukkitBlockInfo(IntVector originPos, int arrayIndex, BlockData originData, WrappedBlockData wrappedOriginData, BlockData destData) {
         this.originPos = originPos;
+        this.arrayIndex = arrayIndex;
         this.baseOriginData = originData;
         this.baseDestData = destData;
-        this.originData = WrappedBlockData.createData(originData);
+        this.originData = wrappedOriginData;
     }
 
-    public void setOriginData(BlockData originData) {
+    public void setOriginData(BlockData originData, WrappedBlockData wrappedOriginData) {
         this.baseOriginData = originData;
-        this.originData = WrappedBlockData.createData(originData);
+        this.originData = wrappedOriginData;
     }
 
     public void setRenderedDestData(WrappedBlockData destData) {
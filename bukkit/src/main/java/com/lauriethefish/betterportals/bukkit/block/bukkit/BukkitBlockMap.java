@@ -7,49 +7,114 @@ import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.FloodFillBlockMap;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.change.BlockChangeIndex;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeListener;
 import com.lauriethefish.betterportals.bukkit.block.fetch.BlockDataFetcherFactory;
+import com.lauriethefish.betterportals.bukkit.block.fetch.ChunkSnapshotArea;
+import com.lauriethefish.betterportals.bukkit.block.fetch.ChunkSnapshotCache;
 import com.lauriethefish.betterportals.bukkit.block.fetch.IBlockDataFetcher;
 import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
 import com.lauriethefish.betterportals.bukkit.block.rotation.IBlockRotator;
+import com.lauriethefish.betterportals.bukkit.block.rotation.RotatedBlockDataCache;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.IntRotationMatrix;
 import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
-import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import com.lauriethefish.betterportals.bukkit.tasks.FloodFillExecutor;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.shared.logging.Logger;
-import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
 import org.bukkit.block.data.BlockData;
-import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
 
 /**
  * A bukkit implementation of a flood fill block map.
+ * The state of each reached block is stored as palette IDs in arrays indexed by the block array index.
+ * {@link BukkitBlockInfo}s are only created for blocks which are actually added to the viewable states.
+ * All of this is kept in a {@link FillState}, which is replaced on every reset so that an initial fill still running on another thread never writes to the state of a newer activation.
+ * Changed blocks are found from block events via {@link BlockChangeIndex}, so only those blocks are re-checked on most updates.
  */
-public class BukkitBlockMap extends FloodFillBlockMap {
+public class BukkitBlockMap extends FloodFillBlockMap implements IBlockChangeListener {
     private final IBlockRotator blockRotator;
     private final BlockDataFetcherFactory dataFetcherFactory;
     private final Matrix rotateDestToOrigin;
+    private final IntRotationMatrix intRotateDestToOrigin;
+    private final BlockChangeIndex changeIndex;
+    private final ChunkSnapshotCache snapshotCache;
     private IBlockDataFetcher dataFetcher;
+    // Whether the data fetcher reports which destination blocks have changed, so that they don't all need to be checked
+    private boolean destinationChangesTracked = false;
 
     private final World originWorld;
     private final ILightDataManager lightDataManager;
 
-    private WrappedBlockData wrappedLightData;
+    // Origin blocks are read from snapshots, instead of looking up each block in the world
+    // These are only captured again for chunks with changed blocks, unless every block is being checked
+    private ChunkSnapshotArea originSnapshots;
+
+    private FillState fillState;
+
+    /**
+     * Everything written by the flood fill for one activation of the portal.
+     */
+    private static class FillState {
+        private final BlockStatePalette palette = new BlockStatePalette();
+        // Rotated destination data for each palette ID
+        private final RotatedBlockDataCache rotatedStates;
+        private final byte[] blockFlags;
+        private final int[] originStateIds;
+        private final int[] destStateIds;
+        // Only set for blocks that have been added to the viewable states
+        private final BukkitBlockInfo[] blockInfos;
+        // Used for incremental updates, since it only contains the reached blocks
+        private final IntList reachedIndices = new IntList();
+
+        // Tile entity data can only be fetched on the main thread, so the indices of tile entities found by the fill are stored until then
+        private final IntList pendingOriginTiles = new IntList();
+        private final IntList pendingDestTiles = new IntList();
+
+        // Blocks reported as changed since the last change check
+        private final BitSet dirtyBlocks;
+        private final IntList dirtyIndices = new IntList();
+
+        private final WrappedBlockData lightData;
+        // Kept here so that an asynchronous fill still has them if the portal is reset while it is running
+        private final IBlockDataFetcher dataFetcher;
+        private final ChunkSnapshotArea originSnapshots;
+
+        // Set when the portal is reset, which stops an asynchronous fill using this state early
+        private volatile boolean cancelled = false;
+
+        private FillState(int arrayLength, RotatedBlockDataCache rotatedStates, WrappedBlockData lightData, IBlockDataFetcher dataFetcher, ChunkSnapshotArea originSnapshots) {
+            this.rotatedStates = rotatedStates;
+            this.blockFlags = new byte[arrayLength];
+            this.originStateIds = new int[arrayLength];
+            this.destStateIds = new int[arrayLength];
+            this.blockInfos = new BukkitBlockInfo[arrayLength];
+            this.dirtyBlocks = new BitSet(arrayLength);
+            this.lightData = lightData;
+            this.dataFetcher = dataFetcher;
+            this.originSnapshots = originSnapshots;
+        }
+    }
 
     @Inject
-    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, IBlockRotator blockRotator, BlockDataFetcherFactory dataFetcherFactory, ILightDataManager lightDataManager) {
-        super(portal, logger, renderConfig);
+    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, IBlockRotator blockRotator, BlockDataFetcherFactory dataFetcherFactory, ILightDataManager lightDataManager, FloodFillExecutor floodFillExecutor, BlockChangeIndex changeIndex, ChunkSnapshotCache snapshotCache) {
+        super(portal, logger, renderConfig, floodFillExecutor);
         this.blockRotator = blockRotator;
         this.dataFetcherFactory = dataFetcherFactory;
         this.rotateDestToOrigin = portal.getTransformations().getRotateToOrigin();
+        this.intRotateDestToOrigin = new IntRotationMatrix(rotateDestToOrigin);
+        this.changeIndex = changeIndex;
+        this.snapshotCache = snapshotCache;
         this.lightDataManager = lightDataManager;
 
         this.originWorld = portal.getOriginPos().getWorld();
@@ -58,127 +123,121 @@ public class BukkitBlockMap extends FloodFillBlockMap {
     }
 
     /**
-     * Starts a flood fill from <code>start</code> out to the edges of the viewed portal area.
+     * Starts a flood fill from <code>startIndex</code> out to the edges of the viewed portal area.
      * The fill stops when it reaches occluding blocks, as we don't need to render other blocks behind these.
      * The origin data is also fetched, and this is placed in <code>statesOutput</code>
      * <br>Some notes:
-     * - There used to be a check to see if the origin and destination states are the same, but this added too much complexity when checking for changes, so I decided to remove it.
-     * - That unfortunately reduces the performance of the threaded bit slightly, but I think it's worth it for the gains here.
-     * @param start Start position of the flood fill, at the origin
+     * - Positions are handled as block array indices, and the rotation to the destination is done with integers, so no vectors are allocated for each block.
+     * - A {@link BukkitBlockInfo} is only created once a block is actually added to the viewable states.
+     * - This may run on a flood fill thread during the initial update, so it only reads blocks from snapshots and doesn't touch the Bukkit API.
+     * @param state State of the current activation to fill
+     * @param startIndex Block array index of the start position
      * @param statesOutput List to place the newly viewable states in
-     * @param firstBlockInfo Optional, used instead of adding a new block to the map for the first block. Useful for incremental updates
+     * @param backgroundData The background data of the portal
+     * @param initial Whether this is the first fill since the portal was activated
      */
-    protected void searchFromBlock(IntVector start, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo) {
-        WrappedBlockData backgroundData = getBackgroundData();
-
+    private void searchFromBlock(FillState state, int startIndex, List<IViewableBlockInfo> statesOutput, WrappedBlockData backgroundData, boolean initial) {
         final int timeBetweenLightBlocks = renderConfig.getLightSimulationInterval();
 
-        if(wrappedLightData == null) {
-            wrappedLightData = lightDataManager.getLightData(portal);
-        }
-
-        boolean enableLightBlocks = wrappedLightData != null && timeBetweenLightBlocks >= 1;
+        boolean enableLightBlocks = state.lightData != null && timeBetweenLightBlocks >= 1;
         int airCount = 0;
 
+        final int[] offsets = renderConfig.getIntOffsets();
+        BlockStatePalette palette = state.palette;
+        byte[] blockFlags = state.blockFlags;
+
         // We don't use a Stack<T> or ArrayList<T> since those are much too slow
-        int[] stack = new int[firstUpdate ? renderConfig.getTotalArrayLength() : 16];
+        int[] stack = new int[initial ? renderConfig.getTotalArrayLength() : 16];
 
-        stack[0] = getArrayMapIndex(start.subtract(centerPos));
+        stack[0] = startIndex;
+        blockFlags[startIndex] |= FLAG_QUEUED;
         int stackPos = 0;
+        int processed = 0;
         while(stackPos >= 0) {
-            int positionInt = stack[stackPos];
+            // Stop if the portal has been reset since this fill was started, since the result will be thrown away
+            if((++processed & 4095) == 0 && state.cancelled) {
+                return;
+            }
+
+            int index = stack[stackPos];
             stackPos--;
 
             // Convert our position integer into the origin relative coordinates
-            int relX = (positionInt % renderConfig.getZMultip());
-            int relY = Math.floorDiv(positionInt, renderConfig.getYMultip());
-            int relZ = Math.floorDiv(positionInt - relY * renderConfig.getYMultip(), renderConfig.getZMultip());
+            int relX = getRelX(index);
+            int relY = getRelY(index);
+            int relZ = getRelZ(index);
 
-            relX -= renderConfig.getMaxXZ();
-            relY -= renderConfig.getMaxY();
-            relZ -= renderConfig.getMaxXZ();
+            int destRelX = intRotateOriginToDest.transformX(relX, relY, relZ);
+            int destRelY = intRotateOriginToDest.transformY(relX, relY, relZ);
+            int destRelZ = intRotateOriginToDest.transformZ(relX, relY, relZ);
 
-            IntVector originPos = new IntVector(relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ());
-            IntVector destRelPos =  rotateOriginToDest.transform(relX, relY, relZ);
-            IntVector destPos = destRelPos.add(portalDestPos);
+            int destX = destRelX + portalDestPos.getX();
+            int destY = destRelY + portalDestPos.getY();
+            int destZ = destRelZ + portalDestPos.getZ();
 
-            BlockData destData = dataFetcher.getData(destPos);
+            BlockData destData = state.dataFetcher.getData(destX, destY, destZ);
             if(destData == null) {
                 logger.warning("Fetched data was null even though the request to get the data had already succeeded. This shouldn't happen!");
                 return;
             }
+            int destId = palette.getId(destData);
+            state.destStateIds[index] = destId;
 
-            boolean isOccluding = destData.getMaterial().isOccluding();
+            boolean isOccluding = palette.isOccluding(destId);
 
-            Block originBlock = originPos.getBlock(originWorld);
-            BlockData originData = originBlock.getBlockData();
-
-            if(!portal.isCrossServer() && MaterialUtil.isTileEntity(destData.getMaterial())) {
-                logger.finer("Adding tile state to map . . .");
-                Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
+            if(!portal.isCrossServer() && palette.isTileEntity(destId)) {
+                state.pendingDestTiles.add(index);
+            }
 
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-                if(updatePacket != null) {
-                    BlockDataUtil.setTileEntityPosition(updatePacket, originPos);
+            // Blocks that were already reached are being updated, so their origin data is checked separately in checkForChanges
+            boolean alreadyReached = (blockFlags[index] & FLAG_VISITED) != 0;
+            if(!alreadyReached) {
+                int originId = palette.getId(state.originSnapshots.getData(relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ()));
+                state.originStateIds[index] = originId;
 
-                    destTileStates.put(originPos, updatePacket);
+                if(palette.isTileEntity(originId)) {
+                    state.pendingOriginTiles.add(index);
                 }
-            }
 
-            if(MaterialUtil.isTileEntity(originBlock.getType()))  {
-                logger.finer("Adding tile state to map . . .");
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
-                if(updatePacket != null) {
-                    originTileStates.put(originPos, updatePacket);
-                }
+                // This list is used for incremental updates later
+                blockFlags[index] |= FLAG_VISITED;
+                state.reachedIndices.add(index);
             }
 
-            // Use the existing first block if given, otherwise make a new block info
-            BukkitBlockInfo blockInfo = firstBlockInfo == null ? new BukkitBlockInfo(originPos, originData, destData) : (BukkitBlockInfo) firstBlockInfo;
             boolean isEdge = renderConfig.isOutsideBounds(relX, relY, relZ);
 
-            // If we're on a block on the edge of the portal view, and it is not a fully occluding material, then we must set it to the portal background
-            // This avoids the real-world being visible through the edge of the projection
-            if(isEdge && !isOccluding) {
-                blockInfo.setRenderedDestData(backgroundData);
-            }   else    {
-                blockInfo.setRenderedDestData(WrappedBlockData.createData(blockRotator.rotateByMatrix(rotateDestToOrigin, destData)));
-            }
-
-            // If the newly added block was not added previously (i.e. passed in via firstBlockInfo), then we need to add it to the non-obscured states
-            // This list is used for incremental updates later
-            if(firstBlockInfo == null) {
-                nonObscuredStates.add(blockInfo);
+            // If the block has already been made viewable, make sure that it shows the new destination data
+            BukkitBlockInfo existingInfo = state.blockInfos[index];
+            if(existingInfo != null) {
+                existingInfo.setBaseDestData(destData);
+                existingInfo.setRenderedDestData(getRenderedDestData(state, destId, isEdge, backgroundData));
             }
-            firstBlockInfo = null;
 
             // If we're not on an edge block, and the origin and destination block are the exact same, then we can skip this block
             // This is because rendering it will do nothing - it's the same at both ends
-            boolean canSkip = destData.equals(originData) && firstUpdate && !isEdge;
+            boolean canSkip = destId == state.originStateIds[index] && initial && !isEdge;
 
-            boolean isInLine = isInLine(destRelPos);
+            boolean isInLine = isInLine(destRelX, destRelY, destRelZ);
 
             // Don't bother adding blocks which are in line with the portal window, as these will never be visible anyway, and just serve to made the block map larger
-            // We also only add this block to the viewable states if it doesn't already exist there (this is the case if the alreadyReachedMap's value is 1)
+            // We also only add this block to the viewable states if it doesn't already exist there
             // The above check is only important on incremental updates, since on the first update the block must never have been added to the block map - it's being checked for the first time
-
-            Material currentBlock = destData.getMaterial();
-
-            if (alreadyReachedMap[positionInt] < 2 && !isInLine) {
+            if((blockFlags[index] & FLAG_VIEWABLE) == 0 && !isInLine) {
                 if(enableLightBlocks) {
-                    if (currentBlock.isAir() && !isEdge) {
+                    if (palette.isAir(destId) && !isEdge) {
                         airCount++;
                     }
                 }
 
                 if (enableLightBlocks && airCount == timeBetweenLightBlocks) {
                     airCount = 0;
-                    blockInfo.setRenderedDestData(wrappedLightData);
-                    alreadyReachedMap[positionInt] = 2; // Make sure that this block will not be added multiple times
+                    BukkitBlockInfo blockInfo = getOrCreateBlockInfo(state, index, backgroundData);
+                    blockInfo.setRenderedDestData(state.lightData);
+                    blockFlags[index] |= FLAG_VIEWABLE; // Make sure that this block will not be added multiple times
                     statesOutput.add(blockInfo);
                 }   else if (!canSkip) {
-                    alreadyReachedMap[positionInt] = 2; // Make sure that this block will not be added multiple times
-                    statesOutput.add(blockInfo);
+                    blockFlags[index] |= FLAG_VIEWABLE; // Make sure that this block will not be added multiple times
+                    statesOutput.add(getOrCreateBlockInfo(state, index, backgroundData));
                 }
             }
 
@@ -188,17 +247,17 @@ public class BukkitBlockMap extends FloodFillBlockMap {
 
 
             // Resize the stack if there's a possibility there won't be enough room to fit our new items
-            if(!firstUpdate && (stack.length - (stackPos + 1) < 5)) {
+            if(!initial && (stack.length - (stackPos + 1) < 7)) {
                 int[] newStack = new int[stack.length * 2];
                 System.arraycopy(stack, 0, newStack, 0, stack.length);
                 stack = newStack;
             }
 
             // Continue for the surrounding blocks
-            for(int offset : renderConfig.getIntOffsets()) {
-                int newPos = positionInt + offset;
-                if(alreadyReachedMap[newPos] == 0) {
-                    alreadyReachedMap[newPos] = 1;
+            for(int offset : offsets) {
+                int newPos = index + offset;
+                if(blockFlags[newPos] == 0) {
+                    blockFlags[newPos] = FLAG_QUEUED;
 
                     stackPos += 1;
                     stack[stackPos] = newPos;
@@ -208,107 +267,331 @@ public class BukkitBlockMap extends FloodFillBlockMap {
     }
 
     /**
-     * Checks the origin and destination blocks for changes.
-     * At the origin, we only need to check the actually viewable blocks, since there is no need to re-flood-fill.
-     * At the destination, we must check all blocks that were reached by the flood-fill, then do a re-flood-fill for any that have changed to add blocks in a newly revealed cavern, for instance.
+     * Finds the data that will be shown to the player for a destination block.
+     * The rotated data is shared between every block with the same state.
+     * @param state State of the current activation
+     * @param destId Palette ID of the unrotated destination data
+     * @param isEdge Whether the block is on the edge of the portal view
+     * @param backgroundData The background data of the portal
+     * @return The data to show at the origin
      */
-    @Override
-    protected void checkForChanges() {
-        List<IViewableBlockInfo> newStates = new ArrayList<>();
+    private WrappedBlockData getRenderedDestData(FillState state, int destId, boolean isEdge, WrappedBlockData backgroundData) {
+        // If we're on a block on the edge of the portal view, and it is not a fully occluding material, then we must set it to the portal background
+        // This avoids the real-world being visible through the edge of the projection
+        if(isEdge && !state.palette.isOccluding(destId)) {
+            return backgroundData;
+        }   else    {
+            return state.rotatedStates.getRotated(destId, state.palette.getData(destId));
+        }
+    }
+
+    /**
+     * Finds the existing {@link BukkitBlockInfo} for the block at <code>index</code>, or creates one from the stored palette IDs.
+     * @param state State of the current activation
+     * @param index Block array index of the block
+     * @param backgroundData The background data of the portal
+     * @return The block info
+     */
+    private BukkitBlockInfo getOrCreateBlockInfo(FillState state, int index, WrappedBlockData backgroundData) {
+        BukkitBlockInfo blockInfo = state.blockInfos[index];
+        if(blockInfo != null) {
+            return blockInfo;
+        }
 
-        int statesLength = nonObscuredStates.size();
+        int relX = getRelX(index);
+        int relY = getRelY(index);
+        int relZ = getRelZ(index);
 
-        //noinspection ForLoopReplaceableByForEach
-        for(int i = 0; i < statesLength; i++) { // We do not use foreach to avoid concurrent modifications
-            BukkitBlockInfo blockInfo = (BukkitBlockInfo) nonObscuredStates.get(i);
+        IntVector originPos = new IntVector(relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ());
+        int destId = state.destStateIds[index];
+        BlockData destData = state.palette.getData(destId);
 
-            IntVector destPos = rotateOriginToDest.transform(blockInfo.getOriginPos().subtract(portalOriginPos)).add(portalDestPos); // Avoid directly using the matrix to fix floating point precision issues
-            BlockData newDestData = dataFetcher.getData(destPos);
+        int originId = state.originStateIds[index];
+        blockInfo = new BukkitBlockInfo(originPos, index, state.palette.getData(originId), state.palette.getWrappedData(originId), destData);
+        blockInfo.setRenderedDestData(getRenderedDestData(state, destId, renderConfig.isOutsideBounds(relX, relY, relZ), backgroundData));
 
+        state.blockInfos[index] = blockInfo;
+        return blockInfo;
+    }
 
-            if(!newDestData.equals(blockInfo.getBaseDestData())) {
-                logger.finer("Destination block change");
-                blockInfo.setBaseDestData(newDestData); // Set the new base data, so that this update isn't detected next change check
+    /**
+     * Fetches the tile entity data of any tile entities found by the flood fill since the last call.
+     * This must be called on the main thread.
+     * @param state State of the current activation
+     */
+    private void addPendingTileStates(FillState state) {
+        for(int i = 0; i < state.pendingOriginTiles.size(); i++) {
+            int index = state.pendingOriginTiles.get(i);
+            addOriginTileState(getRelX(index) + portalOriginPos.getX(), getRelY(index) + portalOriginPos.getY(), getRelZ(index) + portalOriginPos.getZ());
+        }
+        state.pendingOriginTiles.clear();
+
+        for(int i = 0; i < state.pendingDestTiles.size(); i++) {
+            int index = state.pendingDestTiles.get(i);
+            int relX = getRelX(index);
+            int relY = getRelY(index);
+            int relZ = getRelZ(index);
+
+            int destX = intRotateOriginToDest.transformX(relX, relY, relZ) + portalDestPos.getX();
+            int destY = intRotateOriginToDest.transformY(relX, relY, relZ) + portalDestPos.getY();
+            int destZ = intRotateOriginToDest.transformZ(relX, relY, relZ) + portalDestPos.getZ();
+            addDestTileState(destX, destY, destZ, relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ());
+        }
+        state.pendingDestTiles.clear();
+    }
 
-                // Re-floodfill from this block, as if this block has changed from occluding to non-occluding, it may have revealed some new blocks
-                // We pass in our existing blockInfo to avoid double-adding to the non obscured states
-                searchFromBlock(blockInfo.getOriginPos(), newStates, blockInfo);
-            }
+    private void addDestTileState(int destX, int destY, int destZ, int originX, int originY, int originZ) {
+        logger.finer("Adding tile state to map . . .");
+        Block destBlock = Objects.requireNonNull(portal.getDestPos().getWorld()).getBlockAt(destX, destY, destZ);
 
-            if(!portal.isCrossServer()) {
-                if (MaterialUtil.isTileEntity(newDestData.getMaterial())) {
-                    Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
+        PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
+        if(updatePacket != null) {
+            BlockDataUtil.setTileEntityPosition(updatePacket, new IntVector(originX, originY, originZ));
 
-                    PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-                    if(updatePacket != null) {
-                        BlockDataUtil.setTileEntityPosition(updatePacket, blockInfo.getOriginPos());
+            destTileStates.put(originX, originY, originZ, updatePacket);
+        }   else    {
+            destTileStates.remove(originX, originY, originZ);
+        }
+    }
 
-                        destTileStates.put(blockInfo.getOriginPos(), updatePacket);
-                    }
-                }
-            }
+    private void addOriginTileState(int originX, int originY, int originZ) {
+        logger.finer("Adding tile state to map . . .");
+        PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originWorld.getBlockAt(originX, originY, originZ).getState());
+        if(updatePacket != null) {
+            originTileStates.put(originX, originY, originZ, updatePacket);
+        }   else    {
+            originTileStates.remove(originX, originY, originZ);
+        }
+    }
 
-            Block originBlock = blockInfo.getOriginPos().getBlock(originWorld);
-            BlockData newOriginData = originBlock.getBlockData();
-            if(MaterialUtil.isTileEntity(originBlock.getType()))  {
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
-                if(updatePacket != null) {
-                    originTileStates.put(blockInfo.getOriginPos(), updatePacket);
-                }
-            }
+    @Override
+    protected Callable<List<IViewableBlockInfo>> createInitialFill() {
+        // Anything requiring the Bukkit API is fetched now, since the fill itself may run on another thread
+        FillState state = fillState;
+        WrappedBlockData backgroundData = getBackgroundData();
+        int centerIndex = getArrayMapIndex(0, 0, 0);
 
-            if(!newOriginData.equals(blockInfo.getBaseOriginData())) {
-                // If the new origin data is different to the new dest data, then we might need to add this block to the viewable states
-                // This is because it will not have been added previously if the origin and destination data are the same
-                if(!newOriginData.equals(newDestData) && !portal.getOriginPos().isInLine(blockInfo.getOriginPos())) {
-                    int position = getArrayMapIndex(blockInfo.getOriginPos().subtract(portalOriginPos));
-                    // Only add this block as viewable if it is not already designated as viewable
-                    if(alreadyReachedMap[position] < 2) {
-                        alreadyReachedMap[position] = 2;
-                        newStates.add(blockInfo);
-                    }
-                }
+        return () -> {
+            List<IViewableBlockInfo> newStates = new ArrayList<>();
+            searchFromBlock(state, centerIndex, newStates, backgroundData, true);
+            return newStates;
+        };
+    }
 
-                blockInfo.setOriginData(newOriginData);
-            }
+    @Override
+    protected void finishInitialFill() {
+        addPendingTileStates(fillState);
+    }
+
+    @Override
+    protected int getReachedBlockCount() {
+        return fillState == null ? 0 : fillState.reachedIndices.size();
+    }
+
+    @Override
+    public void onBlockChange(@NotNull World world, int x, int y, int z) {
+        FillState state = fillState;
+        if(state == null) {return;}
+
+        // For portals within the same world, the block could be in view at both the origin and destination
+        if(world == originWorld) {
+            originSnapshots.markChanged(x, z);
+            markDirty(state, x - portalOriginPos.getX(), y - portalOriginPos.getY(), z - portalOriginPos.getZ());
         }
 
+        if(!portal.isCrossServer() && world == portal.getDestPos().getWorld()) {
+            dataFetcher.onBlockChange(x, y, z);
+            markDestinationDirty(state, x, y, z);
+        }
+    }
+
+    /**
+     * Marks the block at the given destination position to be re-checked on the next change check, if it is within the block array.
+     * @param state State of the current activation
+     * @param x X coordinate of the block at the destination
+     * @param y Y coordinate of the block at the destination
+     * @param z Z coordinate of the block at the destination
+     */
+    private void markDestinationDirty(FillState state, int x, int y, int z) {
+        int destRelX = x - portalDestPos.getX();
+        int destRelY = y - portalDestPos.getY();
+        int destRelZ = z - portalDestPos.getZ();
+
+        markDirty(state, intRotateDestToOrigin.transformX(destRelX, destRelY, destRelZ),
+                intRotateDestToOrigin.transformY(destRelX, destRelY, destRelZ),
+                intRotateDestToOrigin.transformZ(destRelX, destRelY, destRelZ));
+    }
+
+    /**
+     * Marks the block at the given origin relative position to be re-checked on the next change check, if it is within the block array.
+     * @param state State of the current activation
+     * @param relX X coordinate relative to the origin of the portal
+     * @param relY Y coordinate relative to the origin of the portal
+     * @param relZ Z coordinate relative to the origin of the portal
+     */
+    private void markDirty(FillState state, int relX, int relY, int relZ) {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+        if(Math.abs(relX) > maxXZ || Math.abs(relY) > maxY || Math.abs(relZ) > maxXZ) {return;}
+
+        int index = getArrayMapIndex(relX, relY, relZ);
+        if(!state.dirtyBlocks.get(index)) {
+            state.dirtyBlocks.set(index);
+            state.dirtyIndices.add(index);
+        }
+    }
+
+    /**
+     * Subscribes to changes in the areas read by the flood fill at the origin and destination.
+     */
+    private void subscribeToChanges() {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+        IntVector originSize = new IntVector(maxXZ, maxY, maxXZ);
+        changeIndex.subscribe(originWorld, portalOriginPos.subtract(originSize), portalOriginPos.add(originSize), this);
 
-        updateTileStateMap(originTileStates, originWorld, false);
+        // Cross-server destinations are fetched from the other server, so there are no events to watch for them
         if(!portal.isCrossServer()) {
-            updateTileStateMap(destTileStates, portal.getDestPos().getWorld(), true);
+            // The area may be rotated at the destination, so the largest dimension is used on every axis
+            int radius = Math.max(maxXZ, maxY) + 1;
+            IntVector destSize = new IntVector(radius, radius, radius);
+            World destWorld = Objects.requireNonNull(portal.getDestPos().getWorld());
+            changeIndex.subscribe(destWorld, portalDestPos.subtract(destSize), portalDestPos.add(destSize), this);
         }
+    }
+
+    /**
+     * Checks the origin and destination blocks for changes.
+     * At the origin, we don't need to re-flood-fill, since the fill only depends on the destination blocks.
+     * At the destination, we do a re-flood-fill from any that have changed to add blocks in a newly revealed cavern, for instance.
+     * Only blocks reported as changed are checked, unless this is a full check or the destination is on another server and its fetcher doesn't track changes, where every reached block is checked.
+     * @param fullCheck Whether to check every block reached by the flood fill, instead of just the changed ones
+     */
+    @Override
+    protected void checkForChanges(boolean fullCheck) {
+        FillState state = fillState;
+        List<IViewableBlockInfo> newStates = new ArrayList<>();
+        WrappedBlockData backgroundData = getBackgroundData();
+
+        if(fullCheck || (portal.isCrossServer() && !destinationChangesTracked)) {
+            // Blocks reached by any re-flood-fills are added to the end, and don't need to be checked until next time
+            int statesLength = state.reachedIndices.size();
+            for(int i = 0; i < statesLength; i++) {
+                checkBlock(state, state.reachedIndices.get(i), newStates, backgroundData);
+            }
+        }   else    {
+            for(int i = 0; i < state.dirtyIndices.size(); i++) {
+                int index = state.dirtyIndices.get(i);
+                // Blocks which weren't reached are hidden behind occluding blocks, so changes to them don't matter
+                if((state.blockFlags[index] & FLAG_VISITED) != 0) {
+                    checkBlock(state, index, newStates, backgroundData);
+                }
+            }
+        }
+        state.dirtyBlocks.clear();
+        state.dirtyIndices.clear();
+
+        // Add the tile entities of any blocks newly reached by the re-flood-fills
+        addPendingTileStates(state);
 
         if(newStates.size() > 0) {
             stateQueue.enqueueStates(newStates);
         }
     }
 
-    private void updateTileStateMap(ConcurrentMap<IntVector, PacketContainer> map, World world, boolean isDestination) {
-        for(Map.Entry<IntVector, PacketContainer> entry : map.entrySet()) {
-            IntVector position;
-            if(isDestination) {
-                IntVector portalRelativePos = entry.getKey().subtract(portalOriginPos);
-                position = rotateOriginToDest.transform(portalRelativePos).add(portalDestPos);
+    /**
+     * Checks a block reached by the flood fill for changes at the origin and destination.
+     * @param state State of the current activation
+     * @param index Block array index of the block
+     * @param newStates List to place any newly viewable states in
+     * @param backgroundData The background data of the portal
+     */
+    private void checkBlock(FillState state, int index, List<IViewableBlockInfo> newStates, WrappedBlockData backgroundData) {
+        BlockStatePalette palette = state.palette;
+
+        int relX = getRelX(index);
+        int relY = getRelY(index);
+        int relZ = getRelZ(index);
+
+        int destX = intRotateOriginToDest.transformX(relX, relY, relZ) + portalDestPos.getX();
+        int destY = intRotateOriginToDest.transformY(relX, relY, relZ) + portalDestPos.getY();
+        int destZ = intRotateOriginToDest.transformZ(relX, relY, relZ) + portalDestPos.getZ();
+
+        int newDestId = palette.getId(dataFetcher.getData(destX, destY, destZ));
+
+        int originX = relX + portalOriginPos.getX();
+        int originY = relY + portalOriginPos.getY();
+        int originZ = relZ + portalOriginPos.getZ();
+
+        if(newDestId != state.destStateIds[index]) {
+            logger.finer("Destination block change");
+            state.destStateIds[index] = newDestId; // Set the new data, so that this update isn't detected next change check
+
+            // Re-floodfill from this block, as if this block has changed from occluding to non-occluding, it may have revealed some new blocks
+            // The block has already been reached, so it will be updated rather than added to the reached blocks again
+            searchFromBlock(state, index, newStates, backgroundData, false);
+        }
+
+        // Tile entities are refreshed whenever their block is checked, and removed once they're no longer there
+        // Blocks are checked when they're changed by events, so there's no need to poll every tile entity
+        if(!portal.isCrossServer()) {
+            if(palette.isTileEntity(newDestId)) {
+                addDestTileState(destX, destY, destZ, originX, originY, originZ);
             }   else    {
-                position = entry.getKey();
+                destTileStates.remove(originX, originY, originZ);
             }
+        }
+
+        int newOriginId = palette.getId(originSnapshots.getData(originX, originY, originZ));
+        if(palette.isTileEntity(newOriginId))  {
+            addOriginTileState(originX, originY, originZ);
+        }   else    {
+            originTileStates.remove(originX, originY, originZ);
+        }
+
+        if(newOriginId != state.originStateIds[index]) {
+            state.originStateIds[index] = newOriginId;
 
-            Block block = position.getBlock(world);
-            BlockState state = block.getState();
-            if(!MaterialUtil.isTileEntity(state.getType())) {
-                logger.finer("Removing tile state from map . . . %b", isDestination);
-                map.remove(entry.getKey());
+            BukkitBlockInfo existingInfo = state.blockInfos[index];
+            if(existingInfo != null) {
+                existingInfo.setOriginData(palette.getData(newOriginId), palette.getWrappedData(newOriginId));
+            }
+
+            // If the new origin data is different to the new dest data, then we might need to add this block to the viewable states
+            // This is because it will not have been added previously if the origin and destination data are the same
+            // Only add this block as viewable if it is not already designated as viewable
+            if(newOriginId != newDestId && (state.blockFlags[index] & FLAG_VIEWABLE) == 0
+                    && !portal.getOriginPos().isInLine(new IntVector(originX, originY, originZ))) {
+                state.blockFlags[index] |= FLAG_VIEWABLE;
+                newStates.add(getOrCreateBlockInfo(state, index, backgroundData));
             }
         }
     }
 
     @Override
     protected void updateInternal() {
+        // The data fetcher and snapshots are still being read by the initial fill, so they can't be updated until it has finished
+        if(isInitialFillPending()) {return;}
+
+        // Nothing has changed since the last check, so there's no need to fetch the blocks again
+        // Cross-server portals always fetch, since changes at the destination are found by the other server
+        if(!firstUpdate && !portal.isCrossServer() && fillState.dirtyIndices.isEmpty() && !isFullCheckDue()) {
+            super.updateInternal();
+            return;
+        }
+
+        // Changed blocks are reported by events, so only the chunks containing them need to be read again
+        // Every chunk is read on the first update, and when every block is checked in case of changes without events
+        boolean fetchAll = firstUpdate || isFullCheckDue();
+
         if(dataFetcher == null) {
             dataFetcher = dataFetcherFactory.create(portal);
         }
-        dataFetcher.update();
+        if(fetchAll) {
+            dataFetcher.update();
+        }   else    {
+            dataFetcher.updateChanged();
+        }
 
         // If fetching external blocks has not yet finished, we can't do the flood-fill.
         if(!dataFetcher.isReady()) {
@@ -316,13 +599,50 @@ public class BukkitBlockMap extends FloodFillBlockMap {
             return;
         }
 
+        if(originSnapshots == null) {
+            originSnapshots = new ChunkSnapshotArea(snapshotCache, originWorld, portalOriginPos, renderConfig);
+        }
+        if(fetchAll) {
+            originSnapshots.capture();
+        }   else    {
+            originSnapshots.captureChanged();
+        }
+
+        if(fillState == null) {
+            fillState = new FillState(renderConfig.getTotalArrayLength(), new RotatedBlockDataCache(blockRotator, rotateDestToOrigin), lightDataManager.getLightData(portal), dataFetcher, originSnapshots);
+            subscribeToChanges();
+
+            // The initial fill reads every block, so only changes after this point need to be checked
+            dataFetcher.pollChanges((x, y, z) -> {});
+        }   else    {
+            // Changes at the destination of cross-server portals are found by the fetcher rather than block events
+            FillState state = fillState;
+            destinationChangesTracked = dataFetcher.pollChanges((x, y, z) -> markDestinationDirty(state, x, y, z));
+        }
+
         super.updateInternal();
     }
 
     @Override
     public void reset() {
+        // Stop any asynchronous fill still writing to the old state
+        if(fillState != null) {
+            fillState.cancelled = true;
+            changeIndex.unsubscribe(this);
+        }
+
+        // Allow the shared snapshots to be evicted if no other portals are using them
+        if(dataFetcher != null) {
+            dataFetcher.release();
+        }
+        if(originSnapshots != null) {
+            originSnapshots.release();
+        }
+
         dataFetcher = null;
-        wrappedLightData = null;
+        destinationChangesTracked = false;
+        originSnapshots = null;
+        fillState = null;
         super.reset();
     }
-}
\ No newline at end of file
+}
@@ -7,41 +7,71 @@ import com.comphenix.protocol.wrappers.BlockPosition;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.MultiBlockChangeBuilder;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager {
+    // Estimated size of a packet without its changes: packet ID, section position, and the change count
+    static final int PACKET_HEADER_BYTES = 13;
+    // Estimated size of each change, which is a VarLong of the block state ID and position. This is 4 bytes for all but the highest state IDs
+    static final int BYTES_PER_CHANGE = 4;
+
+    // Shared between all threads rather than kept per thread, since block views may be updated on a new virtual thread each time
+    // Pooled builders are kept after every portal has closed, but each only keeps a few small spare sections
+    private static final BlockingQueue<MultiBlockChangeBuilder<WrappedBlockData>> pooledBuilders = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+
     private final Player player;
+    // The world is found when the manager is created, since the player may change world before the changes are queued
+    private final World world;
+    private final RenderConfig renderConfig;
+    private final BlockPacketScheduler packetScheduler;
 
     private final int minChunkY;
     private final int maxChunkY;
 
-    // Section positions have to be done with BlockPositions for now in ProtocolLib
-    private final HashMap<BlockPosition, Map<Vector, WrappedBlockData>> changes = new HashMap<>();
+    // Taken from the pool when the first change is added, and returned once sent
+    private MultiBlockChangeBuilder<WrappedBlockData> builder;
+    private Map<IntVector, PacketContainer> tileEntityUpdates;
+    private Vector viewerPosition;
+    private Vector planeCenter;
+    private Vector planeNormal;
 
     @Inject
-    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY) {
+    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY, RenderConfig renderConfig, BlockPacketScheduler packetScheduler) {
         this.player = player;
+        this.world = player.getWorld();
+        this.renderConfig = renderConfig;
+        this.packetScheduler = packetScheduler;
         this.minChunkY = minChunkY;
         this.maxChunkY = maxChunkY;
     }
 
+    private MultiBlockChangeBuilder<WrappedBlockData> getBuilder() {
+        if(builder == null) {
+            builder = pooledBuilders.poll();
+            if(builder == null) {
+                builder = new MultiBlockChangeBuilder<>(WrappedBlockData[]::new);
+            }
+        }
+
+        return builder;
+    }
+
     @Override
     public void addChange(Vector position, WrappedBlockData newData) {
-        BlockPosition sectionPosition = new BlockPosition(
-                position.getBlockX() >> 4,
-                position.getBlockY() >> 4,
-                position.getBlockZ() >> 4
-        );
-
-        // Create/get the list for this chunk section
-        Map<Vector, WrappedBlockData> existingList = changes.computeIfAbsent(sectionPosition, k -> new HashMap<>());
-        existingList.put(position, newData);
+        getBuilder().addChange(position.getBlockX(), position.getBlockY(), position.getBlockZ(), newData);
     }
 
     @Override
@@ -54,45 +84,103 @@ public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager
         addChange(position, ((BukkitBlockInfo) newData).getRenderedDestData());
     }
 
-    private short getShortLocation(Vector vec) {
-        int x = vec.getBlockX() & 0xF;
-        int y = vec.getBlockY() & 0xF;
-        int z = vec.getBlockZ() & 0xF;
+    @Override
+    public void addTileEntityUpdate(IntVector position, PacketContainer packet) {
+        if(tileEntityUpdates == null) {
+            tileEntityUpdates = new LinkedHashMap<>();
+        }
+        tileEntityUpdates.put(position, packet);
+    }
 
-        return (short) (x << 8 | z << 4 | y);
+    @Override
+    public void setViewerPosition(Vector position) {
+        this.viewerPosition = position;
+    }
+
+    @Override
+    public void setPortalPlane(Vector center, Vector normal) {
+        this.planeCenter = center;
+        this.planeNormal = normal;
+    }
+
+    /**
+     * @param renderConfig Config containing the packet size
+     * @return The maximum number of changes to send in one packet, based on the configured packet size
+     */
+    static int getMaxChangesPerPacket(RenderConfig renderConfig) {
+        int byteBudget = renderConfig.getMultiBlockChangeByteBudget();
+        if(byteBudget <= 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        return Math.max(1, (byteBudget - PACKET_HEADER_BYTES) / BYTES_PER_CHANGE);
+    }
+
+    /**
+     * Sends a multi block change packet containing some of the changes of a {@link MultiBlockChangeBuilder}.
+     * The arguments match {@link MultiBlockChangeBuilder.PacketWriter}, apart from <code>player</code>.
+     */
+    static void sendPacket(Player player, int sectionX, int sectionY, int sectionZ, short[] positions, WrappedBlockData[] data, int offset, int count) {
+        PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
+
+        // Section positions have to be done with BlockPositions for now in ProtocolLib
+        packet.getSectionPositions().write(0, new BlockPosition(sectionX, sectionY, sectionZ));
+
+        // The builder's arrays are reused, so the packet needs its own copy
+        packet.getBlockDataArrays().writeSafely(0, Arrays.copyOfRange(data, offset, offset + count));
+        packet.getShortArrays().writeSafely(0, Arrays.copyOfRange(positions, offset, offset + count));
+
+        try {
+            ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
+        }   catch(Exception ex) {
+            ex.printStackTrace();
+        }
     }
 
     @Override
     public void sendChanges() {
-        // Each chunk position needs a different packet
-        for(Map.Entry<BlockPosition, Map<Vector, WrappedBlockData>> entry : changes.entrySet()) {
-            PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
-            int chunkY = entry.getKey().getY();
-            if(chunkY > maxChunkY || chunkY < minChunkY) {
-                continue;
+        try {
+            if(packetScheduler.isEnabled()) {
+                if(builder != null || tileEntityUpdates != null) {
+                    packetScheduler.enqueue(player, world, getBuilder(), minChunkY, maxChunkY, tileEntityUpdates, viewerPosition, planeCenter, planeNormal);
+                }
+            }   else    {
+                sendChangesNow();
             }
+        }   finally {
+            if(builder != null) {
+                builder.clear();
+                // If the pool is full, the builder is just discarded
+                pooledBuilders.offer(builder);
+                builder = null;
+            }
+            tileEntityUpdates = null;
+        }
+    }
 
-            // Write the correct chunk section
-            packet.getSectionPositions().write(0, entry.getKey());
-
-            // Add each changed block in the chunk
-            int blockCount = entry.getValue().size();
-            WrappedBlockData[] data = new WrappedBlockData[blockCount];
-            short[] positions = new short[blockCount];
-            int i = 0;
-            for(Map.Entry<Vector, WrappedBlockData> blockEntry : entry.getValue().entrySet()) {
-                positions[i] = getShortLocation(blockEntry.getKey());
-                data[i] = blockEntry.getValue();
-                i++;
+    private void sendChangesNow() {
+        if(builder != null) {
+            if(viewerPosition != null) {
+                builder.sortByDistance(viewerPosition.getX(), viewerPosition.getY(), viewerPosition.getZ());
             }
 
-            packet.getBlockDataArrays().writeSafely(0, data);
-            packet.getShortArrays().writeSafely(0, positions);
+            // Each chunk section needs a different packet
+            builder.writePackets(getMaxChangesPerPacket(renderConfig), (sectionX, sectionY, sectionZ, positions, data, offset, count) -> {
+                if(sectionY > maxChunkY || sectionY < minChunkY) {
+                    return;
+                }
+
+                sendPacket(player, sectionX, sectionY, sectionZ, positions, data, offset, count);
+            });
+        }
 
-            try {
-                ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
-            }   catch(Exception ex) {
-                ex.printStackTrace();
+        if(tileEntityUpdates != null) {
+            for(PacketContainer packet : tileEntityUpdates.values()) {
+                try {
+                    ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
+                }   catch(Exception ex) {
+                    ex.printStackTrace();
+                }
             }
         }
     }
@@ -0,0 +1,139 @@
+package com.lauriethefish.betterportals.bukkit.block.change;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.SectionPosition;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Forwards block changes to the listeners subscribed to the chunk sections containing them.
+ * This lets block maps find out which of their blocks have changed without re-reading every block in the area.
+ * Listeners are indexed by section, so that the many block events which aren't near any portal only cost one map lookup.
+ * Only changes which fire Bukkit events are reported, so anything that needs to catch every change should still check occasionally.
+ * This is only used on the main thread.
+ */
+@Singleton
+public class BlockChangeIndex {
+    private final Logger logger;
+
+    // Listeners for each section, by world
+    private final Map<UUID, Map<Long, List<IBlockChangeListener>>> sectionListeners = new HashMap<>();
+    // Sections that each listener is subscribed to, so that they can be removed again
+    private final Map<IBlockChangeListener, List<Subscription>> subscriptions = new HashMap<>();
+
+    private static class Subscription {
+        private final UUID worldId;
+        private final long[] sections;
+
+        private Subscription(UUID worldId, long[] sections) {
+            this.worldId = worldId;
+            this.sections = sections;
+        }
+    }
+
+    @Inject
+    public BlockChangeIndex(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Subscribes <code>listener</code> to changes in every section overlapping the box from <code>min</code> to <code>max</code>.
+     * A listener can be subscribed to multiple areas, in any number of worlds.
+     * @param world World containing the area
+     * @param min Minimum corner of the area, inclusive
+     * @param max Maximum corner of the area, inclusive
+     * @param listener Listener to notify of changes
+     */
+    public void subscribe(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max, @NotNull IBlockChangeListener listener) {
+        int minX = min.getX() >> 4; int minY = min.getY() >> 4; int minZ = min.getZ() >> 4;
+        int maxX = max.getX() >> 4; int maxY = max.getY() >> 4; int maxZ = max.getZ() >> 4;
+
+        long[] sections = new long[(maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1)];
+        Map<Long, List<IBlockChangeListener>> worldListeners = sectionListeners.computeIfAbsent(world.getUID(), uid -> new HashMap<>());
+
+        int i = 0;
+        for(int x = minX; x <= maxX; x++) {
+            for(int y = minY; y <= maxY; y++) {
+                for(int z = minZ; z <= maxZ; z++) {
+                    long section = SectionPosition.pack(x, y, z);
+                    worldListeners.computeIfAbsent(section, key -> new ArrayList<>(1)).add(listener);
+                    sections[i] = section;
+                    i++;
+                }
+            }
+        }
+
+        subscriptions.computeIfAbsent(listener, key -> new ArrayList<>(2)).add(new Subscription(world.getUID(), sections));
+        logger.finer("Subscribed to block changes in %d sections", sections.length);
+    }
+
+    /**
+     * Removes every subscription of <code>listener</code>. Does nothing if it isn't subscribed.
+     * @param listener The listener to unsubscribe
+     */
+    public void unsubscribe(@NotNull IBlockChangeListener listener) {
+        List<Subscription> listenerSubscriptions = subscriptions.remove(listener);
+        if(listenerSubscriptions == null) {return;}
+
+        for(Subscription subscription : listenerSubscriptions) {
+            Map<Long, List<IBlockChangeListener>> worldListeners = sectionListeners.get(subscription.worldId);
+            if(worldListeners == null) {continue;}
+
+            for(long section : subscription.sections) {
+                List<IBlockChangeListener> listeners = worldListeners.get(section);
+                if(listeners == null) {continue;}
+
+                listeners.remove(listener);
+                if(listeners.isEmpty()) {
+                    worldListeners.remove(section);
+                }
+            }
+
+            if(worldListeners.isEmpty()) {
+                sectionListeners.remove(subscription.worldId);
+            }
+        }
+    }
+
+    /**
+     * Notifies any listeners subscribed to the section containing the given position that it has changed.
+     * @param world World containing the block
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     */
+    public void onBlockChange(@NotNull World world, int x, int y, int z) {
+        Map<Long, List<IBlockChangeListener>> worldListeners = sectionListeners.get(world.getUID());
+        if(worldListeners == null) {return;}
+
+        List<IBlockChangeListener> listeners = worldListeners.get(SectionPosition.fromBlock(x, y, z));
+        if(listeners == null) {return;}
+
+        // Indexed loop, since listeners may unsubscribe while being notified
+        for(int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onBlockChange(world, x, y, z);
+        }
+    }
+
+    public void onBlockChange(@NotNull Block block) {
+        onBlockChange(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * @param world World to check
+     * @return Whether any listener is subscribed to a section in <code>world</code>
+     */
+    public boolean hasListeners(@NotNull World world) {
+        return sectionListeners.containsKey(world.getUID());
+    }
+}
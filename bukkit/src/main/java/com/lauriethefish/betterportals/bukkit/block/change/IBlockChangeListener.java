@@ -0,0 +1,19 @@
+package com.lauriethefish.betterportals.bukkit.block.change;
+
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the positions of changed blocks within the areas it is subscribed to in {@link BlockChangeIndex}.
+ */
+public interface IBlockChangeListener {
+    /**
+     * Called on the main thread when a block within a subscribed area may have changed.
+     * This is called from block events, so the change may not have been applied to the world yet.
+     * @param world World containing the block
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     */
+    void onBlockChange(@NotNull World world, int x, int y, int z);
+}
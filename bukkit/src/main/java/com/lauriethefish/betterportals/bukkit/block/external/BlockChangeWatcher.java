@@ -3,58 +3,189 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.IntVector;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.block.change.BlockChangeIndex;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeListener;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.IntRotationMatrix;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangeBatch;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
-import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
-public class BlockChangeWatcher implements IBlockChangeWatcher  {
-    private final IntVector center;
-    private final Matrix rotationMatrix;
+/**
+ * Watches the area around the destination of an external portal for changes.
+ * The world position of every block in the area is worked out once, then the blocks are grouped by chunk section.
+ * Only sections that have been reported as changed by {@link BlockChangeIndex} are re-read, so an unchanged area costs almost nothing to check.
+ * Not every change fires an event, so every block is re-read every {@link RenderConfig#getFullBlockCheckInterval()} ticks.
+ * This is only used on the main thread.
+ */
+public class BlockChangeWatcher implements IBlockChangeWatcher, IBlockChangeListener {
+    private static final int NO_PREVIOUS_ID = -1;
+
+    private final Logger logger;
+    private final BlockChangeIndex changeIndex;
     private World world;
 
-    private final int xAndZRadius;
-    private final int yRadius;
+    // World position of each block in the area
+    private final int[] blockX;
+    private final int[] blockY;
+    private final int[] blockZ;
+    // Combined ID of each block when it was last read
+    private final int[] previousIds;
+
+    // Bounds of the sections containing the area, in section coordinates
+    private final int minSectionX;
+    private final int minSectionY;
+    private final int minSectionZ;
+    private final int sectionCountX;
+    private final int sectionCountY;
+    private final int sectionCountZ;
 
-    private final Map<IntVector, BlockData> previousData = new HashMap<>();
+    // Indices of the blocks in each section are at sectionIndices[sectionStart[section]] to sectionIndices[sectionStart[section + 1] - 1]
+    private final int[] sectionStart;
+    private final int[] sectionIndices;
+    private final boolean[] dirtySections;
+    private boolean anyDirty = true;
+
+    private final long fullCheckIntervalMillis;
+    private long lastFullCheck;
 
     @Inject
-    public BlockChangeWatcher(@Assisted GetBlockDataChangesRequest request) {
-        this.center = request.getPosition();
-        this.rotationMatrix = request.getRotateOriginToDest();
-        this.xAndZRadius = request.getXAndZRadius();
-        this.yRadius = request.getYRadius();
+    public BlockChangeWatcher(@Assisted GetBlockDataChangesRequest request, Logger logger, BlockChangeIndex changeIndex, RenderConfig renderConfig) {
+        this.logger = logger;
+        this.changeIndex = changeIndex;
+        this.fullCheckIntervalMillis = renderConfig.getFullBlockCheckInterval() * 50L;
         this.world = Bukkit.getWorld(request.getWorldId());
         if(world == null) {
             this.world = Bukkit.getWorld(request.getWorldName());
         }
-    }
 
-    public @NotNull Map<IntVector, Integer> checkForChanges() {
-        Map<IntVector, Integer> result = new HashMap<>();
+        IntVector center = request.getPosition();
+        IntRotationMatrix rotation = new IntRotationMatrix(request.getRotateOriginToDest());
+        int xAndZRadius = request.getXAndZRadius();
+        int yRadius = request.getYRadius();
 
-        for(int x = -xAndZRadius; x <= xAndZRadius ; x++) {
+        int blockCount = (xAndZRadius * 2 + 1) * (xAndZRadius * 2 + 1) * (yRadius * 2 + 1);
+        blockX = new int[blockCount];
+        blockY = new int[blockCount];
+        blockZ = new int[blockCount];
+        previousIds = new int[blockCount];
+        Arrays.fill(previousIds, NO_PREVIOUS_ID);
+
+        int minX = Integer.MAX_VALUE; int minY = Integer.MAX_VALUE; int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE; int maxY = Integer.MIN_VALUE; int maxZ = Integer.MIN_VALUE;
+        int i = 0;
+        for(int x = -xAndZRadius; x <= xAndZRadius; x++) {
             for(int z = -xAndZRadius; z <= xAndZRadius; z++) {
                 for(int y = -yRadius; y <= yRadius; y++) {
-                    IntVector blockPos = rotationMatrix.transform(new IntVector(x, y, z)).add(center);
+                    int worldX = rotation.transformX(x, y, z) + center.getX();
+                    int worldY = rotation.transformY(x, y, z) + center.getY();
+                    int worldZ = rotation.transformZ(x, y, z) + center.getZ();
+                    blockX[i] = worldX;
+                    blockY[i] = worldY;
+                    blockZ[i] = worldZ;
+
+                    minX = Math.min(minX, worldX); minY = Math.min(minY, worldY); minZ = Math.min(minZ, worldZ);
+                    maxX = Math.max(maxX, worldX); maxY = Math.max(maxY, worldY); maxZ = Math.max(maxZ, worldZ);
+                    i++;
+                }
+            }
+        }
+
+        minSectionX = minX >> 4; minSectionY = minY >> 4; minSectionZ = minZ >> 4;
+        sectionCountX = (maxX >> 4) - minSectionX + 1;
+        sectionCountY = (maxY >> 4) - minSectionY + 1;
+        sectionCountZ = (maxZ >> 4) - minSectionZ + 1;
+        int sectionCount = sectionCountX * sectionCountY * sectionCountZ;
+
+        // Count the blocks in each section, then turn the counts into start offsets so that the indices can be placed
+        int[] blockSections = new int[blockCount];
+        sectionStart = new int[sectionCount + 1];
+        for(i = 0; i < blockCount; i++) {
+            int section = getLocalSection(blockX[i], blockY[i], blockZ[i]);
+            blockSections[i] = section;
+            sectionStart[section + 1]++;
+        }
+        for(int section = 0; section < sectionCount; section++) {
+            sectionStart[section + 1] += sectionStart[section];
+        }
+
+        sectionIndices = new int[blockCount];
+        int[] nextSlot = Arrays.copyOf(sectionStart, sectionCount);
+        for(i = 0; i < blockCount; i++) {
+            sectionIndices[nextSlot[blockSections[i]]++] = i;
+        }
 
-                    BlockData data = blockPos.getBlock(world).getBlockData();
-                    BlockData oldData = previousData.get(blockPos);
+        // Every block is sent the first time that changes are checked
+        dirtySections = new boolean[sectionCount];
+        Arrays.fill(dirtySections, true);
 
-                    if(!data.equals(oldData)) {
-                        result.put(blockPos, BlockDataUtil.getCombinedId(data));
-                        previousData.put(blockPos, data);
-                    }
+        if(world != null) {
+            changeIndex.subscribe(world, new IntVector(minX, minY, minZ), new IntVector(maxX, maxY, maxZ), this);
+        }
+        logger.finer("Created block change watcher over %d blocks in %d sections", blockCount, sectionCount);
+    }
+
+    private int getLocalSection(int x, int y, int z) {
+        return ((x >> 4) - minSectionX) + ((z >> 4) - minSectionZ) * sectionCountX + ((y >> 4) - minSectionY) * sectionCountX * sectionCountZ;
+    }
+
+    @Override
+    public void onBlockChange(@NotNull World world, int x, int y, int z) {
+        int sectionX = (x >> 4) - minSectionX;
+        int sectionY = (y >> 4) - minSectionY;
+        int sectionZ = (z >> 4) - minSectionZ;
+        if(sectionX < 0 || sectionX >= sectionCountX || sectionY < 0 || sectionY >= sectionCountY || sectionZ < 0 || sectionZ >= sectionCountZ) {return;}
+
+        dirtySections[getLocalSection(x, y, z)] = true;
+        anyDirty = true;
+    }
+
+    @Override
+    public int checkForChanges(@NotNull BlockChangeBatch.Encoder encoder) {
+        long now = System.currentTimeMillis();
+        boolean fullCheck = now - lastFullCheck >= fullCheckIntervalMillis;
+        if(fullCheck) {
+            lastFullCheck = now;
+        }   else if(!anyDirty) {
+            return 0;
+        }
+
+        int checkedSections = 0;
+        int changeCount = 0;
+        for(int section = 0; section < dirtySections.length; section++) {
+            if(!fullCheck && !dirtySections[section]) {continue;}
+            dirtySections[section] = false;
+            if(sectionStart[section] == sectionStart[section + 1]) {continue;}
+            checkedSections++;
+
+            int firstIndex = sectionIndices[sectionStart[section]];
+            encoder.beginSection(blockX[firstIndex] >> 4, blockY[firstIndex] >> 4, blockZ[firstIndex] >> 4);
+            for(int i = sectionStart[section]; i < sectionStart[section + 1]; i++) {
+                int index = sectionIndices[i];
+                int combinedId = BlockDataUtil.getCombinedId(world.getBlockAt(blockX[index], blockY[index], blockZ[index]).getBlockData());
+
+                if(combinedId != previousIds[index]) {
+                    previousIds[index] = combinedId;
+                    encoder.addChange(blockX[index], blockY[index], blockZ[index], combinedId);
+                    changeCount++;
                 }
             }
+            encoder.endSection();
         }
+        anyDirty = false;
+
+        logger.finest("Checked %d sections for changes (full check: %b)", checkedSections, fullCheck);
+        return changeCount;
+    }
 
-        return result;
+    @Override
+    public void close() {
+        changeIndex.unsubscribe(this);
     }
 }
@@ -2,9 +2,13 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangeBatch;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangesLeaseRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import com.lauriethefish.betterportals.bukkit.net.requests.PushBlockDataChangesRequest;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.Response;
 
 import java.time.Duration;
@@ -17,51 +21,126 @@ import java.util.function.Consumer;
 
 @Singleton
 public class ExternalBlockWatcherManager implements IExternalBlockWatcherManager    {
-    /**
-     * Number of seconds before clearing block watchers due to inactivity
-     */
-    private static final int BLOCK_WATCHER_CLEAR_DELAY = 5;
-
     private final Logger logger;
     private final IBlockChangeWatcher.Factory blockChangeWatcherFactory;
-    private final Map<UUID, IBlockChangeWatcher> watchers = new HashMap<>();
-    private final Map<UUID, Instant> lastRequested = new HashMap<>();
+    private final IPortalClient portalClient;
+    private final Map<UUID, Subscription> subscriptions = new HashMap<>();
+    // Reused for every batch, since batches are only encoded on the main thread
+    private final BlockChangeBatch.Encoder encoder = new BlockChangeBatch.Encoder();
+
+    private static class Subscription {
+        private final UUID changeSetId;
+        private IBlockChangeWatcher watcher;
+        private String originServer;
+        private Instant lastRenewed;
+        // Kept when the subscription is reset, so that batches sent before a reset are always older than the ones after it
+        private int nextSequence = 0;
+        // Set if pushing changes failed. The response may arrive on another thread, so the subscription is removed in the next update
+        private volatile boolean pushFailed = false;
+
+        private Subscription(UUID changeSetId) {
+            this.changeSetId = changeSetId;
+        }
+    }
 
     @Inject
-    public ExternalBlockWatcherManager(Logger logger, IBlockChangeWatcher.Factory blockChangeWatcherFactory) {
+    public ExternalBlockWatcherManager(Logger logger, IBlockChangeWatcher.Factory blockChangeWatcherFactory, IPortalClient portalClient) {
         this.logger = logger;
         this.blockChangeWatcherFactory = blockChangeWatcherFactory;
+        this.portalClient = portalClient;
     }
 
     @Override
     public void onRequestReceived(GetBlockDataChangesRequest request, Consumer<Response> onFinish) {
-        logger.finer("Processing block changes with ID %s", request.getChangeSetId());
-        UUID watcherId = request.getChangeSetId();
-        IBlockChangeWatcher watcher = watchers.computeIfAbsent(watcherId, key -> blockChangeWatcherFactory.create(request));
-        lastRequested.put(request.getChangeSetId(), Instant.now());
+        logger.finer("Processing block change subscription with ID %s", request.getChangeSetId());
+        Subscription subscription = subscriptions.computeIfAbsent(request.getChangeSetId(), Subscription::new);
 
-        Response response = new Response();
-        Map<IntVector, Integer> changes = watcher.checkForChanges();
-        logger.finer("Change count: %d", changes.size());
+        // Resubscribing means that the origin missed some changes, so start again with every block
+        if(subscription.watcher != null) {
+            logger.fine("Resetting block change subscription with ID %s", request.getChangeSetId());
+            subscription.watcher.close();
+        }
+        subscription.watcher = blockChangeWatcherFactory.create(request);
+        subscription.originServer = request.getOriginServer();
+        subscription.lastRenewed = Instant.now();
+        subscription.pushFailed = false;
+
+        subscription.watcher.checkForChanges(encoder);
+        BlockChangeBatch batch = encoder.finish(subscription.nextSequence++);
+        logger.finer("Initial block count: %d. Encoded size: %d bytes", batch.getChangeCount(), batch.getEncodedSize());
 
-        response.setResult(changes);
+        Response response = new Response();
+        response.setResult(batch);
         onFinish.accept(response);
     }
 
+    @Override
+    public void onLeaseRequestReceived(BlockChangesLeaseRequest request, Consumer<Response> onFinish) throws RequestException {
+        Subscription subscription = subscriptions.get(request.getChangeSetId());
+        if(subscription == null) {
+            throw new RequestException(String.format("No block change subscription exists with ID %s", request.getChangeSetId()));
+        }
+
+        if(request.isRelease()) {
+            logger.fine("Block change subscription with ID %s was released", request.getChangeSetId());
+            remove(subscription);
+        }   else    {
+            subscription.lastRenewed = Instant.now();
+        }
+
+        onFinish.accept(new Response());
+    }
+
     @Override
     public void update() {
-        // Clear any watchers that are inactive
         Instant now = Instant.now();
-        Iterator<Map.Entry<UUID, Instant>> iterator = lastRequested.entrySet().iterator();
+        Iterator<Subscription> iterator = subscriptions.values().iterator();
         while(iterator.hasNext()) {
-            Map.Entry<UUID, Instant> entry = iterator.next();
-            long secondsElapsed = Duration.between(entry.getValue(), now).getSeconds();
-            if(secondsElapsed > BLOCK_WATCHER_CLEAR_DELAY) {
-                logger.fine("Clearing external block watcher due to inactivity");
+            Subscription subscription = iterator.next();
+
+            // Clear any subscriptions if the origin has stopped renewing them, e.g. if it shut down without unsubscribing
+            if(Duration.between(subscription.lastRenewed, now).getSeconds() > LEASE_TIME) {
+                logger.fine("Clearing block change subscription with ID %s since its lease ran out", subscription.changeSetId);
                 iterator.remove();
+                subscription.watcher.close();
+                continue;
+            }
+
+            // The origin will find that the subscription is gone when it next renews the lease, then subscribe again
+            if(subscription.pushFailed) {
+                logger.fine("Clearing block change subscription with ID %s since pushing changes failed", subscription.changeSetId);
+                iterator.remove();
+                subscription.watcher.close();
+                continue;
+            }
+
+            // All of the changes in this tick are sent together
+            if(subscription.watcher.checkForChanges(encoder) > 0) {
+                push(subscription, encoder.finish(subscription.nextSequence++));
+            }
+        }
+    }
+
+    private void push(Subscription subscription, BlockChangeBatch batch) {
+        logger.finer("Pushing %d block changes (%d bytes) with sequence %d to %s", batch.getChangeCount(), batch.getEncodedSize(), batch.getSequence(), subscription.originServer);
 
-                watchers.remove(entry.getKey());
+        PushBlockDataChangesRequest request = new PushBlockDataChangesRequest();
+        request.setChangeSetId(subscription.changeSetId);
+        request.setBatch(batch);
+
+        portalClient.sendRequestToServer(request, subscription.originServer, (response) -> {
+            try {
+                response.checkForErrors();
+            }   catch(RequestException ex) {
+                logger.fine("Failed to push block changes for subscription with ID %s: %s", subscription.changeSetId, ex.getMessage());
+                subscription.pushFailed = true;
             }
+        });
+    }
+
+    private void remove(Subscription subscription) {
+        if(subscriptions.remove(subscription.changeSetId, subscription)) {
+            subscription.watcher.close();
         }
     }
 }
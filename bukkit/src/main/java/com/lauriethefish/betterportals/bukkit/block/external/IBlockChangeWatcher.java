@@ -1,11 +1,9 @@
 package com.lauriethefish.betterportals.bukkit.block.external;
 
-import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangeBatch;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Map;
-
 /**
  * Used to check for changes of blocks at the destination of an external portal, then relay the changes back to the origin.
  * This allows a block data array to be constructed at the origin of the portal, so that cross-server portals can work.
@@ -13,10 +11,16 @@ import java.util.Map;
 public interface IBlockChangeWatcher {
     /**
      * Checks for any changes in the configured area.
-     * This will return all blocks in the area the first time it is called on one instance.
-     * @return The new block data, as an integer.
+     * This will write all blocks in the area the first time it is called on one instance.
+     * @param encoder Written to with the new combined ID of each changed block
+     * @return The number of changed blocks
+     */
+    int checkForChanges(@NotNull BlockChangeBatch.Encoder encoder);
+
+    /**
+     * Stops watching the area. Called when the watcher is no longer needed, since it may be subscribed to block changes.
      */
-    @NotNull Map<IntVector, Integer> checkForChanges();
+    void close();
 
     interface Factory {
         IBlockChangeWatcher create(GetBlockDataChangesRequest request);
@@ -1,25 +1,39 @@
 package com.lauriethefish.betterportals.bukkit.block.external;
 
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangesLeaseRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.Response;
 
 import java.util.function.Consumer;
 
+/**
+ * Manages the subscriptions of other servers to block changes at the destinations of their cross-server portals.
+ */
 public interface IExternalBlockWatcherManager {
     /**
-     * The time of no requests for a particular data array before it gets cleared.
+     * Number of seconds without the lease being renewed before a subscription is removed.
      */
-    double CLEAR_TIME = 10;
+    int LEASE_TIME = 15;
 
     /**
-     * Called whenever a request to fetch the block data changes is received (on the main thread) from an external server.
-     * @param request The change request
-     * @param onFinish Given the response when responding is complete
+     * Called whenever a request to subscribe to block data changes is received (on the main thread) from an external server.
+     * If the subscription already exists, it is reset so that every block is sent again.
+     * @param request The subscription request
+     * @param onFinish Given the response, containing every block in the area, when responding is complete
      */
     void onRequestReceived(GetBlockDataChangesRequest request, Consumer<Response> onFinish);
 
     /**
-     * Removes any external change watchers that are unused.
+     * Called on the main thread when an external server renews or releases a subscription.
+     * @param request The lease request
+     * @param onFinish Given the response when responding is complete
+     * @throws RequestException If the subscription doesn't exist
+     */
+    void onLeaseRequestReceived(BlockChangesLeaseRequest request, Consumer<Response> onFinish) throws RequestException;
+
+    /**
+     * Pushes any changes since the last tick to the subscribed servers, and removes subscriptions whose lease has run out.
      */
     void update();
 }
@@ -12,19 +12,23 @@ public class BlockDataFetcherFactory {
     private final Logger logger;
     private final IPortalClient portalClient;
     private final RenderConfig renderConfig;
+    private final ChunkSnapshotCache snapshotCache;
+    private final ExternalBlockChangeReceiver changeReceiver;
 
     @Inject
-    public BlockDataFetcherFactory(Logger logger, IPortalClient portalClient, RenderConfig renderConfig) {
+    public BlockDataFetcherFactory(Logger logger, IPortalClient portalClient, RenderConfig renderConfig, ChunkSnapshotCache snapshotCache, ExternalBlockChangeReceiver changeReceiver) {
         this.logger = logger;
         this.portalClient = portalClient;
         this.renderConfig = renderConfig;
+        this.snapshotCache = snapshotCache;
+        this.changeReceiver = changeReceiver;
     }
 
     public IBlockDataFetcher create(IPortal portal) {
         if(portal.isCrossServer()) {
-            return new ExternalBlockDataFetcher(logger, portalClient, renderConfig, portal);
+            return new ExternalBlockDataFetcher(logger, portalClient, changeReceiver, renderConfig, portal);
         }   else    {
-            return new LocalBlockDataFetcher(portal);
+            return new LocalBlockDataFetcher(portal, renderConfig, snapshotCache);
         }
     }
 }
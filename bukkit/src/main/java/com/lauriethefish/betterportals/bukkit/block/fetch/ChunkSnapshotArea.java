@@ -0,0 +1,195 @@
+package com.lauriethefish.betterportals.bukkit.block.fetch;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Stores {@link ChunkSnapshot}s of every chunk within a square area of a world.
+ * Reading blocks from the snapshots avoids going through the world's chunk map for every block, and is safe to do from any thread once captured.
+ * Bukkit only allows snapshotting whole chunks, so every section of the chunks in the area is captured.
+ * Since that is expensive, chunks with changed blocks can be marked with {@link ChunkSnapshotArea#markChanged(int, int)}, then only those are captured again by {@link ChunkSnapshotArea#captureChanged()}.
+ * Snapshots are shared with other areas containing the same chunks through the {@link ChunkSnapshotCache}, so {@link ChunkSnapshotArea#release()} must be called once the area is no longer used.
+ */
+public class ChunkSnapshotArea {
+    // Returned for positions above or below the world, as Bukkit does for blocks there
+    private static final BlockData OUTSIDE_WORLD_DATA = Bukkit.createBlockData(Material.VOID_AIR);
+
+    private final ChunkSnapshotCache snapshotCache;
+    @Getter private final World world;
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int widthChunks;
+    private final int lengthChunks;
+    private final int minHeight;
+    private final int maxHeight;
+
+    private volatile ChunkSnapshot[] snapshots;
+    private boolean acquired = false;
+
+    // Chunks containing blocks that have changed since they were last captured
+    private final boolean[] changedChunks;
+    private boolean anyChanged = false;
+
+    /**
+     * Creates a new area containing the box rendered around <code>center</code>.
+     * The box may be rotated at the destination (e.g. for horizontal portals), and the center can be rounded differently to the block map, so the largest dimension is used plus one block.
+     * @param snapshotCache Cache to share snapshots with other areas
+     * @param world World to snapshot the chunks of
+     * @param center Center of the area
+     * @param renderConfig Used to find the size of the box from {@link RenderConfig#getHalfFullSize()}
+     */
+    public ChunkSnapshotArea(@NotNull ChunkSnapshotCache snapshotCache, @NotNull World world, @NotNull IntVector center, @NotNull RenderConfig renderConfig) {
+        this(snapshotCache, world, center, getRadius(renderConfig.getHalfFullSize()));
+    }
+
+    private static int getRadius(IntVector halfFullSize) {
+        return Math.max(halfFullSize.getX(), Math.max(halfFullSize.getY(), halfFullSize.getZ())) + 1;
+    }
+
+    /**
+     * Creates a new area containing the box around <code>center</code>.
+     * Nothing is captured until {@link ChunkSnapshotArea#capture()} is called.
+     * @param snapshotCache Cache to share snapshots with other areas
+     * @param world World to snapshot the chunks of
+     * @param center Center of the area
+     * @param radius Distance from the center of the box to each edge on the X and Z axes
+     */
+    public ChunkSnapshotArea(@NotNull ChunkSnapshotCache snapshotCache, @NotNull World world, @NotNull IntVector center, int radius) {
+        this.snapshotCache = snapshotCache;
+        this.world = world;
+        this.minChunkX = (center.getX() - radius) >> 4;
+        this.minChunkZ = (center.getZ() - radius) >> 4;
+        this.widthChunks = ((center.getX() + radius) >> 4) - minChunkX + 1;
+        this.lengthChunks = ((center.getZ() + radius) >> 4) - minChunkZ + 1;
+        this.minHeight = HeightUtil.getMinHeight(world);
+        this.maxHeight = HeightUtil.getMaxHeight(world);
+        this.changedChunks = new boolean[widthChunks * lengthChunks];
+    }
+
+    /**
+     * Finds a snapshot from the current block update interval of every chunk in the area. This must be called on the main thread.
+     * Chunks already snapshotted during the interval by another area are reused.
+     */
+    public void capture() {
+        if(!acquired) {
+            forEachChunk((chunkX, chunkZ) -> snapshotCache.acquire(world, chunkX, chunkZ));
+            acquired = true;
+        }
+
+        ChunkSnapshot[] newSnapshots = new ChunkSnapshot[widthChunks * lengthChunks];
+        for(int z = 0; z < lengthChunks; z++) {
+            for(int x = 0; x < widthChunks; x++) {
+                newSnapshots[x + z * widthChunks] = snapshotCache.getRecentSnapshot(world, minChunkX + x, minChunkZ + z);
+            }
+        }
+
+        // Replace the array in one go so that readers on other threads never see a partial capture
+        snapshots = newSnapshots;
+        Arrays.fill(changedChunks, false);
+        anyChanged = false;
+    }
+
+    /**
+     * Marks the chunk containing the given block to be captured again by the next {@link ChunkSnapshotArea#captureChanged()}.
+     * The cached snapshot is dropped as well, so that areas sharing the chunk don't reuse it after the change.
+     * Does nothing if the block is outside the area. This must be called on the main thread.
+     * @param x X coordinate of the changed block
+     * @param z Z coordinate of the changed block
+     */
+    public void markChanged(int x, int z) {
+        int chunkX = (x >> 4) - minChunkX;
+        int chunkZ = (z >> 4) - minChunkZ;
+        if(chunkX < 0 || chunkX >= widthChunks || chunkZ < 0 || chunkZ >= lengthChunks) {return;}
+
+        // Other areas containing this chunk may have captured it since this area last did, so the cache is told about every change
+        snapshotCache.invalidate(world, minChunkX + chunkX, minChunkZ + chunkZ);
+        changedChunks[chunkX + chunkZ * widthChunks] = true;
+        anyChanged = true;
+    }
+
+    /**
+     * Captures only the chunks marked with {@link ChunkSnapshotArea#markChanged(int, int)} since the last capture, keeping the existing snapshots of the others.
+     * Captures every chunk if nothing has been captured yet. This must be called on the main thread.
+     */
+    public void captureChanged() {
+        if(snapshots == null) {
+            capture();
+            return;
+        }
+        if(!anyChanged) {return;}
+
+        ChunkSnapshot[] newSnapshots = snapshots.clone();
+        for(int i = 0; i < changedChunks.length; i++) {
+            if(!changedChunks[i]) {continue;}
+
+            newSnapshots[i] = snapshotCache.getSnapshot(world, minChunkX + i % widthChunks, minChunkZ + i / widthChunks);
+            changedChunks[i] = false;
+        }
+        anyChanged = false;
+
+        snapshots = newSnapshots;
+    }
+
+    /**
+     * Releases this area's references to its chunks in the {@link ChunkSnapshotCache}. This must be called on the main thread.
+     * Snapshots that were already captured can still be read afterwards.
+     */
+    public void release() {
+        if(!acquired) {return;}
+
+        forEachChunk((chunkX, chunkZ) -> snapshotCache.release(world, chunkX, chunkZ));
+        acquired = false;
+    }
+
+    private void forEachChunk(ChunkConsumer consumer) {
+        for(int z = 0; z < lengthChunks; z++) {
+            for(int x = 0; x < widthChunks; x++) {
+                consumer.accept(minChunkX + x, minChunkZ + z);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ChunkConsumer {
+        void accept(int chunkX, int chunkZ);
+    }
+
+    /**
+     * @return Whether {@link ChunkSnapshotArea#capture()} has been called at least once
+     */
+    public boolean isCaptured() {
+        return snapshots != null;
+    }
+
+    /**
+     * Reads the block data at the given position from the last captured snapshots.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @return The block data at that position
+     * @throws IllegalArgumentException If the position is outside the captured area
+     */
+    public @NotNull BlockData getData(int x, int y, int z) {
+        if(y < minHeight || y >= maxHeight) {
+            return OUTSIDE_WORLD_DATA;
+        }
+
+        int chunkX = (x >> 4) - minChunkX;
+        int chunkZ = (z >> 4) - minChunkZ;
+        if(chunkX < 0 || chunkX >= widthChunks || chunkZ < 0 || chunkZ >= lengthChunks) {
+            throw new IllegalArgumentException(String.format("Position (%d, %d, %d) is outside the snapshot area", x, y, z));
+        }
+
+        return snapshots[chunkX + chunkZ * widthChunks].getBlockData(x & 15, y, z & 15);
+    }
+}
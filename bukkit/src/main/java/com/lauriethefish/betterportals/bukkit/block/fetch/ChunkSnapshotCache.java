@@ -0,0 +1,153 @@
+package com.lauriethefish.betterportals.bukkit.block.fetch;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Shares chunk snapshots between every {@link ChunkSnapshotArea} that contains the same chunk.
+ * Portals that look at overlapping areas (e.g. many portals into the same spawn, or both sides of a portal in the same world) then only snapshot each chunk once, even if they update on different ticks.
+ * A snapshot is kept until a block in its chunk changes, at which point the cache drops it, so the cache never holds on to an out of date snapshot.
+ * Not every change fires an event, so snapshots used to check every block are taken again if they are from before the current block update interval.
+ * Entries are reference counted, and are removed once the last area using them is released, which happens when its portal deactivates.
+ * This must only be used on the main thread.
+ */
+@Singleton
+public class ChunkSnapshotCache {
+    private final RenderConfig renderConfig;
+
+    private final Map<UUID, Map<Long, Entry>> entries = new HashMap<>();
+    private int currentTick = 0;
+
+    private static class Entry {
+        private int refCount;
+        // Null until captured, and after a block in the chunk changes
+        private ChunkSnapshot snapshot;
+        private int capturedTick;
+    }
+
+    @Inject
+    public ChunkSnapshotCache(RenderConfig renderConfig) {
+        this.renderConfig = renderConfig;
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Called every tick, so that the cache knows when a new block update interval starts.
+     */
+    public void update() {
+        currentTick++;
+    }
+
+    /**
+     * Adds a reference to the given chunk, so that its snapshot is kept until {@link ChunkSnapshotCache#release(World, int, int)} is called.
+     * @param world World containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     */
+    public void acquire(@NotNull World world, int chunkX, int chunkZ) {
+        entries.computeIfAbsent(world.getUID(), uid -> new HashMap<>())
+                .computeIfAbsent(getChunkKey(chunkX, chunkZ), key -> new Entry())
+                .refCount++;
+    }
+
+    /**
+     * Removes a reference to the given chunk. Once there are no references left, its snapshot is evicted.
+     * @param world World containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     */
+    public void release(@NotNull World world, int chunkX, int chunkZ) {
+        Map<Long, Entry> worldEntries = entries.get(world.getUID());
+        if(worldEntries == null) {return;}
+
+        long key = getChunkKey(chunkX, chunkZ);
+        Entry entry = worldEntries.get(key);
+        if(entry == null) {return;}
+
+        entry.refCount--;
+        if(entry.refCount <= 0) {
+            worldEntries.remove(key);
+            if(worldEntries.isEmpty()) {
+                entries.remove(world.getUID());
+            }
+        }
+    }
+
+    /**
+     * Drops the snapshot of the given chunk, if it is cached, since a block in it has changed.
+     * Areas that have already captured the snapshot keep reading it until they capture the chunk again.
+     * @param world World containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     */
+    public void invalidate(@NotNull World world, int chunkX, int chunkZ) {
+        Map<Long, Entry> worldEntries = entries.get(world.getUID());
+        if(worldEntries == null) {return;}
+
+        Entry entry = worldEntries.get(getChunkKey(chunkX, chunkZ));
+        if(entry != null) {
+            entry.snapshot = null;
+        }
+    }
+
+    /**
+     * Finds the snapshot of the given chunk, taking a new one if there isn't one or a block in it has changed since it was taken.
+     * @param world World containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return A snapshot of the chunk, which includes every change reported to {@link ChunkSnapshotCache#invalidate(World, int, int)}
+     * @throws IllegalStateException If the chunk hasn't been acquired
+     */
+    public @NotNull ChunkSnapshot getSnapshot(@NotNull World world, int chunkX, int chunkZ) {
+        Entry entry = getEntry(world, chunkX, chunkZ);
+        if(entry.snapshot == null) {
+            capture(entry, world, chunkX, chunkZ);
+        }
+
+        return entry.snapshot;
+    }
+
+    /**
+     * Finds a snapshot of the given chunk taken during the current block update interval, which also includes changes that didn't fire an event.
+     * The interval is counted from the same tick for every portal, rather than from when each portal was activated, so portals that check every block on different ticks can still share snapshots.
+     * @param world World containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return A recent snapshot of the chunk
+     * @throws IllegalStateException If the chunk hasn't been acquired
+     */
+    public @NotNull ChunkSnapshot getRecentSnapshot(@NotNull World world, int chunkX, int chunkZ) {
+        Entry entry = getEntry(world, chunkX, chunkZ);
+        int intervalStart = currentTick - currentTick % renderConfig.getBlockUpdateInterval();
+        if(entry.snapshot == null || entry.capturedTick < intervalStart) {
+            capture(entry, world, chunkX, chunkZ);
+        }
+
+        return entry.snapshot;
+    }
+
+    private @NotNull Entry getEntry(@NotNull World world, int chunkX, int chunkZ) {
+        Map<Long, Entry> worldEntries = entries.get(world.getUID());
+        Entry entry = worldEntries == null ? null : worldEntries.get(getChunkKey(chunkX, chunkZ));
+        if(entry == null) {
+            throw new IllegalStateException(String.format("Chunk (%d, %d) was not acquired before fetching its snapshot", chunkX, chunkZ));
+        }
+        return entry;
+    }
+
+    private void capture(Entry entry, World world, int chunkX, int chunkZ) {
+        entry.snapshot = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+        entry.capturedTick = currentTick;
+    }
+}
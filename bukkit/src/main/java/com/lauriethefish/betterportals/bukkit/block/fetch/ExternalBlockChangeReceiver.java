@@ -0,0 +1,54 @@
+package com.lauriethefish.betterportals.bukkit.block.fetch;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.net.requests.PushBlockDataChangesRequest;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Passes block changes pushed by the destinations of cross-server portals to the {@link ExternalBlockDataFetcher} that subscribed to them.
+ * This is only used on the main thread.
+ */
+@Singleton
+public class ExternalBlockChangeReceiver {
+    private final Logger logger;
+    private final Map<UUID, ExternalBlockDataFetcher> fetchers = new HashMap<>();
+
+    @Inject
+    public ExternalBlockChangeReceiver(Logger logger) {
+        this.logger = logger;
+    }
+
+    public void register(@NotNull UUID changeSetId, @NotNull ExternalBlockDataFetcher fetcher) {
+        fetchers.put(changeSetId, fetcher);
+    }
+
+    public void unregister(@NotNull UUID changeSetId) {
+        fetchers.remove(changeSetId);
+    }
+
+    /**
+     * Called on the main thread when a destination server pushes block changes.
+     * @param request The pushed changes
+     * @param onFinish Given the response when the changes have been applied
+     * @throws RequestException If no fetcher is subscribed with the request's change set ID, so that the destination stops sending changes
+     */
+    public void onChangesReceived(@NotNull PushBlockDataChangesRequest request, @NotNull Consumer<Response> onFinish) throws RequestException {
+        ExternalBlockDataFetcher fetcher = fetchers.get(request.getChangeSetId());
+        if(fetcher == null) {
+            logger.fine("Received block changes for unknown subscription %s", request.getChangeSetId());
+            throw new RequestException(String.format("No block change subscription exists with ID %s", request.getChangeSetId()));
+        }
+
+        fetcher.onBatchReceived(request.getBatch());
+        onFinish.accept(new Response());
+    }
+}
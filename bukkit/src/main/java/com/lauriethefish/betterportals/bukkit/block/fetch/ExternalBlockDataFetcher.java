@@ -1,37 +1,88 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.IntRotationMatrix;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangeBatch;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangesLeaseRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.RequestException;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
 
 /**
- * Fetches the block data for external portals by sending a request to the destination server.
+ * Fetches the block data for external portals by subscribing to the block changes at the destination server.
+ * The destination sends every block in response to the subscription, then pushes each tick's changes as a numbered {@link BlockChangeBatch}.
+ * If a batch is missed, the fetcher subscribes again to get every block.
+ * <br>Blocks are stored in an array with the same layout as the block array of {@link com.lauriethefish.betterportals.bukkit.block.FloodFillBlockMap}, indexed by the position relative to the destination, rotated back to the origin.
+ * Changes are applied on the main thread while a flood fill may be reading on another thread, so the indices of changed blocks are recorded until they are taken with {@link ExternalBlockDataFetcher#pollChanges(ChangeConsumer)}.
+ * Everything except {@link ExternalBlockDataFetcher#getData(int, int, int)} is called on the main thread.
  */
 public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
+    /**
+     * Number of milliseconds between renewing the subscription's lease, well within {@link IExternalBlockWatcherManager#LEASE_TIME}
+     */
+    private static final long LEASE_RENEW_INTERVAL = IExternalBlockWatcherManager.LEASE_TIME * 1000L / 3;
+
     private final Logger logger;
     private final IPortalClient portalClient;
+    private final ExternalBlockChangeReceiver changeReceiver;
     private final GetBlockDataChangesRequest request;
     private final String destServerName;
 
-    private final Map<IntVector, BlockData> currentStates = new HashMap<>();
+    private final RenderConfig renderConfig;
+    private final IntVector center;
+    private final IntRotationMatrix rotateOriginToDest;
+    private final IntRotationMatrix rotateDestToOrigin;
+    private final int maxXZ;
+    private final int maxY;
+
+    private final BlockData[] currentStates;
     private volatile boolean hasFirstRequestFinished = false;
-    private volatile boolean hasPreviousRequestFinished = true;
 
-    public ExternalBlockDataFetcher(Logger logger, IPortalClient portalClient, RenderConfig renderConfig, IPortal portal) {
+    // Indices of blocks changed since the last poll
+    private final BitSet changedBlocks;
+    private final IntList changedIndices = new IntList();
+
+    // Every block with the same combined ID shares one instance, indexed by combined ID
+    private BlockData[] internedData = new BlockData[256];
+
+    private boolean isSubscribed = false;
+    private boolean isSubscribing = false;
+    private boolean isRenewingLease = false;
+    private boolean isReleased = false;
+    private long lastLeaseRenewal;
+    private int nextSequence;
+
+    // Batches received while subscribing, which might be newer than the response to the subscription
+    private final List<BlockChangeBatch> pendingBatches = new ArrayList<>();
+
+    public ExternalBlockDataFetcher(Logger logger, IPortalClient portalClient, ExternalBlockChangeReceiver changeReceiver, RenderConfig renderConfig, IPortal portal) {
         this.logger = logger;
         this.portalClient = portalClient;
+        this.changeReceiver = changeReceiver;
+        this.renderConfig = renderConfig;
         this.destServerName = portal.getDestPos().getServerName();
+        this.center = new IntVector(portal.getDestPos().getVector());
+        this.rotateOriginToDest = new IntRotationMatrix(portal.getTransformations().getRotateToDestination());
+        this.rotateDestToOrigin = new IntRotationMatrix(portal.getTransformations().getRotateToOrigin());
+        this.maxXZ = (int) renderConfig.getMaxXZ();
+        this.maxY = (int) renderConfig.getMaxY();
+        this.currentStates = new BlockData[renderConfig.getTotalArrayLength()];
+        this.changedBlocks = new BitSet(currentStates.length);
 
         this.request = new GetBlockDataChangesRequest();
         request.setYRadius((int) renderConfig.getMaxY());
@@ -39,28 +90,54 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
         request.setChangeSetId(UUID.randomUUID());
         request.setWorldName(portal.getDestPos().getWorldName());
         request.setWorldId(portal.getDestPos().getWorldId());
-        request.setPosition(new IntVector(portal.getDestPos().getVector()));
+        request.setPosition(center);
         request.setRotateOriginToDest(portal.getTransformations().getRotateToDestination());
+
+        changeReceiver.register(request.getChangeSetId(), this);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void update() {
-        if(!hasPreviousRequestFinished) {
-            logger.fine("Still awaiting block data response");
+        if(isReleased) {return;}
+
+        if(!isSubscribed) {
+            if(isSubscribing) {
+                logger.fine("Still awaiting block data response");
+            }   else    {
+                subscribe();
+            }
             return;
         }
 
-        hasPreviousRequestFinished = false;
+        if(!isRenewingLease && System.currentTimeMillis() - lastLeaseRenewal >= LEASE_RENEW_INTERVAL) {
+            renewLease();
+        }
+    }
+
+    /**
+     * Subscribes to changes at the destination, which responds with every block in the area.
+     * This is also used to resynchronise if a batch was missed.
+     */
+    private void subscribe() {
+        logger.finer("Subscribing to block changes with ID %s", request.getChangeSetId());
+        isSubscribed = false;
+        isSubscribing = true;
+        pendingBatches.clear();
+
         portalClient.sendRequestToServer(request, destServerName, (response) -> {
-            hasPreviousRequestFinished = true;
-            try {
-                logger.finer("Received response to get block data request");
-                Map<IntVector, Integer> serializedChanges = (Map<IntVector, Integer>) response.getResult();
+            isSubscribing = false;
+            if(isReleased) {return;}
 
-                serializedChanges.forEach((position, newValue) -> currentStates.put(position, BlockDataUtil.getByCombinedId(newValue)));
+            try {
+                logger.finer("Received response to block change subscription");
+                BlockChangeBatch batch = (BlockChangeBatch) response.getResult();
 
+                applyBatch(batch);
+                isSubscribed = true;
+                lastLeaseRenewal = System.currentTimeMillis();
                 hasFirstRequestFinished = true;
+
+                applyPendingBatches();
             }   catch(RequestException ex) {
                 logger.warning("Failed to fetch block changes for external portal: ");
                 ex.printStackTrace();
@@ -68,13 +145,157 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
         });
     }
 
+    private void renewLease() {
+        isRenewingLease = true;
+
+        BlockChangesLeaseRequest leaseRequest = new BlockChangesLeaseRequest();
+        leaseRequest.setChangeSetId(request.getChangeSetId());
+        portalClient.sendRequestToServer(leaseRequest, destServerName, (response) -> {
+            isRenewingLease = false;
+            try {
+                response.checkForErrors();
+                lastLeaseRenewal = System.currentTimeMillis();
+            }   catch(RequestException ex) {
+                // The destination may have restarted or removed the subscription, so subscribe again the next update
+                logger.fine("Failed to renew block change subscription, resubscribing: %s", ex.getMessage());
+                if(!isSubscribing) {
+                    isSubscribed = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the main thread when the destination pushes a batch of changes.
+     * @param batch The changes
+     */
+    void onBatchReceived(BlockChangeBatch batch) {
+        if(isSubscribing) {
+            pendingBatches.add(batch);
+            return;
+        }
+        if(!isSubscribed) {return;}
+
+        if(batch.getSequence() < nextSequence) {
+            logger.finer("Ignoring out of date block change batch %d", batch.getSequence());
+        }   else if(batch.getSequence() == nextSequence) {
+            applyBatch(batch);
+        }   else    {
+            logger.fine("Missed block change batches %d to %d, resubscribing", nextSequence, batch.getSequence() - 1);
+            subscribe();
+        }
+    }
+
+    private void applyPendingBatches() {
+        pendingBatches.sort(Comparator.comparingInt(BlockChangeBatch::getSequence));
+        for(BlockChangeBatch batch : pendingBatches) {
+            if(batch.getSequence() < nextSequence) {continue;}
+
+            if(batch.getSequence() != nextSequence) {
+                logger.fine("Missed block change batch %d while subscribing, resubscribing", nextSequence);
+                subscribe();
+                return;
+            }
+            applyBatch(batch);
+        }
+        pendingBatches.clear();
+    }
+
+    private void applyBatch(BlockChangeBatch batch) {
+        logger.finer("Applying %d block changes with sequence %d", batch.getChangeCount(), batch.getSequence());
+        batch.forEachChange(this::applyChange);
+        nextSequence = batch.getSequence() + 1;
+    }
+
+    private void applyChange(int x, int y, int z, int combinedId) {
+        int index = getArrayIndex(x, y, z);
+        if(index == -1) {return;}
+
+        BlockData data = getInternedData(combinedId);
+        if(currentStates[index] == data) {return;}
+
+        currentStates[index] = data;
+        if(!changedBlocks.get(index)) {
+            changedBlocks.set(index);
+            changedIndices.add(index);
+        }
+    }
+
+    private BlockData getInternedData(int combinedId) {
+        if(combinedId >= internedData.length) {
+            internedData = Arrays.copyOf(internedData, Math.max(internedData.length * 2, combinedId + 1));
+        }
+
+        BlockData data = internedData[combinedId];
+        if(data == null) {
+            data = BlockDataUtil.getByCombinedId(combinedId);
+            internedData[combinedId] = data;
+        }
+        return data;
+    }
+
+    /**
+     * Finds the index of a block at the destination in the block array, using the same layout as {@link RenderConfig#getZMultip()} and {@link RenderConfig#getYMultip()}.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @return The index, or -1 if the block is outside the fetched area
+     */
+    private int getArrayIndex(int x, int y, int z) {
+        int destRelX = x - center.getX();
+        int destRelY = y - center.getY();
+        int destRelZ = z - center.getZ();
+
+        int relX = rotateDestToOrigin.transformX(destRelX, destRelY, destRelZ);
+        int relY = rotateDestToOrigin.transformY(destRelX, destRelY, destRelZ);
+        int relZ = rotateDestToOrigin.transformZ(destRelX, destRelY, destRelZ);
+        if(Math.abs(relX) > maxXZ || Math.abs(relY) > maxY || Math.abs(relZ) > maxXZ) {return -1;}
+
+        return (relX + maxXZ) + (relZ + maxXZ) * renderConfig.getZMultip() + (relY + maxY) * renderConfig.getYMultip();
+    }
+
     @Override
     public boolean isReady() {
         return hasFirstRequestFinished;
     }
 
     @Override
-    public @NotNull BlockData getData(@NotNull IntVector position) {
-        return currentStates.get(position);
+    public @NotNull BlockData getData(int x, int y, int z) {
+        int index = getArrayIndex(x, y, z);
+        return index == -1 ? null : currentStates[index];
+    }
+
+    @Override
+    public boolean pollChanges(@NotNull ChangeConsumer consumer) {
+        int zMultip = renderConfig.getZMultip();
+        int yMultip = renderConfig.getYMultip();
+        for(int i = 0; i < changedIndices.size(); i++) {
+            int index = changedIndices.get(i);
+            int relX = (index % zMultip) - maxXZ;
+            int relY = (index / yMultip) - maxY;
+            int relZ = ((index % yMultip) / zMultip) - maxXZ;
+
+            consumer.onChange(rotateOriginToDest.transformX(relX, relY, relZ) + center.getX(),
+                    rotateOriginToDest.transformY(relX, relY, relZ) + center.getY(),
+                    rotateOriginToDest.transformZ(relX, relY, relZ) + center.getZ());
+        }
+
+        changedBlocks.clear();
+        changedIndices.clear();
+        return true;
+    }
+
+    @Override
+    public void release() {
+        isReleased = true;
+        changeReceiver.unregister(request.getChangeSetId());
+
+        // Tell the destination to stop sending changes, rather than waiting for the lease to run out
+        if(isSubscribed || isSubscribing) {
+            BlockChangesLeaseRequest releaseRequest = new BlockChangesLeaseRequest();
+            releaseRequest.setChangeSetId(request.getChangeSetId());
+            releaseRequest.setRelease(true);
+            portalClient.sendRequestToServer(releaseRequest, destServerName, (response) -> {});
+        }
     }
 }
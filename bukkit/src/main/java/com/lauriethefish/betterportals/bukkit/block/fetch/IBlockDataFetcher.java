@@ -1,24 +1,71 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
-import com.lauriethefish.betterportals.api.IntVector;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
 public interface IBlockDataFetcher {
+    /**
+     * Receives the positions of changed blocks from {@link IBlockDataFetcher#pollChanges(ChangeConsumer)}.
+     */
+    @FunctionalInterface
+    interface ChangeConsumer {
+        /**
+         * @param x X coordinate of the changed block
+         * @param y Y coordinate of the changed block
+         * @param z Z coordinate of the changed block
+         */
+        void onChange(int x, int y, int z);
+    }
+
     /**
      * Updates the currently fetched data.
      */
     void update();
 
     /**
-     * @return Whether the data has been fetched and can be read with {@link IBlockDataFetcher#getData(IntVector)}.
+     * Updates only the data of blocks reported with {@link IBlockDataFetcher#onBlockChange(int, int, int)} since the last update, keeping the rest.
+     * Fetchers that can't do this update everything, as in {@link IBlockDataFetcher#update()}.
+     */
+    default void updateChanged() {
+        update();
+    }
+
+    /**
+     * Called on the main thread when a block in the destination world changes, so that it is fetched again by {@link IBlockDataFetcher#updateChanged()}.
+     * @param x X coordinate of the changed block
+     * @param y Y coordinate of the changed block
+     * @param z Z coordinate of the changed block
+     */
+    default void onBlockChange(int x, int y, int z) {}
+
+    /**
+     * @return Whether the data has been fetched and can be read with {@link IBlockDataFetcher#getData(int, int, int)}.
      */
     boolean isReady();
 
     /**
-     * Reads the data at <code>position</code>.
-     * @param position The position to get the data at. The destination world is implied
+     * Reads the data at the given position. The destination world is implied.
+     * Coordinates are passed separately to avoid allocating a vector for every block in the flood fill.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
      * @return The block data at that position
      */
-    @NotNull BlockData getData(@NotNull IntVector position);
+    @NotNull BlockData getData(int x, int y, int z);
+
+    /**
+     * Passes the position of each block that has changed since this was last called to <code>consumer</code>, then forgets them.
+     * This includes blocks changed while a flood fill was reading from this fetcher on another thread. Called on the main thread.
+     * Fetchers that read the world directly don't track changes, since they are reported by block events instead.
+     * @param consumer Called with the position of each changed block
+     * @return Whether this fetcher tracks changes. If not, nothing is passed to <code>consumer</code>
+     */
+    default boolean pollChanges(@NotNull ChangeConsumer consumer) {
+        return false;
+    }
+
+    /**
+     * Releases anything shared with other fetchers. Called on the main thread when the portal is deactivated.
+     */
+    void release();
 }
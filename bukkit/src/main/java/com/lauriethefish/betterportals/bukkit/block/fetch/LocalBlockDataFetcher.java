@@ -1,34 +1,59 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
-import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Objects;
+
 /**
  * Local portals already have their blocks accessible.
- * This is a simple pass-through to Bukkit's API.
+ * The chunks around the destination are snapshotted, then blocks are read from the snapshots.
+ * After the first update, only chunks with changed blocks are snapshotted again, unless every block is being checked.
+ * This avoids looking up the chunk in the world for every block, and allows reading from other threads.
+ * Snapshots are shared with any other portals looking at the same chunks.
  */
 public class LocalBlockDataFetcher implements IBlockDataFetcher {
-    private final World destinationWorld;
+    private final ChunkSnapshotArea snapshotArea;
 
-    public LocalBlockDataFetcher(IPortal portal) {
-        this.destinationWorld = portal.getDestPos().getWorld();
+    public LocalBlockDataFetcher(IPortal portal, RenderConfig renderConfig, ChunkSnapshotCache snapshotCache) {
+        this.snapshotArea = new ChunkSnapshotArea(
+                snapshotCache,
+                Objects.requireNonNull(portal.getDestPos().getWorld(), "Destination world of local portal was null"),
+                new IntVector(portal.getDestPos().getVector()),
+                renderConfig
+        );
     }
 
     @Override
     public void update() {
-        // Do nothing, this is just a pass-through to Bukkit's API for local blocks.
+        snapshotArea.capture();
+    }
+
+    @Override
+    public void updateChanged() {
+        snapshotArea.captureChanged();
+    }
+
+    @Override
+    public void onBlockChange(int x, int y, int z) {
+        snapshotArea.markChanged(x, z);
     }
 
     @Override
     public boolean isReady() {
-        return true;
+        return snapshotArea.isCaptured();
+    }
+
+    @Override
+    public @NotNull BlockData getData(int x, int y, int z) {
+        return snapshotArea.getData(x, y, z);
     }
 
     @Override
-    public @NotNull BlockData getData(@NotNull IntVector position) {
-        return position.getBlock(destinationWorld).getBlockData();
+    public void release() {
+        snapshotArea.release();
     }
 }
@@ -0,0 +1,55 @@
+package com.lauriethefish.betterportals.bukkit.block.rotation;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Caches the rotated and wrapped version of each block state for one portal rotation.
+ * The number of distinct states around a portal is small, so most blocks can share the same {@link WrappedBlockData} instead of cloning, rotating and wrapping their data again.
+ * States are identified by a small integer ID, e.g. from a palette, so the cache is just an array lookup.
+ * The cache is bounded, and states with IDs past the limit are rotated every time.
+ * This is not thread safe.
+ */
+public class RotatedBlockDataCache {
+    private static final int MAX_CACHED_STATES = 4096;
+
+    private final IBlockRotator blockRotator;
+    private final Matrix rotation;
+    private WrappedBlockData[] rotatedStates = new WrappedBlockData[64];
+
+    /**
+     * @param blockRotator Used to rotate states that aren't cached yet
+     * @param rotation The rotation to apply to every state
+     */
+    public RotatedBlockDataCache(@NotNull IBlockRotator blockRotator, @NotNull Matrix rotation) {
+        this.blockRotator = blockRotator;
+        this.rotation = rotation;
+    }
+
+    /**
+     * Finds the rotated version of <code>data</code>.
+     * @param stateId ID of the state. Equal data must always have the same ID
+     * @param data The unrotated data
+     * @return The rotated data. This may be shared, so must not be modified
+     */
+    public @NotNull WrappedBlockData getRotated(int stateId, @NotNull BlockData data) {
+        if(stateId >= MAX_CACHED_STATES) {
+            return WrappedBlockData.createData(blockRotator.rotateByMatrix(rotation, data));
+        }
+
+        if(stateId >= rotatedStates.length) {
+            rotatedStates = Arrays.copyOf(rotatedStates, Math.min(MAX_CACHED_STATES, Math.max(rotatedStates.length * 2, stateId + 1)));
+        }
+
+        WrappedBlockData rotated = rotatedStates[stateId];
+        if(rotated == null) {
+            rotated = WrappedBlockData.createData(blockRotator.rotateByMatrix(rotation, data));
+            rotatedStates[stateId] = rotated;
+        }
+        return rotated;
+    }
+}
@@ -0,0 +1,42 @@
+package com.lauriethefish.betterportals.bukkit.chunk.chunkpos;
+
+/**
+ * Utility functions for packing the position of a 16x16x16 chunk section into a single <code>long</code>.
+ * Packed positions can be used as map keys without allocating a position object for every lookup.
+ * The layout is the same as the one used by Minecraft: 22 bits for X, 22 bits for Z and 20 bits for Y.
+ */
+public final class SectionPosition {
+    private SectionPosition() {}
+
+    /**
+     * @param sectionX X coordinate of the section
+     * @param sectionY Y coordinate of the section
+     * @param sectionZ Z coordinate of the section
+     * @return The packed section position
+     */
+    public static long pack(int sectionX, int sectionY, int sectionZ) {
+        return ((long) (sectionX & 0x3FFFFF) << 42) | ((long) (sectionZ & 0x3FFFFF) << 20) | (long) (sectionY & 0xFFFFF);
+    }
+
+    /**
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @return The packed position of the section containing the block
+     */
+    public static long fromBlock(int x, int y, int z) {
+        return pack(x >> 4, y >> 4, z >> 4);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 42);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed << 44 >> 44);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 22 >> 42);
+    }
+}
@@ -11,6 +11,7 @@ import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.net.requests.TestForwardedRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.spawning.NewPortalChecker;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.net.RequestException;
@@ -31,13 +32,15 @@ public class TestingCommands {
     private final NewPortalChecker spawnChecker;
     private final IEntityPacketManipulator entityPacketManipulator;
     private final IPortalClient portalClient;
+    private final BlockUpdateFinisher blockUpdateFinisher;
     private List<Integer> storedData;
 
     @Inject
-    public TestingCommands(NewPortalChecker spawnChecker, IEntityPacketManipulator entityPacketManipulator, IPortalClient portalClient) {
+    public TestingCommands(NewPortalChecker spawnChecker, IEntityPacketManipulator entityPacketManipulator, IPortalClient portalClient, BlockUpdateFinisher blockUpdateFinisher) {
         this.spawnChecker = spawnChecker;
         this.entityPacketManipulator = entityPacketManipulator;
         this.portalClient = portalClient;
+        this.blockUpdateFinisher = blockUpdateFinisher;
     }
 
     @Command
@@ -177,4 +180,29 @@ public class TestingCommands {
         sender.getWorld().refreshChunk(senderChunk.getX(), senderChunk.getZ());
         return true;
     }
+
+    @Command
+    @Path("betterportals/test/updateFinisherStats")
+    public boolean showUpdateFinisherStats(CommandSender sender) {
+        sender.sendMessage(String.format("Queued block view updates: %d", blockUpdateFinisher.getQueueDepth()));
+
+        List<BlockUpdateFinisher.WorkerStatistics> workers = blockUpdateFinisher.getWorkerStatistics();
+        for(int i = 0; i < workers.size(); i++) {
+            BlockUpdateFinisher.WorkerStatistics worker = workers.get(i);
+            sender.sendMessage(String.format("Worker %d: %d finished. Average latency: %.03fms. Max latency: %.03fms",
+                    i + 1, worker.getFinishedCount(), worker.getAverageLatencyMillis(), worker.getMaxLatencyMillis()));
+        }
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/entityPacketStats")
+    public boolean showEntityPacketStats(CommandSender sender) {
+        long built = entityPacketManipulator.getPacketsBuilt();
+        long sent = entityPacketManipulator.getPacketsSent();
+        double playersPerPacket = built == 0 ? 0.0 : (double) sent / built;
+
+        sender.sendMessage(String.format("Entity packets built: %d. Sent: %d. Average players per packet: %.02f", built, sent, playersPerPacket));
+        return true;
+    }
 }
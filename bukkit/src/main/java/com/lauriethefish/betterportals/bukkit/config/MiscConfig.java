@@ -22,6 +22,7 @@ public class MiscConfig {
     @Getter private boolean updateCheckEnabled;
 
     @Getter private boolean testingCommandsEnabled;
+    @Getter private boolean virtualThreadsEnabled;
 
     @Getter private int portalSaveInterval;
 
@@ -51,5 +52,6 @@ public class MiscConfig {
         teleportCooldown = config.getInt("teleportCooldown");
         testingCommandsEnabled = config.getBoolean("enableTestingCommands");
         portalSaveInterval = config.getInt("portalSaveInterval");
+        virtualThreadsEnabled = config.getBoolean("useVirtualThreads");
     }
 }
@@ -43,12 +43,18 @@ public class RenderConfig {
 
     private Vector collisionBox;
     private int blockUpdateInterval;
+    private int fullBlockCheckInterval;
+    private boolean asyncInitialUpdate;
+    private int blockUpdateWorkerThreads;
 
     private int worldSwitchWaitTime;
 
     @Getter private boolean portalBlocksHidden;
 
     private int blockStateRefreshInterval;
+    private double viewPositionEpsilon;
+    private int multiBlockChangeByteBudget;
+    private int blockPacketBytesPerTick;
 
     private int entityMetadataUpdateInterval;
 
@@ -100,12 +106,29 @@ public class RenderConfig {
         if(blockUpdateInterval <= 0) {
             throw new IllegalArgumentException("Block update interval must be at least 1");
         }
+        fullBlockCheckInterval = file.getInt("portalFullBlockCheckInterval");
+        if(fullBlockCheckInterval < blockUpdateInterval) {
+            throw new IllegalArgumentException("Full block check interval must be at least the block update interval");
+        }
+        asyncInitialUpdate = file.getBoolean("asyncInitialBlockUpdate");
+
+        // Zero or less means to use a thread for each core
+        blockUpdateWorkerThreads = file.getInt("blockUpdateWorkerThreads");
+        if(blockUpdateWorkerThreads <= 0) {
+            blockUpdateWorkerThreads = Runtime.getRuntime().availableProcessors();
+        }
 
         entityMetadataUpdateInterval = file.getInt("entityMetadataUpdateInterval");
 
         worldSwitchWaitTime = file.getInt("waitTimeAfterSwitchingWorlds"); // TODO: implement or yeet
         portalBlocksHidden = file.getBoolean("hidePortalBlocks");
         blockStateRefreshInterval = file.getInt("blockStateRefreshInterval");
+        viewPositionEpsilon = file.getDouble("viewPositionEpsilon");
+        if(viewPositionEpsilon <= 0) {
+            throw new IllegalArgumentException("View position epsilon must be greater than zero");
+        }
+        multiBlockChangeByteBudget = file.getInt("multiBlockChangePacketSize");
+        blockPacketBytesPerTick = file.getInt("blockPacketBytesPerTick");
 
         String bgBlockString = file.getString("backgroundBlock", "");
 
@@ -0,0 +1,226 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.SectionPosition;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Finds the entities within the areas around portals, and tells the listener subscribed to each area when entities enter or leave it.
+ * Subscriptions are indexed by chunk section, so each entity found only needs one lookup to find the areas that it might be in.
+ * Bukkit has no event for entity movement, so every {@link MiscConfig#getEntityCheckInterval()} ticks the chunks containing subscribed sections are swept for entities.
+ * Each chunk is only swept once, however many areas overlap it, so portals close to each other share the work.
+ * This is only used on the main thread.
+ */
+@Singleton
+public class EntityIndex {
+    private final Logger logger;
+    private final MiscConfig miscConfig;
+
+    private final Map<UUID, WorldIndex> worlds = new HashMap<>();
+    private final Map<IEntityIndexListener, Subscription> subscriptions = new HashMap<>();
+
+    private int ticksSinceSweep = 0;
+    // Incremented on each sweep, so that entities that weren't found can be removed afterwards
+    private int sweepNumber = 0;
+
+    private static class WorldIndex {
+        private final World world;
+        // Subscriptions overlapping each section
+        private final LongObjectMap<List<Subscription>> sectionSubscriptions = new LongObjectMap<>();
+        // Number of subscribed sections in each chunk, with the chunk X in the upper 32 bits and the chunk Z in the lower 32 bits
+        private final Map<Long, Integer> chunkReferences = new HashMap<>();
+
+        private WorldIndex(World world) {
+            this.world = world;
+        }
+    }
+
+    private static class Subscription {
+        private final WorldIndex worldIndex;
+        private final IEntityIndexListener listener;
+        private final Vector min;
+        private final Vector max;
+        private final long[] sections;
+
+        // Entities within the area, and the sweep that they were last found in
+        private final Map<Entity, Integer> entities = new HashMap<>();
+
+        private Subscription(WorldIndex worldIndex, IEntityIndexListener listener, Vector min, Vector max, long[] sections) {
+            this.worldIndex = worldIndex;
+            this.listener = listener;
+            this.min = min;
+            this.max = max;
+            this.sections = sections;
+        }
+
+        private boolean contains(Location location) {
+            return location.getX() >= min.getX() && location.getY() >= min.getY() && location.getZ() >= min.getZ()
+                    && location.getX() <= max.getX() && location.getY() <= max.getY() && location.getZ() <= max.getZ();
+        }
+
+        private void onFound(Entity entity, int sweepNumber) {
+            if(entities.put(entity, sweepNumber) == null) {
+                listener.onEntityEnter(entity);
+            }
+        }
+
+        private void removeMissing(int sweepNumber) {
+            Iterator<Map.Entry<Entity, Integer>> iterator = entities.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<Entity, Integer> entry = iterator.next();
+                if(entry.getValue() != sweepNumber) {
+                    iterator.remove();
+                    listener.onEntityLeave(entry.getKey());
+                }
+            }
+        }
+    }
+
+    @Inject
+    public EntityIndex(Logger logger, MiscConfig miscConfig) {
+        this.logger = logger;
+        this.miscConfig = miscConfig;
+    }
+
+    private static long packChunk(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Subscribes <code>listener</code> to the entities in the box from <code>min</code> to <code>max</code>.
+     * The area is swept straight away, so the listener is told about the entities already in it before this returns.
+     * @param world World containing the area
+     * @param min Minimum corner of the area, inclusive
+     * @param max Maximum corner of the area, inclusive
+     * @param listener Listener to notify of entities entering and leaving the area. Each listener can only have one subscription
+     */
+    public void subscribe(@NotNull World world, @NotNull Vector min, @NotNull Vector max, @NotNull IEntityIndexListener listener) {
+        if(subscriptions.containsKey(listener)) {throw new IllegalArgumentException("Listener is already subscribed to an area");}
+
+        int minX = min.getBlockX() >> 4; int minY = min.getBlockY() >> 4; int minZ = min.getBlockZ() >> 4;
+        int maxX = max.getBlockX() >> 4; int maxY = max.getBlockY() >> 4; int maxZ = max.getBlockZ() >> 4;
+
+        WorldIndex worldIndex = worlds.computeIfAbsent(world.getUID(), uid -> new WorldIndex(world));
+        long[] sections = new long[(maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1)];
+        Subscription subscription = new Subscription(worldIndex, listener, min.clone(), max.clone(), sections);
+
+        int i = 0;
+        for(int x = minX; x <= maxX; x++) {
+            for(int z = minZ; z <= maxZ; z++) {
+                worldIndex.chunkReferences.merge(packChunk(x, z), maxY - minY + 1, Integer::sum);
+
+                for(int y = minY; y <= maxY; y++) {
+                    long section = SectionPosition.pack(x, y, z);
+                    List<Subscription> sectionSubscriptions = worldIndex.sectionSubscriptions.get(section);
+                    if(sectionSubscriptions == null) {
+                        sectionSubscriptions = new ArrayList<>(1);
+                        worldIndex.sectionSubscriptions.put(section, sectionSubscriptions);
+                    }
+                    sectionSubscriptions.add(subscription);
+                    sections[i] = section;
+                    i++;
+                }
+            }
+        }
+        subscriptions.put(listener, subscription);
+
+        // Find the entities already in the area
+        for(int x = minX; x <= maxX; x++) {
+            for(int z = minZ; z <= maxZ; z++) {
+                if(!world.isChunkLoaded(x, z)) {continue;}
+
+                for(Entity entity : world.getChunkAt(x, z).getEntities()) {
+                    Location location = entity.getLocation();
+                    if(subscription.contains(location)) {
+                        subscription.onFound(entity, sweepNumber);
+                    }
+                }
+            }
+        }
+        logger.finer("Subscribed to entities in %d sections. Entities found: %d", sections.length, subscription.entities.size());
+    }
+
+    /**
+     * Removes the subscription of <code>listener</code>. Does nothing if it isn't subscribed.
+     * The listener isn't told that the entities in the area have left.
+     * @param listener The listener to unsubscribe
+     */
+    public void unsubscribe(@NotNull IEntityIndexListener listener) {
+        Subscription subscription = subscriptions.remove(listener);
+        if(subscription == null) {return;}
+
+        WorldIndex worldIndex = subscription.worldIndex;
+        for(long section : subscription.sections) {
+            List<Subscription> sectionSubscriptions = worldIndex.sectionSubscriptions.get(section);
+            if(sectionSubscriptions != null) {
+                sectionSubscriptions.remove(subscription);
+                if(sectionSubscriptions.isEmpty()) {
+                    worldIndex.sectionSubscriptions.remove(section);
+                }
+            }
+
+            long chunk = packChunk(SectionPosition.unpackX(section), SectionPosition.unpackZ(section));
+            worldIndex.chunkReferences.computeIfPresent(chunk, (key, count) -> count == 1 ? null : count - 1);
+        }
+
+        if(worldIndex.chunkReferences.isEmpty()) {
+            worlds.remove(worldIndex.world.getUID());
+        }
+    }
+
+    /**
+     * Sweeps the subscribed chunks for entities if it is time to via the entity check interval.
+     * Called every tick.
+     */
+    public void update() {
+        ticksSinceSweep++;
+        if(ticksSinceSweep < miscConfig.getEntityCheckInterval()) {return;}
+        ticksSinceSweep = 0;
+
+        sweep();
+    }
+
+    private void sweep() {
+        sweepNumber++;
+
+        int sweptChunks = 0;
+        for(WorldIndex worldIndex : worlds.values()) {
+            World world = worldIndex.world;
+            for(long chunk : worldIndex.chunkReferences.keySet()) {
+                int chunkX = (int) (chunk >> 32);
+                int chunkZ = (int) chunk;
+                if(!world.isChunkLoaded(chunkX, chunkZ)) {continue;}
+                sweptChunks++;
+
+                for(Entity entity : world.getChunkAt(chunkX, chunkZ).getEntities()) {
+                    Location location = entity.getLocation();
+                    List<Subscription> sectionSubscriptions = worldIndex.sectionSubscriptions.get(SectionPosition.fromBlock(location.getBlockX(), location.getBlockY(), location.getBlockZ()));
+                    if(sectionSubscriptions == null) {continue;}
+
+                    for(Subscription subscription : sectionSubscriptions) {
+                        if(subscription.contains(location)) {
+                            subscription.onFound(entity, sweepNumber);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Anything not found in this sweep has left its area, or no longer exists
+        for(Subscription subscription : subscriptions.values()) {
+            subscription.removeMissing(sweepNumber);
+        }
+
+        logger.finest("Swept %d chunks for entities", sweptChunks);
+    }
+}
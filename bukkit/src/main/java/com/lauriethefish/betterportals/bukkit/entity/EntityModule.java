@@ -19,8 +19,6 @@ public class EntityModule extends AbstractModule {
                     .implement(IEntityTracker.class, EntityTracker.class)
                     .build(IEntityTracker.Factory.class)
             );
-
-            bind(IEntityFinder.class).to(BukkitEntityFinder.class);
         }
 
         bind(IEntityPacketManipulator.class).to(EntityPacketManipulator.class);
@@ -0,0 +1,23 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import org.bukkit.entity.Entity;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the entities entering and leaving the area that it is subscribed to in {@link EntityIndex}.
+ * Listeners must not subscribe or unsubscribe while being notified.
+ */
+public interface IEntityIndexListener {
+    /**
+     * Called on the main thread when an entity is found within the subscribed area that wasn't in it last time.
+     * @param entity The entity that entered the area
+     */
+    void onEntityEnter(@NotNull Entity entity);
+
+    /**
+     * Called on the main thread when an entity that was within the subscribed area is no longer found in it.
+     * This includes entities that have been removed or unloaded.
+     * @param entity The entity that left the area
+     */
+    void onEntityLeave(@NotNull Entity entity);
+}
@@ -12,12 +12,23 @@ public interface IPortalEntityManager {
     Collection<Entity> getOriginEntities();
     Collection<Entity> getDestinationEntities();
 
+    /**
+     * Incremented whenever an entity is added to or removed from either list, so that views can tell if they need to check for new or removed entities.
+     * @return The current version of the entity lists
+     */
+    int getVersion();
+
     /**
      * Updates the current entities around the portal
      * @param ticksSinceActivated Ticks since the parent {@link com.lauriethefish.betterportals.bukkit.portal.Portal} was activated, since this can be configured to not happen every tick.
      */
     void update(int ticksSinceActivated);
 
+    /**
+     * Stops finding entities around the portal until it is next updated, and clears the current entities
+     */
+    void onDeactivate();
+
     interface Factory {
         IPortalEntityManager create(IPortal portal, boolean requireDestination);
     }
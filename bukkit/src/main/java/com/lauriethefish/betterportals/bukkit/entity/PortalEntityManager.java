@@ -2,9 +2,9 @@ package com.lauriethefish.betterportals.bukkit.entity;
 
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.PortalPosition;
-import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
+import com.lauriethefish.betterportals.bukkit.math.PortalCrossingDetector;
 import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
@@ -16,96 +16,168 @@ import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
 import lombok.Getter;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.util.*;
-import java.util.function.Consumer;
 
 // Stores the two lists of entities at the origin and destination of a portal
 // (or only 1 if specified)
+// The lists are kept up to date by the entities entering and leaving the area around each side in the EntityIndex
 public class PortalEntityManager implements IPortalEntityManager {
     private final IPortal portal;
-    private final MiscConfig miscConfig;
     private final RenderConfig renderConfig;
     private final IPortalPredicateManager predicateManager;
     private final Logger logger;
     private final IPortalClient portalClient;
     private final Set<Player> alreadyTeleporting = new HashSet<>();
     private final JavaPlugin pl;
-    private final IEntityFinder entityFinder;
+    private final EntityIndex entityIndex;
     private final IPlayerDataManager playerDataManager;
 
     private final boolean requireDestination;
+    private boolean subscribed = false;
+    @Getter private int version = 0;
+
+    @Getter private final Set<Entity> destinationEntities = new HashSet<>();
+    // The last known position of each entity at the origin, used to check if it moved through the portal
+    private final Map<Entity, LastPosition> originEntities = new HashMap<>();
+
+    // Created when the portal is activated, since the transformations don't exist yet when this is constructed
+    private PortalCrossingDetector crossingDetector;
+    // Reused for reading the location of each entity at the origin every tick
+    private final Location currentPosition = new Location(null, 0.0, 0.0, 0.0);
+
+    private static class LastPosition {
+        private double x;
+        private double y;
+        private double z;
+        private double signedDistance;
+        // False if the entity should not be checked for teleportation until its position has been updated
+        private boolean valid;
+    }
+
+    private final IEntityIndexListener originListener = new IEntityIndexListener() {
+        @Override
+        public void onEntityEnter(@NotNull Entity entity) {
+            LastPosition lastPosition = new LastPosition();
+            entity.getLocation(currentPosition);
+            setLastPosition(lastPosition, currentPosition);
+            originEntities.put(entity, lastPosition);
+            version++;
+        }
 
-    @Getter private Collection<Entity> destinationEntities = null;
-    private Map<Entity, Location> originEntities = null;
+        @Override
+        public void onEntityLeave(@NotNull Entity entity) {
+            originEntities.remove(entity);
+            version++;
+        }
+    };
+
+    private final IEntityIndexListener destinationListener = new IEntityIndexListener() {
+        @Override
+        public void onEntityEnter(@NotNull Entity entity) {
+            destinationEntities.add(entity);
+            version++;
+        }
+
+        @Override
+        public void onEntityLeave(@NotNull Entity entity) {
+            destinationEntities.remove(entity);
+            version++;
+        }
+    };
 
     @Inject
-    public PortalEntityManager(@Assisted IPortal portal, @Assisted boolean requireDestination, MiscConfig miscConfig, RenderConfig renderConfig, IPortalPredicateManager predicateManager, Logger logger, IPortalClient
-            portalClient, JavaPlugin pl, IEntityFinder entityFinder, IPlayerDataManager playerDataManager) {
+    public PortalEntityManager(@Assisted IPortal portal, @Assisted boolean requireDestination, RenderConfig renderConfig, IPortalPredicateManager predicateManager, Logger logger, IPortalClient
+            portalClient, JavaPlugin pl, EntityIndex entityIndex, IPlayerDataManager playerDataManager) {
         this.portal = portal;
         this.requireDestination = requireDestination;
-        this.miscConfig = miscConfig;
         this.renderConfig = renderConfig;
         this.predicateManager = predicateManager;
         this.logger = logger;
         this.portalClient = portalClient;
         this.pl = pl;
-        this.entityFinder = entityFinder;
+        this.entityIndex = entityIndex;
         this.playerDataManager = playerDataManager;
     }
 
     @Override
     public void update(int ticksSinceActivated) {
-        // Only update the entity lists when it's time to via the entity check interval
-        if(ticksSinceActivated % miscConfig.getEntityCheckInterval() == 0) {
-            updateEntityLists();
+        // The index sweeps for entities on the entity check interval, so we only need to subscribe once when the portal is activated
+        if(!subscribed) {
+            crossingDetector = portal.getTransformations().createCrossingDetector();
+            subscribe(portal.getOriginPos(), originListener);
+            if(requireDestination) {
+                subscribe(portal.getDestPos(), destinationListener);
+            }
+            subscribed = true;
         }
 
         handleTeleportation();
     }
 
-    private void updateEntityLists() {
-        if(requireDestination) {
-            destinationEntities = getNearbyEntities(destinationEntities, portal.getDestPos());
-        }
+    @Override
+    public void onDeactivate() {
+        if(!subscribed) {return;}
+
+        entityIndex.unsubscribe(originListener);
+        entityIndex.unsubscribe(destinationListener);
+        originEntities.clear();
+        destinationEntities.clear();
+        version++;
+        subscribed = false;
+    }
 
-        // Copy the old entities over to a new hashmap
-        Map<Entity, Location> oldOriginEntities = originEntities;
-        originEntities = new HashMap<>();
+    private void subscribe(PortalPosition position, IEntityIndexListener listener) {
+        Vector radius = new Vector(renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ());
+        Vector center = position.getVector();
 
-        getNearbyEntities(portal.getOriginPos(), entity -> {
-            Location oldLocation = oldOriginEntities == null ? null : oldOriginEntities.get(entity);
-            originEntities.put(entity, oldLocation != null ? oldLocation : entity.getLocation());
-        });
+        entityIndex.subscribe(Objects.requireNonNull(position.getWorld()), center.clone().subtract(radius), center.clone().add(radius), listener);
+    }
+
+    private void setLastPosition(LastPosition lastPosition, Location position) {
+        lastPosition.x = position.getX();
+        lastPosition.y = position.getY();
+        lastPosition.z = position.getZ();
+        lastPosition.signedDistance = crossingDetector.findSignedDistance(lastPosition.x, lastPosition.y, lastPosition.z);
+        lastPosition.valid = true;
     }
 
     private void handleTeleportation() {
-        List<Entity> toRemove = new ArrayList<>();
+        World originWorld = portal.getOriginPos().getWorld();
 
         // Check each entity at the origin to see if it teleported
-        for(Map.Entry<Entity, Location> entry : originEntities.entrySet()) {
+        for(Map.Entry<Entity, LastPosition> entry : originEntities.entrySet()) {
             Entity entity = entry.getKey();
             // Only players can teleport through cross-server portals
             if (!(entity instanceof Player) && (!portal.allowsNonPlayerTeleportation() || portal.isCrossServer())) {
                 continue;
             }
 
-            Location lastPosition = entry.getValue();
-            Location currentPosition = entity.getLocation();
+            LastPosition lastPosition = entry.getValue();
+            entity.getLocation(currentPosition);
 
-            // Use an intersection check to see if it moved through the portal
-            if (lastPosition != null) {
-                boolean didWalkThroughPortal = portal.getTransformations()
-                        .createIntersectionChecker(lastPosition.toVector())
-                        .checkIfIntersects(currentPosition.toVector());
+            // Entities that have changed world stay in the list until the next sweep
+            if(currentPosition.getWorld() != originWorld) {
+                lastPosition.valid = false;
+                continue;
+            }
 
+            double x = currentPosition.getX();
+            double y = currentPosition.getY();
+            double z = currentPosition.getZ();
+            double signedDistance = crossingDetector.findSignedDistance(x, y, z);
+
+            // Entities can only have moved through the portal if they're now on the other side of it, so the full check is only needed then
+            if (lastPosition.valid) {
+                boolean didWalkThroughPortal = crossingDetector.checkIfCrossed(lastPosition.x, lastPosition.y, lastPosition.z, lastPosition.signedDistance,
+                        x, y, z, signedDistance);
 
                 if (didWalkThroughPortal && checkCanTeleport(entity)) {
                     if (portal.isCrossServer()) {
@@ -114,28 +186,24 @@ public class PortalEntityManager implements IPortalEntityManager {
                     } else {
                         teleportLocal(entity);
                     }
-                    toRemove.add(entity);
+                    // The entity's position has jumped, so don't check it again until it has been updated
+                    lastPosition.valid = false;
                     continue;
                 }
             }
 
-            entry.setValue(currentPosition);
+            lastPosition.x = x;
+            lastPosition.y = y;
+            lastPosition.z = z;
+            lastPosition.signedDistance = signedDistance;
+            lastPosition.valid = true;
         }
-        toRemove.forEach(originEntities::remove);
     }
 
     public Collection<Entity> getOriginEntities() {
         return originEntities.keySet();
     }
 
-    private Collection<Entity> getNearbyEntities(@Nullable Collection<Entity> existing, PortalPosition position) {
-        return entityFinder.getNearbyEntities(existing, position.getLocation(), renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ());
-    }
-
-    private void getNearbyEntities(PortalPosition position, Consumer<Entity> sendTo) {
-        entityFinder.getNearbyEntities(position.getLocation(), renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ(), sendTo);
-    }
-
     /**
      * Verifies that <code>entity</code> can teleport using {@link IPortalPredicateManager}
      * @param entity Entity to check
@@ -13,14 +13,23 @@ import java.util.Map;
  * This allows us to easily check for changes and convert it into the map used in packets
  */
 public class EntityEquipmentWatcher {
+    /**
+     * The slots checked by the watcher, in the same order as the equipment in {@link EntitySnapshot}
+     */
+    static final EnumWrappers.ItemSlot[] SLOTS = {
+            EnumWrappers.ItemSlot.MAINHAND,
+            EnumWrappers.ItemSlot.OFFHAND,
+            EnumWrappers.ItemSlot.HEAD,
+            EnumWrappers.ItemSlot.CHEST,
+            EnumWrappers.ItemSlot.LEGS,
+            EnumWrappers.ItemSlot.FEET
+    };
+
     private final LivingEntity entity;
 
-    private ItemStack mainHand;
-    private ItemStack offHand;
-    private ItemStack helmet;
-    private ItemStack chestplate;
-    private ItemStack leggings;
-    private ItemStack boots;
+    private final ItemStack[] lastEquipment = new ItemStack[EntitySnapshot.EQUIPMENT_SLOT_COUNT];
+    private final int[] lastHashes = new int[EntitySnapshot.EQUIPMENT_SLOT_COUNT];
+    private boolean hasChecked = false;
 
     public EntityEquipmentWatcher(LivingEntity entity) {
         this.entity = entity;
@@ -33,45 +42,47 @@ public class EntityEquipmentWatcher {
      * @return A map of which slots changed, and their new value
      */
     public Map<EnumWrappers.ItemSlot, ItemStack> checkForChanges() {
-        Map<EnumWrappers.ItemSlot, ItemStack> result = new HashMap<>();
+        // Only the equipment is read, since there's no snapshot to share the rest of the entity's state with
+        ItemStack[] current = new ItemStack[EntitySnapshot.EQUIPMENT_SLOT_COUNT];
+        int[] currentHashes = new int[EntitySnapshot.EQUIPMENT_SLOT_COUNT];
+        EntitySnapshot.captureEquipment(entity.getEquipment(), current, currentHashes);
+        return checkForChanges(current, currentHashes);
+    }
+
+    /**
+     * Checks the equipment captured in <code>snapshot</code> for changes, without reading the entity again.
+     * Will return every slot the first time.
+     * The values may be null
+     * @param snapshot Snapshot of the watched entity
+     * @return A map of which slots changed, and their new value
+     */
+    public Map<EnumWrappers.ItemSlot, ItemStack> checkForChanges(EntitySnapshot snapshot) {
+        if(snapshot.getEquipment() == null) {return new HashMap<>();}
 
-        EntityEquipment current = entity.getEquipment();
-        if(current == null) {return result;}
+        return checkForChanges(snapshot.getEquipment(), snapshot.getEquipmentHashes());
+    }
+
+    private Map<EnumWrappers.ItemSlot, ItemStack> checkForChanges(ItemStack[] current, int[] currentHashes) {
+        Map<EnumWrappers.ItemSlot, ItemStack> result = new HashMap<>();
 
         // Compare each item of equipment, and add it to the map if any changes are found
-        if(isStateDifferent(mainHand, current.getItemInMainHand())) {
-            mainHand = current.getItemInMainHand();
-            result.put(EnumWrappers.ItemSlot.MAINHAND, mainHand);
-        }
-        if(isStateDifferent(offHand, current.getItemInOffHand())) {
-            offHand = current.getItemInOffHand();
-            result.put(EnumWrappers.ItemSlot.OFFHAND, offHand);
-        }
-        if(isStateDifferent(helmet, current.getHelmet())) {
-            helmet = current.getHelmet();
-            result.put(EnumWrappers.ItemSlot.HEAD, helmet);
-        }
-        if(isStateDifferent(chestplate, current.getChestplate())) {
-            chestplate = current.getChestplate();
-            result.put(EnumWrappers.ItemSlot.CHEST, chestplate);
-        }
-        if(isStateDifferent(leggings, current.getLeggings())) {
-            leggings = current.getLeggings();
-            result.put(EnumWrappers.ItemSlot.LEGS, leggings);
-        }
-        if(isStateDifferent(boots, current.getBoots())) {
-            boots = current.getBoots();
-            result.put(EnumWrappers.ItemSlot.FEET, boots);
+        for(int i = 0; i < current.length; i++) {
+            if(!hasChecked || isStateDifferent(lastEquipment[i], lastHashes[i], current[i], currentHashes[i])) {
+                lastEquipment[i] = current[i];
+                lastHashes[i] = currentHashes[i];
+                result.put(SLOTS[i], current[i]);
+            }
         }
+        hasChecked = true;
 
         return result;
     }
 
-    private boolean isStateDifferent(ItemStack a, ItemStack b) {
-        if(a == null || b == null) {
-            return a != b;
-        }   else    {
-            return !a.equals(b);
-        }
+    private boolean isStateDifferent(ItemStack a, int aHash, ItemStack b, int bHash) {
+        // Items with different hashes can't be equal, which saves comparing the item meta in most cases
+        if(a == b) {return false;}
+        if(a == null || b == null || aHash != bHash) {return true;}
+
+        return !a.equals(b);
     }
 }
@@ -4,10 +4,12 @@ import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
 import com.lauriethefish.betterportals.bukkit.nms.EntityUtil;
 import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Objects;
 import java.util.Random;
@@ -29,13 +31,31 @@ public class EntityInfo {
     private final Matrix translation;
     private final Matrix rotation;
 
+    // Shared with the other trackers of the entity. Null if the entity's state is read directly
+    private final @Nullable EntitySnapshot snapshot;
+
+    // Every packet sent for the entity in a tick uses the same rendered location, so it is only found once per snapshot
+    @Getter(AccessLevel.NONE) private Location renderedLocation;
+    @Getter(AccessLevel.NONE) private int renderedTick = -1;
+
     /**
      * Creates an instance suitable for viewing an entity from the origin of a portal.
      * @param transformations The portals matrices, used for moving/rotating the entity
      * @param entity The entity to wrap
      */
     public EntityInfo(@NotNull PortalTransformations transformations, @NotNull Entity entity) {
+        this(transformations, entity, null);
+    }
+
+    /**
+     * Creates an instance suitable for viewing an entity from the origin of a portal, which reads the entity's state from a snapshot.
+     * @param transformations The portals matrices, used for moving/rotating the entity
+     * @param entity The entity to wrap
+     * @param snapshot Snapshot of the entity's state, captured by the tracking manager each tick
+     */
+    public EntityInfo(@NotNull PortalTransformations transformations, @NotNull Entity entity, @Nullable EntitySnapshot snapshot) {
         this.entity = entity;
+        this.snapshot = snapshot;
         this.entityId = entityIdGenerator.nextInt() & Integer.MAX_VALUE;
 
         this.entityUniqueId = UUID.randomUUID();
@@ -54,17 +74,37 @@ public class EntityInfo {
 
         this.translation = Matrix.makeIdentity();
         this.rotation = Matrix.makeIdentity();
+        this.snapshot = null;
     }
 
     /**
-     * Finds the position that the entity should be shown at
+     * Finds the position that the entity should be shown at.
+     * If there is a snapshot, the result is reused until it is next captured, so it must not be modified.
      * @return The entity's rendered position
      */
     public Location findRenderedLocation() {
-        Location actualPos = entity.getLocation();
+        if(snapshot == null) {
+            return transformLocation(entity.getLocation());
+        }
+
+        if(renderedTick != snapshot.getCapturedTick()) {
+            renderedLocation = transformLocation(snapshot.getLocation());
+            renderedTick = snapshot.getCapturedTick();
+        }
+        return renderedLocation;
+    }
+
+    private Location transformLocation(Location actualPos) {
         Location atOrigin = translation.transform(actualPos.toVector()).toLocation(Objects.requireNonNull(actualPos.getWorld()));
 
         atOrigin.setDirection(rotation.transform(actualPos.getDirection()));
         return atOrigin;
     }
+
+    /**
+     * @return Whether the entity is on the ground, from the snapshot if there is one
+     */
+    public boolean isOnGround() {
+        return snapshot == null ? entity.isOnGround() : snapshot.isOnGround();
+    }
 }
@@ -33,6 +33,10 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     private static final int entityDataFieldIndex = VersionUtil.isMcVersionAtLeast("1.19.0") ? 4 : 6;
     private static final boolean useNewEntityRotationFields = VersionUtil.isMcVersionAtLeast("1.19.0");
 
+    // Each packet is built once, then the same container is sent to every player tracking the entity
+    private long packetsBuilt = 0;
+    private long packetsSent = 0;
+
     @Override
     public void showEntity(EntityInfo tracker, Collection<Player> players) {
         // Generate the packet that NMS would normally use to spawn the entity
@@ -61,7 +65,8 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         // Living Entities also require us to handle entity equipment
         if(tracker.getEntity() instanceof LivingEntity) {
             EntityEquipmentWatcher equipmentWatcher = new EntityEquipmentWatcher((LivingEntity) tracker.getEntity());
-            Map<EnumWrappers.ItemSlot, ItemStack> changes = equipmentWatcher.checkForChanges();
+            // Reuse the equipment captured this tick if the entity has a snapshot
+            Map<EnumWrappers.ItemSlot, ItemStack> changes = tracker.getSnapshot() == null ? equipmentWatcher.checkForChanges() : equipmentWatcher.checkForChanges(tracker.getSnapshot());
             if(changes.size() > 0) {
                 sendEntityEquipment(tracker, changes, players);
             }
@@ -179,7 +184,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         shorts.write(0, (short) (offset.getX() * 4096));
         shorts.write(1, (short) (offset.getY() * 4096));
         shorts.write(2, (short) (offset.getZ() * 4096));
-        packet.getBooleans().write(0, tracker.getEntity().isOnGround());
+        packet.getBooleans().write(0, tracker.isOnGround());
 
         sendPacket(packet, players);
     }
@@ -202,7 +207,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         shorts.write(0, (short) (offset.getX() * 4096));
         shorts.write(1, (short) (offset.getY() * 4096));
         shorts.write(2, (short) (offset.getZ() * 4096));
-        packet.getBooleans().write(0, tracker.getEntity().isOnGround());
+        packet.getBooleans().write(0, tracker.isOnGround());
 
         sendPacket(packet, players);
     }
@@ -220,7 +225,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         StructureModifier<Byte> bytes = packet.getBytes();
         bytes.write(0, (byte) RotationUtil.getPacketRotationInt(entityPos.getYaw()));
         bytes.write(1, (byte) RotationUtil.getPacketRotationInt(entityPos.getPitch()));
-        packet.getBooleans().write(0, tracker.getEntity().isOnGround());
+        packet.getBooleans().write(0, tracker.isOnGround());
 
         sendPacket(packet, players);
     }
@@ -242,7 +247,9 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         bytes.write(0, (byte) (int) (entityPos.getYaw() * 256.0f / 360.0f));
         bytes.write(1, (byte) (int) (entityPos.getPitch() * 256.0f / 360.0f));
 
-        packet.getBooleans().write(0, tracker.getEntity().isOnGround());
+        packet.getBooleans().write(0, tracker.isOnGround());
+
+        sendPacket(packet, players);
     }
 
     @Override
@@ -412,7 +419,20 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         }
     }
 
+    @Override
+    public long getPacketsBuilt() {
+        return packetsBuilt;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
     private void sendPacket(PacketContainer packet, Collection<Player> players) {
+        packetsBuilt++;
+        packetsSent += players.size();
+
         ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
         try {
             for (Player player : players) {
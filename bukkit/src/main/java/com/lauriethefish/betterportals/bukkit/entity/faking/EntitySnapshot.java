@@ -0,0 +1,114 @@
+package com.lauriethefish.betterportals.bukkit.entity.faking;
+
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.inventory.EntityEquipment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * The state of an entity that {@link EntityTracker}s send updates for, captured once per tick.
+ * The same entity can be tracked through many portals, so this is shared between all of its trackers, which compare it against what they last sent.
+ * Only used on the main thread.
+ */
+@Getter
+public class EntitySnapshot {
+    /**
+     * Number of equipment slots captured, in the order of {@link EntityEquipmentWatcher#SLOTS}
+     */
+    public static final int EQUIPMENT_SLOT_COUNT = 6;
+
+    private final Entity entity;
+    private int capturedTick = -1;
+
+    private Location location;
+    private double x;
+    private double y;
+    private double z;
+    private float yaw;
+    private float pitch;
+    // Bukkit uses the yaw as the head rotation
+    private float headYaw;
+    private boolean onGround;
+
+    private double velocityX;
+    private double velocityY;
+    private double velocityZ;
+
+    private List<Entity> passengers;
+
+    // Null for non-living entities, since they don't have equipment
+    private final ItemStack[] equipment;
+    private final int[] equipmentHashes;
+
+    public EntitySnapshot(@NotNull Entity entity) {
+        this.entity = entity;
+        boolean hasEquipment = entity instanceof LivingEntity;
+        this.equipment = hasEquipment ? new ItemStack[EQUIPMENT_SLOT_COUNT] : null;
+        this.equipmentHashes = hasEquipment ? new int[EQUIPMENT_SLOT_COUNT] : null;
+    }
+
+    /**
+     * Reads the current state of the entity. Does nothing if it was already captured on <code>tick</code>.
+     * @param tick The current tick
+     */
+    public void capture(int tick) {
+        if(tick == capturedTick) {return;}
+        capturedTick = tick;
+
+        location = entity.getLocation();
+        x = location.getX();
+        y = location.getY();
+        z = location.getZ();
+        yaw = location.getYaw();
+        pitch = location.getPitch();
+        headYaw = yaw;
+        onGround = entity.isOnGround();
+
+        Vector velocity = entity.getVelocity();
+        velocityX = velocity.getX();
+        velocityY = velocity.getY();
+        velocityZ = velocity.getZ();
+
+        passengers = entity.getPassengers();
+
+        if(equipment != null) {
+            captureEquipment(((LivingEntity) entity).getEquipment(), equipment, equipmentHashes);
+        }
+    }
+
+    /**
+     * Reads the items in each equipment slot, without capturing anything else about the entity.
+     * Does nothing if <code>current</code> is null.
+     * @param current The entity's equipment
+     * @param items Array of {@link EntitySnapshot#EQUIPMENT_SLOT_COUNT} items to read into, in the order of {@link EntityEquipmentWatcher#SLOTS}
+     * @param hashes Array of {@link EntitySnapshot#EQUIPMENT_SLOT_COUNT} hash codes of each item, zero for null items
+     */
+    static void captureEquipment(@Nullable EntityEquipment current, ItemStack[] items, int[] hashes) {
+        if(current == null) {return;}
+
+        items[0] = current.getItemInMainHand();
+        items[1] = current.getItemInOffHand();
+        items[2] = current.getHelmet();
+        items[3] = current.getChestplate();
+        items[4] = current.getLeggings();
+        items[5] = current.getBoots();
+
+        for(int i = 0; i < EQUIPMENT_SLOT_COUNT; i++) {
+            hashes[i] = items[i] == null ? 0 : items[i].hashCode();
+        }
+    }
+
+    /**
+     * @return Whether the entity has equipment
+     */
+    public boolean hasEquipment() {
+        return equipment != null;
+    }
+}
@@ -33,11 +33,20 @@ public class EntityTracker implements IEntityTracker    {
 
     private final Set<Player> trackingPlayers = new HashSet<>();
 
+    private final EntitySnapshot snapshot;
     private final EntityEquipmentWatcher equipmentWatcher;
-    private Vector lastPosition;
-    private Vector lastDirection;
-    private Vector lastVelocity;
+
+    // The state last sent to the tracking players, compared against the snapshot each tick
+    private boolean hasSentState = false;
+    private double lastX;
+    private double lastY;
+    private double lastZ;
+    private float lastYaw;
+    private float lastPitch;
     private float lastHeadRotation;
+    private double lastVelocityX;
+    private double lastVelocityY;
+    private double lastVelocityZ;
     private List<Entity> lastMounts;
 
     private final int metadataUpdateInterval;
@@ -45,29 +54,33 @@ public class EntityTracker implements IEntityTracker    {
 
     @Inject
     public EntityTracker(@Assisted Entity entity, @Assisted IPortal portal, IEntityPacketManipulator packetManipulator, EntityTrackingManager entityTrackingManager, RenderConfig renderConfig, JavaPlugin pl) {
+        this.snapshot = entityTrackingManager.acquireSnapshot(entity);
         // Non-living entities don't have equipment
         this.equipmentWatcher = entity instanceof LivingEntity ? new EntityEquipmentWatcher((LivingEntity) entity) : null;
         this.entity = entity;
         this.entityTrackingManager = entityTrackingManager;
         this.portal = portal;
-        this.entityInfo = new EntityInfo(portal.getTransformations(), entity);
+        this.entityInfo = new EntityInfo(portal.getTransformations(), entity, snapshot);
         this.packetManipulator = packetManipulator;
         this.metadataUpdateInterval = renderConfig.getEntityMetadataUpdateInterval();
         this.pl = pl;
     }
 
     public void update() {
+        // Only the first tracker of the entity to update this tick actually reads the entity
+        snapshot.capture(entityTrackingManager.getCurrentTick());
+
         sendMovementUpdates();
 
         // Equipment is disabled for living entities
         if(equipmentWatcher != null) {
-            Map<EnumWrappers.ItemSlot, ItemStack> equipmentChanges = equipmentWatcher.checkForChanges();
+            Map<EnumWrappers.ItemSlot, ItemStack> equipmentChanges = equipmentWatcher.checkForChanges(snapshot);
             if(equipmentChanges.size() > 0) {
                 packetManipulator.sendEntityEquipment(entityInfo, equipmentChanges, trackingPlayers);
             }
         }
 
-        List<Entity> newMounts = entity.getPassengers();
+        List<Entity> newMounts = snapshot.getPassengers();
         if(!newMounts.equals(lastMounts)) {
             lastMounts = newMounts;
 
@@ -88,14 +101,15 @@ public class EntityTracker implements IEntityTracker    {
             packetManipulator.sendMetadata(entityInfo, trackingPlayers);
         }
 
-        packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
-
-        Vector velocity = entity.getVelocity();
-        if(lastVelocity != null && !velocity.equals(lastVelocity)) {
-            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
-            lastVelocity = velocity;
+        boolean velocityChanged = snapshot.getVelocityX() != lastVelocityX || snapshot.getVelocityY() != lastVelocityY || snapshot.getVelocityZ() != lastVelocityZ;
+        if(hasSentState && velocityChanged) {
+            packetManipulator.sendEntityVelocity(entityInfo, new Vector(snapshot.getVelocityX(), snapshot.getVelocityY(), snapshot.getVelocityZ()), trackingPlayers);
         }
+        lastVelocityX = snapshot.getVelocityX();
+        lastVelocityY = snapshot.getVelocityY();
+        lastVelocityZ = snapshot.getVelocityZ();
 
+        hasSentState = true;
         ticksSinceCreated++;
     }
 
@@ -111,31 +125,34 @@ public class EntityTracker implements IEntityTracker    {
 
     // Handles sending all movement and looking packets
     private void sendMovementUpdates() {
-        Vector currentPosition = entity.getLocation().toVector();
-        Vector currentDirection = entity.getLocation().getDirection();
+        boolean positionChanged = hasSentState && (snapshot.getX() != lastX || snapshot.getY() != lastY || snapshot.getZ() != lastZ);
+        boolean rotationChanged = hasSentState && (snapshot.getYaw() != lastYaw || snapshot.getPitch() != lastPitch);
 
-        boolean positionChanged = lastPosition != null && !currentPosition.equals(lastPosition);
-        boolean rotationChanged = lastDirection != null && !currentDirection.equals(lastDirection);
-        Vector posOffset = lastPosition == null ? new Vector() : currentPosition.clone().subtract(lastPosition);
+        double offsetX = hasSentState ? snapshot.getX() - lastX : 0.0;
+        double offsetY = hasSentState ? snapshot.getY() - lastY : 0.0;
+        double offsetZ = hasSentState ? snapshot.getZ() - lastZ : 0.0;
 
-        lastPosition = currentPosition;
-        lastDirection = currentDirection;
+        lastX = snapshot.getX();
+        lastY = snapshot.getY();
+        lastZ = snapshot.getZ();
+        lastYaw = snapshot.getYaw();
+        lastPitch = snapshot.getPitch();
 
-        // Relative move packets have a limit of 8 blocks before we have to just send a teleport packet
-        boolean canUseRelativeMove = posOffset.getX() < 8 && posOffset.getY() < 8 && posOffset.getZ() < 8;
+        // Relative move packets have a limit of 8 blocks in either direction before we have to just send a teleport packet
+        boolean canUseRelativeMove = Math.abs(offsetX) < 8 && Math.abs(offsetY) < 8 && Math.abs(offsetZ) < 8;
         // We must combine the move and look to avoid issues on newer versions
         if (positionChanged && !canUseRelativeMove) {
             packetManipulator.sendEntityTeleport(entityInfo, trackingPlayers);
         } else if (positionChanged && rotationChanged) {
-            packetManipulator.sendEntityMoveLook(entityInfo, posOffset, trackingPlayers);
+            packetManipulator.sendEntityMoveLook(entityInfo, new Vector(offsetX, offsetY, offsetZ), trackingPlayers);
         } else if (positionChanged) {
-            packetManipulator.sendEntityMove(entityInfo, posOffset, trackingPlayers);
+            packetManipulator.sendEntityMove(entityInfo, new Vector(offsetX, offsetY, offsetZ), trackingPlayers);
         } else if (rotationChanged) {
             packetManipulator.sendEntityLook(entityInfo, trackingPlayers);
         }
 
         // Bukkit uses the yaw as the head rotation for some reason, so we do it with that
-        float headRotation = entity.getLocation().getYaw();
+        float headRotation = snapshot.getHeadYaw();
         if(lastHeadRotation != headRotation) {
             lastHeadRotation = headRotation;
             packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
@@ -146,6 +163,8 @@ public class EntityTracker implements IEntityTracker    {
         if(trackingPlayers.contains(player)) {throw new IllegalArgumentException("Player is already tracking this entity");}
 
         trackingPlayers.add(player);
+        // The entity is spawned from its snapshot, so make sure that it isn't out of date
+        snapshot.capture(entityTrackingManager.getCurrentTick());
 
         // If the tracker's entity UID is different, and they are a player, we must send a player info packet to add their profile to the server
         boolean sendingPlayerProfile = !entityInfo.getEntityUniqueId().equals(entityInfo.getEntity().getUniqueId()) && entityInfo.getEntity() instanceof Player;
@@ -154,6 +173,22 @@ public class EntityTracker implements IEntityTracker    {
         }
 
         packetManipulator.showEntity(entityInfo, player);
+        // Not every spawn packet has a head rotation field, so this is sent separately, as vanilla does when pairing an entity
+        packetManipulator.sendEntityHeadRotation(entityInfo, Collections.singleton(player));
+
+        // The first player to track the entity was spawned from this snapshot, so later moves are relative to it
+        if(!hasSentState) {
+            lastX = snapshot.getX();
+            lastY = snapshot.getY();
+            lastZ = snapshot.getZ();
+            lastYaw = snapshot.getYaw();
+            lastPitch = snapshot.getPitch();
+            lastHeadRotation = snapshot.getHeadYaw();
+            lastVelocityX = snapshot.getVelocityX();
+            lastVelocityY = snapshot.getVelocityY();
+            lastVelocityZ = snapshot.getVelocityZ();
+            hasSentState = true;
+        }
 
         if(sendingPlayerProfile) {
             Bukkit.getScheduler().runTaskLater(pl, () -> packetManipulator.sendRemovePlayerProfile(entityInfo, Collections.singleton(player)), fakePlayerTabListRemoveDelay);
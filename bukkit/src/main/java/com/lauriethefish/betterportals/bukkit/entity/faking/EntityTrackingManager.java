@@ -5,6 +5,7 @@ import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
@@ -18,6 +19,11 @@ public abstract class EntityTrackingManager {
     protected final Map<IPortal, Map<Entity, IEntityTracker>> trackersByPortal = new HashMap<>(); // Used for separating trackers based on portal
     protected final Logger logger;
 
+    // The state of each tracked entity is captured once per tick, then shared by all of its trackers
+    private final Map<Entity, EntitySnapshot> snapshots = new HashMap<>();
+    private final Map<Entity, Integer> snapshotReferences = new HashMap<>();
+    private int currentTick = 0;
+
     @Inject
     public EntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory) {
         this.logger = logger;
@@ -77,19 +83,66 @@ public abstract class EntityTrackingManager {
             trackerHasNoPlayers(tracker);
 
             portalMap.remove(entity);
+            releaseSnapshot(entity);
             if(portalMap.isEmpty()) {
                 trackersByPortal.remove(portal);
             }
         }
     }
 
+    /**
+     * Starts a new tick, so that snapshots captured after this read the entity again.
+     * Called at the start of each tick, before the player views add any trackers, so that newly shown entities are spawned from their current state.
+     */
+    public void startTick() {
+        currentTick++;
+    }
+
     /**
      * Updates all currently replicated entities
      */
     public void update() {
+        updateTrackers();
+    }
+
+    /**
+     * Sends the updates of each tracker. Called once per tick.
+     */
+    protected void updateTrackers() {
         trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
     }
 
+    /**
+     * @return The number of times that this manager has been updated. Snapshots captured on this tick are up to date
+     */
+    public int getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Finds the snapshot of <code>entity</code>, creating it if no other tracker of the entity exists, and captures its state if this hasn't been done yet this tick.
+     * The same instance is shared by every tracker of the entity until {@link EntityTrackingManager#releaseSnapshot(Entity)} is called by each of them.
+     * @param entity The entity to get the snapshot of
+     * @return The snapshot of the entity's state
+     */
+    public @NotNull EntitySnapshot acquireSnapshot(@NotNull Entity entity) {
+        EntitySnapshot snapshot = snapshots.computeIfAbsent(entity, EntitySnapshot::new);
+        snapshot.capture(currentTick);
+        snapshotReferences.merge(entity, 1, Integer::sum);
+        return snapshot;
+    }
+
+    /**
+     * Removes the snapshot of <code>entity</code> once no trackers are using it.
+     * @param entity The entity whose tracker was removed
+     */
+    private void releaseSnapshot(@NotNull Entity entity) {
+        Integer references = snapshotReferences.computeIfPresent(entity, (key, count) -> count == 1 ? null : count - 1);
+        if(references == null) {
+            snapshots.remove(entity);
+        }
+    }
+
     /**
      * Returns the tracker of <code>entity</code> on <code>portal</code>, or null if there is none.
      * @param portal The portal to check for trackers
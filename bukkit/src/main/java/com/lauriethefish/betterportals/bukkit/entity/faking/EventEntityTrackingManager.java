@@ -119,11 +119,6 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
         }
     }
 
-    @Override
-    public void update() {
-        trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
-    }
-
     @Override
     public @Nullable IEntityTracker getTracker(IPortal portal, Entity entity) {
         Map<Entity, IEntityTracker> portalTrackers = trackersByPortal.get(portal);
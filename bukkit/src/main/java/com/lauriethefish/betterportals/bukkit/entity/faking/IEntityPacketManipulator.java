@@ -148,4 +148,15 @@ public interface IEntityPacketManipulator {
      * @param players Players to send the packet to
      */
     void sendRemovePlayerProfile(EntityInfo tracker, Collection<Player> players);
+
+    /**
+     * Packets are built once for all of the players they're sent to, so comparing this to {@link IEntityPacketManipulator#getPacketsSent()} shows how many players each one reaches.
+     * @return The number of packets built since the plugin was enabled
+     */
+    long getPacketsBuilt();
+
+    /**
+     * @return The number of packets sent since the plugin was enabled, counting each player that a packet was sent to
+     */
+    long getPacketsSent();
 }
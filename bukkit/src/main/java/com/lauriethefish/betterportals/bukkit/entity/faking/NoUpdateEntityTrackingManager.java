@@ -8,7 +8,7 @@ import javax.inject.Singleton;
 
 /**
  * A simpler entity tracking manager, which does not send the update events ({@link IEntityTracker#onPickup(EntityInfo)} and {@link IEntityTracker#onAnimation(AnimationType)}) to each entity tracker.
- * This entity tracking manager also will not update the trackers via ({@link IEntityTracker#update()})
+ * This entity tracking manager also will not update the trackers via ({@link IEntityTracker#update()}), although snapshots of the tracked entities are still captured when they are shown
  */
 @Singleton
 public class NoUpdateEntityTrackingManager extends EntityTrackingManager {
@@ -18,7 +18,7 @@ public class NoUpdateEntityTrackingManager extends EntityTrackingManager {
     }
 
     @Override
-    public void update() {
-        // Deliberately not calling super.update since this tracking manager will not update the trackers
+    protected void updateTrackers() {
+        // Deliberately not calling super.updateTrackers since this tracking manager will not update the trackers
     }
 }
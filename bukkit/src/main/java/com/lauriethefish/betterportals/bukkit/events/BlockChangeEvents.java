@@ -0,0 +1,161 @@
+package com.lauriethefish.betterportals.bukkit.events;
+
+import com.google.inject.Inject;
+import com.lauriethefish.betterportals.bukkit.block.change.BlockChangeIndex;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+
+import java.util.List;
+
+/**
+ * Reports the blocks changed by Bukkit block events to the {@link BlockChangeIndex}.
+ * Everything is handled on {@link EventPriority#MONITOR}, ignoring cancelled events, so that only changes that will actually happen are reported.
+ */
+public class BlockChangeEvents implements Listener {
+    private final BlockChangeIndex changeIndex;
+
+    @Inject
+    public BlockChangeEvents(IEventRegistrar eventRegistrar, BlockChangeIndex changeIndex) {
+        this.changeIndex = changeIndex;
+
+        eventRegistrar.register(this);
+    }
+
+    private void onBlocksChange(List<Block> blocks) {
+        for(Block block : blocks) {
+            changeIndex.onBlockChange(block);
+        }
+    }
+
+    private void onStatesChange(List<BlockState> states) {
+        for(BlockState state : states) {
+            changeIndex.onBlockChange(state.getWorld(), state.getX(), state.getY(), state.getZ());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        if(event instanceof BlockMultiPlaceEvent) {
+            onStatesChange(((BlockMultiPlaceEvent) event).getReplacedBlockStates());
+        }   else    {
+            changeIndex.onBlockChange(event.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    // Sign text is tile entity data, so the sign's tile entity packet needs to be fetched again
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSignChange(SignChangeEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        changeIndex.onBlockChange(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onFluidLevelChange(FluidLevelChangeEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    // Also called for BlockSpreadEvent and EntityBlockFormEvent
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSpongeAbsorb(SpongeAbsorbEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+        onStatesChange(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFertilize(BlockFertilizeEvent event) {
+        onStatesChange(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        onStatesChange(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+        onBlocksChange(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        onBlocksChange(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        changeIndex.onBlockChange(event.getBlock());
+    }
+
+    private void onPistonMove(Block piston, List<Block> movedBlocks, BlockFace direction) {
+        // The piston head, and both the old and new position of every moved block, may change
+        changeIndex.onBlockChange(piston);
+        changeIndex.onBlockChange(piston.getRelative(direction));
+        for(Block block : movedBlocks) {
+            changeIndex.onBlockChange(block);
+            changeIndex.onBlockChange(block.getRelative(direction));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        onPistonMove(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        onPistonMove(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+}
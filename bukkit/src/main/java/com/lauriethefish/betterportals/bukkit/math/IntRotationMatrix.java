@@ -0,0 +1,59 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import com.lauriethefish.betterportals.api.IntVector;
+
+/**
+ * Integer version of a portal rotation {@link Matrix}.
+ * Portal rotations are always multiples of 90 degrees, so every element of the rotation is -1, 0 or 1.
+ * This allows block coordinates to be rotated without allocating a new {@link IntVector} or doing floating point maths.
+ */
+public class IntRotationMatrix {
+    private final int m00, m01, m02;
+    private final int m10, m11, m12;
+    private final int m20, m21, m22;
+
+    /**
+     * Creates the integer version of <code>rotation</code>.
+     * @param rotation Rotation matrix to convert. This must not contain a translation.
+     */
+    public IntRotationMatrix(Matrix rotation) {
+        // Find each column by transforming the unit vectors. This uses the same rounding as rotating a block position normally
+        IntVector xColumn = rotation.transform(1, 0, 0);
+        IntVector yColumn = rotation.transform(0, 1, 0);
+        IntVector zColumn = rotation.transform(0, 0, 1);
+
+        m00 = xColumn.getX(); m01 = yColumn.getX(); m02 = zColumn.getX();
+        m10 = xColumn.getY(); m11 = yColumn.getY(); m12 = zColumn.getY();
+        m20 = xColumn.getZ(); m21 = yColumn.getZ(); m22 = zColumn.getZ();
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z coordinate
+     * @return The X coordinate of the rotated vector
+     */
+    public int transformX(int x, int y, int z) {
+        return m00 * x + m01 * y + m02 * z;
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z coordinate
+     * @return The Y coordinate of the rotated vector
+     */
+    public int transformY(int x, int y, int z) {
+        return m10 * x + m11 * y + m12 * z;
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z coordinate
+     * @return The Z coordinate of the rotated vector
+     */
+    public int transformZ(int x, int y, int z) {
+        return m20 * x + m21 * y + m22 * z;
+    }
+}
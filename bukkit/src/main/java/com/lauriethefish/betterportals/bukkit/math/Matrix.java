@@ -147,6 +147,22 @@ public class Matrix implements Serializable {
         );
     }
 
+    /**
+     * Transforms the given coordinates by this matrix, writing the result into an existing vector instead of allocating one.
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z coordinate
+     * @param result Vector to write the transformed coordinates into
+     * @return <code>result</code>
+     */
+    public Vector transform(double x, double y, double z, Vector result) {
+        double w = x * m[3][0] + y * m[3][1] + z * m[3][2] + m[3][3];
+        result.setX((x * m[0][0] + y * m[0][1] + z * m[0][2] + m[0][3]) / w);
+        result.setY((x * m[1][0] + y * m[1][1] + z * m[1][2] + m[1][3]) / w);
+        result.setZ((x * m[2][0] + y * m[2][1] + z * m[2][2] + m[2][3]) / w);
+        return result;
+    }
+
     /**
      * Transforms coordinates by this matrix and returns a transformed IntVector
      * This will avoid floating point precision errors by moving the vector to the center of the block before transformation.
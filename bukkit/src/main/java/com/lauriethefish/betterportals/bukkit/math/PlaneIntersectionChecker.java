@@ -5,12 +5,47 @@ import org.bukkit.util.Vector;
 /**
  * Handles checking if a ray intersects a specific plane
  * Used for portal view checking, since the plane can be the portal's view plane
+ * <br>Everything that only depends on the plane and ray origin is worked out once in the constructor.
+ * The checks themselves use only primitive arithmetic, without normalising the ray or taking square roots, so they allocate nothing.
  */
 public class PlaneIntersectionChecker {
-    private final Vector planeCenter;
-    private final Vector planeNormal;
-    private final Vector maxDev;
-    private final Vector rayOrigin;
+    /**
+     * Returned by {@link PlaneIntersectionChecker#classifyBox(double, double, double, double, double, double)} if no ray from a point in the box intersects.
+     */
+    public static final int BOX_OUTSIDE = 0;
+    /**
+     * Returned by {@link PlaneIntersectionChecker#classifyBox(double, double, double, double, double, double)} if the rays from every point in the box intersect.
+     */
+    public static final int BOX_INSIDE = 1;
+    /**
+     * Returned by {@link PlaneIntersectionChecker#classifyBox(double, double, double, double, double, double)} if only some points in the box might intersect, so they must be checked separately.
+     */
+    public static final int BOX_PARTIAL = 2;
+
+    private static final double EPSILON_SQUARED = MathUtil.EPSILON * MathUtil.EPSILON;
+
+    private final double normalX;
+    private final double normalY;
+    private final double normalZ;
+
+    private final double originX;
+    private final double originY;
+    private final double originZ;
+
+    // Ray origin relative to the plane center
+    private final double originOffsetX;
+    private final double originOffsetY;
+    private final double originOffsetZ;
+
+    // Distance from the ray origin to the plane, along the normal
+    private final double planeDistance;
+
+    private final double maxDevX;
+    private final double maxDevY;
+    private final double maxDevZ;
+
+    // Normals of the four sides of the view frustum from the ray origin through the plane, pointing inwards. Null if the ray origin is in the plane
+    private final double[] sideNormals;
 
     /**
      * Creates a new {@link PlaneIntersectionChecker} with the specified options.
@@ -20,40 +55,201 @@ public class PlaneIntersectionChecker {
      * @param maxDev Represents the size of the plane. This can be treated like a radius
      */
     public PlaneIntersectionChecker(Vector planeCenter, Vector planeNormal, Vector rayOrigin, Vector maxDev)   {
-        this.planeCenter = planeCenter;
-        this.planeNormal = planeNormal;
-        this.rayOrigin = rayOrigin;
-        this.maxDev = maxDev;
+        this.normalX = planeNormal.getX();
+        this.normalY = planeNormal.getY();
+        this.normalZ = planeNormal.getZ();
+
+        this.originX = rayOrigin.getX();
+        this.originY = rayOrigin.getY();
+        this.originZ = rayOrigin.getZ();
+
+        this.originOffsetX = originX - planeCenter.getX();
+        this.originOffsetY = originY - planeCenter.getY();
+        this.originOffsetZ = originZ - planeCenter.getZ();
+
+        this.planeDistance = -(originOffsetX * normalX + originOffsetY * normalY + originOffsetZ * normalZ);
+
+        this.maxDevX = Math.abs(maxDev.getX());
+        this.maxDevY = Math.abs(maxDev.getY());
+        this.maxDevZ = Math.abs(maxDev.getZ());
+
+        this.sideNormals = Math.abs(planeDistance) > MathUtil.EPSILON ? findSideNormals(planeCenter) : null;
+    }
+
+    /**
+     * Finds the inward facing normals of the planes through the ray origin and each edge of the plane rectangle.
+     * The plane normal is always along an axis, so the rectangle's corners are offset from the center along the other two axes.
+     * @param planeCenter The center of the plane
+     * @return The normals, packed as x, y, z for each side
+     */
+    private double[] findSideNormals(Vector planeCenter) {
+        double absX = Math.abs(normalX);
+        double absY = Math.abs(normalY);
+        double absZ = Math.abs(normalZ);
+
+        // Offsets to each edge of the rectangle along its two axes
+        double[] uAxis;
+        double[] vAxis;
+        if(absX >= absY && absX >= absZ) {
+            uAxis = new double[]{0.0, maxDevY, 0.0};
+            vAxis = new double[]{0.0, 0.0, maxDevZ};
+        }   else if(absY >= absZ) {
+            uAxis = new double[]{maxDevX, 0.0, 0.0};
+            vAxis = new double[]{0.0, 0.0, maxDevZ};
+        }   else    {
+            uAxis = new double[]{maxDevX, 0.0, 0.0};
+            vAxis = new double[]{0.0, maxDevY, 0.0};
+        }
+
+        // Corners in order around the rectangle, relative to the ray origin
+        double[][] corners = new double[4][];
+        double[][] signs = {{1, 1}, {1, -1}, {-1, -1}, {-1, 1}};
+        for(int i = 0; i < 4; i++) {
+            corners[i] = new double[]{
+                    planeCenter.getX() + signs[i][0] * uAxis[0] + signs[i][1] * vAxis[0] - originX,
+                    planeCenter.getY() + signs[i][0] * uAxis[1] + signs[i][1] * vAxis[1] - originY,
+                    planeCenter.getZ() + signs[i][0] * uAxis[2] + signs[i][1] * vAxis[2] - originZ
+            };
+        }
+
+        double[] normals = new double[12];
+        for(int i = 0; i < 4; i++) {
+            double[] a = corners[i];
+            double[] b = corners[(i + 1) % 4];
+            double x = a[1] * b[2] - a[2] * b[1];
+            double y = a[2] * b[0] - a[0] * b[2];
+            double z = a[0] * b[1] - a[1] * b[0];
+
+            // Make the normal face towards the center of the rectangle, which is inside the frustum
+            if(x * -originOffsetX + y * -originOffsetY + z * -originOffsetZ < 0.0) {
+                x = -x; y = -y; z = -z;
+            }
+
+            normals[i * 3] = x;
+            normals[i * 3 + 1] = y;
+            normals[i * 3 + 2] = z;
+        }
+
+        return normals;
     }
 
     /**
-     * Finds if the line from <code>pos</code> to {@link PlaneIntersectionChecker#rayOrigin} intersects the plane.
+     * Finds if the line from <code>pos</code> to the ray origin intersects the plane.
      * @param pos The destination of the ray
      * @return Whether the ray intersects
      */
     public boolean checkIfIntersects(Vector pos)    {
-        // Find the direction to this position from the player's location
-        Vector direction = pos.clone().subtract(rayOrigin).normalize();
-
-        // Find if we intersect the plane, and where
-        double denominator = planeNormal.dot(direction);
-        if(Math.abs(denominator) > MathUtil.EPSILON) {
-            Vector difference = planeCenter.clone().subtract(rayOrigin);
-            double t = difference.dot(planeNormal) / denominator;
-            // If the block was before the portal, return false
-            if(rayOrigin.distance(pos) < t)    {
-                return false;
-            }
+        return checkIfIntersects(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    /**
+     * Finds if the line from the given position to the ray origin intersects the plane.
+     * @param x X coordinate of the destination of the ray
+     * @param y Y coordinate of the destination of the ray
+     * @param z Z coordinate of the destination of the ray
+     * @return Whether the ray intersects
+     */
+    public boolean checkIfIntersects(double x, double y, double z) {
+        // Unnormalised direction to this position from the player's location
+        double rayX = x - originX;
+        double rayY = y - originY;
+        double rayZ = z - originZ;
+
+        // If the ray is parallel to the plane, it never intersects
+        // Equivalent to checking the dot product of the normalised direction against the epsilon
+        double denominator = rayX * normalX + rayY * normalY + rayZ * normalZ;
+        double lengthSquared = rayX * rayX + rayY * rayY + rayZ * rayZ;
+        if(denominator * denominator <= EPSILON_SQUARED * lengthSquared) {
+            return false;
+        }
+
+        // Fraction of the way along the ray where it meets the plane
+        double s = planeDistance / denominator;
+
+        // If the block was before the portal (s > 1), or the plane is behind the player, then the ray doesn't go through the plane
+        // s * s * lengthSquared is the squared distance to the intersection
+        if(s > 1.0 || s <= 0.0 || s * s * lengthSquared <= EPSILON_SQUARED) {
+            return false;
+        }
 
-            if(t > MathUtil.EPSILON) {
-                Vector portalIntersectPoint = rayOrigin.clone().add(direction.multiply(t));
-                Vector distCenter = portalIntersectPoint.subtract(planeCenter);
+        // Return true if the intersection point was close enough to the portal window
+        return Math.abs(originOffsetX + rayX * s) <= maxDevX
+                && Math.abs(originOffsetY + rayY * s) <= maxDevY
+                && Math.abs(originOffsetZ + rayZ * s) <= maxDevZ;
+    }
 
-                // Return true if the intersection point was close enough to the portal window
-                return Math.abs(distCenter.getX()) <= maxDev.getX() && Math.abs(distCenter.getY()) <= maxDev.getY() && Math.abs(distCenter.getZ()) <= Math.abs(maxDev.getZ());
+    /**
+     * Finds if the line from the center of the given block to the ray origin intersects the plane.
+     * @param blockX X coordinate of the block
+     * @param blockY Y coordinate of the block
+     * @param blockZ Z coordinate of the block
+     * @return Whether the ray intersects
+     */
+    public boolean checkIfBlockIntersects(int blockX, int blockY, int blockZ) {
+        return checkIfIntersects(blockX + 0.5, blockY + 0.5, blockZ + 0.5);
+    }
+
+    /**
+     * Checks the centers of many blocks at once, with the coordinates of each block at the same index in each array.
+     * @param blockX X coordinates of the blocks
+     * @param blockY Y coordinates of the blocks
+     * @param blockZ Z coordinates of the blocks
+     * @param count Number of blocks to check, starting from the first index
+     * @param results Array to write whether the ray from each block intersects the plane into
+     */
+    public void checkIfBlocksIntersect(int[] blockX, int[] blockY, int[] blockZ, int count, boolean[] results) {
+        for(int i = 0; i < count; i++) {
+            results[i] = checkIfIntersects(blockX[i] + 0.5, blockY[i] + 0.5, blockZ[i] + 0.5);
+        }
+    }
+
+    /**
+     * Finds whether the rays from all, none or some of the points in an axis aligned box intersect the plane.
+     * This is conservative, so {@link PlaneIntersectionChecker#BOX_PARTIAL} may be returned even if all or none of the points intersect.
+     * @param minX Minimum X coordinate of the box
+     * @param minY Minimum Y coordinate of the box
+     * @param minZ Minimum Z coordinate of the box
+     * @param maxX Maximum X coordinate of the box
+     * @param maxY Maximum Y coordinate of the box
+     * @param maxZ Maximum Z coordinate of the box
+     * @return {@link PlaneIntersectionChecker#BOX_OUTSIDE}, {@link PlaneIntersectionChecker#BOX_INSIDE} or {@link PlaneIntersectionChecker#BOX_PARTIAL}
+     */
+    public int classifyBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if(sideNormals == null) {return BOX_PARTIAL;}
+
+        // If the whole box is on the same side of the plane as the ray origin, no rays can cross the plane
+        // planeDistance is the distance from the origin to the plane, so points on the origin's side have a plane offset of the opposite sign
+        double nearX = planeDistance > 0.0 ? (normalX > 0.0 ? maxX : minX) : (normalX > 0.0 ? minX : maxX);
+        double nearY = planeDistance > 0.0 ? (normalY > 0.0 ? maxY : minY) : (normalY > 0.0 ? minY : maxY);
+        double nearZ = planeDistance > 0.0 ? (normalZ > 0.0 ? maxZ : minZ) : (normalZ > 0.0 ? minZ : maxZ);
+        double furthestPlaneOffset = (nearX - originX) * normalX + (nearY - originY) * normalY + (nearZ - originZ) * normalZ;
+        if(planeDistance > 0.0 ? furthestPlaneOffset < planeDistance : furthestPlaneOffset > planeDistance) {
+            return BOX_OUTSIDE;
+        }
+
+        // If the whole box is outside one of the sides of the frustum, then none of it can be seen through the plane
+        for(int i = 0; i < 12; i += 3) {
+            double sideX = sideNormals[i];
+            double sideY = sideNormals[i + 1];
+            double sideZ = sideNormals[i + 2];
+
+            // The corner of the box furthest into this side
+            double cornerX = sideX > 0.0 ? maxX : minX;
+            double cornerY = sideY > 0.0 ? maxY : minY;
+            double cornerZ = sideZ > 0.0 ? maxZ : minZ;
+            if((cornerX - originX) * sideX + (cornerY - originY) * sideY + (cornerZ - originZ) * sideZ < 0.0) {
+                return BOX_OUTSIDE;
             }
         }
 
-        return false;
+        // The visible region is convex, so if every corner is visible, everything in between is as well
+        if(checkIfIntersects(minX, minY, minZ) && checkIfIntersects(maxX, minY, minZ)
+                && checkIfIntersects(minX, maxY, minZ) && checkIfIntersects(maxX, maxY, minZ)
+                && checkIfIntersects(minX, minY, maxZ) && checkIfIntersects(maxX, minY, maxZ)
+                && checkIfIntersects(minX, maxY, maxZ) && checkIfIntersects(maxX, maxY, maxZ)) {
+            return BOX_INSIDE;
+        }
+
+        return BOX_PARTIAL;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import org.bukkit.util.Vector;
+
+/**
+ * Checks if entities have moved through the plane of a portal between two positions.
+ * The plane is worked out once, then the signed distance of a position from it can be found with a single dot product.
+ * A movement can only go through the portal if the signed distance changes sign, so the bounded check against the size of the plane only happens in that case.
+ * <br>This gives the same results as a {@link PlaneIntersectionChecker} with the last position as the ray origin, without allocating a checker for every entity.
+ */
+public class PortalCrossingDetector {
+    private static final double EPSILON_SQUARED = MathUtil.EPSILON * MathUtil.EPSILON;
+
+    private final double centerX;
+    private final double centerY;
+    private final double centerZ;
+
+    private final double normalX;
+    private final double normalY;
+    private final double normalZ;
+
+    private final double maxDevX;
+    private final double maxDevY;
+    private final double maxDevZ;
+
+    /**
+     * Creates a new {@link PortalCrossingDetector} for the given plane.
+     * @param planeCenter The center position of the plane.
+     * @param planeNormal The direction of the plane, this should be normalised.
+     * @param maxDev Represents the size of the plane. This can be treated like a radius
+     */
+    public PortalCrossingDetector(Vector planeCenter, Vector planeNormal, Vector maxDev) {
+        this.centerX = planeCenter.getX();
+        this.centerY = planeCenter.getY();
+        this.centerZ = planeCenter.getZ();
+
+        this.normalX = planeNormal.getX();
+        this.normalY = planeNormal.getY();
+        this.normalZ = planeNormal.getZ();
+
+        this.maxDevX = Math.abs(maxDev.getX());
+        this.maxDevY = Math.abs(maxDev.getY());
+        this.maxDevZ = Math.abs(maxDev.getZ());
+    }
+
+    /**
+     * Finds the signed distance of a position from the plane, along its normal.
+     * @param x X coordinate of the position
+     * @param y Y coordinate of the position
+     * @param z Z coordinate of the position
+     * @return The signed distance, which is positive in front of the plane and negative behind it
+     */
+    public double findSignedDistance(double x, double y, double z) {
+        return (x - centerX) * normalX + (y - centerY) * normalY + (z - centerZ) * normalZ;
+    }
+
+    /**
+     * Finds if the movement from the last position to the current position went through the plane.
+     * The signed distances must have been found with {@link PortalCrossingDetector#findSignedDistance(double, double, double)}, so that they can be reused between checks.
+     * @param lastX X coordinate of the last position
+     * @param lastY Y coordinate of the last position
+     * @param lastZ Z coordinate of the last position
+     * @param lastDistance Signed distance of the last position
+     * @param x X coordinate of the current position
+     * @param y Y coordinate of the current position
+     * @param z Z coordinate of the current position
+     * @param distance Signed distance of the current position
+     * @return Whether the movement went through the plane
+     */
+    public boolean checkIfCrossed(double lastX, double lastY, double lastZ, double lastDistance, double x, double y, double z, double distance) {
+        // If the movement didn't go from one side of the plane to the other (or onto it), it can't have gone through the portal
+        boolean signFlipped = lastDistance > 0.0 ? distance <= 0.0 : (lastDistance < 0.0 && distance >= 0.0);
+        if(!signFlipped) {return false;}
+
+        double moveX = x - lastX;
+        double moveY = y - lastY;
+        double moveZ = z - lastZ;
+
+        // Ignore movements almost parallel to the plane, and positions that start almost exactly on the plane, as the intersection checker does
+        double denominator = distance - lastDistance;
+        double lengthSquared = moveX * moveX + moveY * moveY + moveZ * moveZ;
+        if(denominator * denominator <= EPSILON_SQUARED * lengthSquared) {
+            return false;
+        }
+
+        // Fraction of the way along the movement where it meets the plane
+        double s = -lastDistance / denominator;
+        if(s * s * lengthSquared <= EPSILON_SQUARED) {
+            return false;
+        }
+
+        // Only crossings within the portal window count
+        return Math.abs(lastX + moveX * s - centerX) <= maxDevX
+                && Math.abs(lastY + moveY * s - centerY) <= maxDevY
+                && Math.abs(lastZ + moveZ * s - centerZ) <= maxDevZ;
+    }
+}
@@ -137,17 +137,33 @@ public class PortalTransformations {
      * @return The intersection checker
      */
     public PlaneIntersectionChecker createIntersectionChecker(Vector rayOrigin) {
-        Vector planeSize = portalSize.clone().multiply(0.5); // The size for the intersection checker is a radius, so we half this since it's the size of the full portal window
-        planeSize = originPos.getDirection().swapVector(planeSize); // Must be on the Z and Y, or Z and X if horizontal (portal's sizes always use the XZ, but we don't want this here)
-
-        Vector collisionBoxOffset = originPos.getDirection().swapVector(renderConfig.getCollisionBox());
-        planeSize.add(collisionBoxOffset); // Expand the size slightly by the values in the config
-
         return new PlaneIntersectionChecker(
                 originPos.getVector(),
                 originPos.getDirection().toVector(),
                 rayOrigin, // The origin pos of a portal is always exactly in the center of the plane
-                planeSize // The max deviation acts as a radius, so we half this
+                findPlaneSize() // The max deviation acts as a radius, so we half this
+        );
+    }
+
+    /**
+     * Creates a {@link PortalCrossingDetector} for checking if entities have moved through the origin of the parent portal.
+     * This uses the same plane as {@link PortalTransformations#createIntersectionChecker(Vector)}, and only needs to be created once.
+     * @return The crossing detector
+     */
+    public PortalCrossingDetector createCrossingDetector() {
+        return new PortalCrossingDetector(
+                originPos.getVector(),
+                originPos.getDirection().toVector(),
+                findPlaneSize()
         );
     }
+
+    private Vector findPlaneSize() {
+        Vector planeSize = portalSize.clone().multiply(0.5); // The size for the intersection checker is a radius, so we half this since it's the size of the full portal window
+        planeSize = originPos.getDirection().swapVector(planeSize); // Must be on the Z and Y, or Z and X if horizontal (portal's sizes always use the XZ, but we don't want this here)
+
+        Vector collisionBoxOffset = originPos.getDirection().swapVector(renderConfig.getCollisionBox());
+        planeSize.add(collisionBoxOffset); // Expand the size slightly by the values in the config
+        return planeSize;
+    }
 }
\ No newline at end of file
@@ -5,9 +5,12 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.block.fetch.ExternalBlockChangeReceiver;
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangesLeaseRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.CheckDestinationValidityRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetSelectionRequest;
+import com.lauriethefish.betterportals.bukkit.net.requests.PushBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.TestForwardedRequest;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.selection.IPortalSelection;
@@ -33,14 +36,16 @@ import java.util.function.Consumer;
 public class ClientRequestHandler implements IRequestHandler {
     private final Logger logger;
     private final IExternalBlockWatcherManager blockWatcherManager;
+    private final ExternalBlockChangeReceiver blockChangeReceiver;
     private final IPlayerDataManager playerDataManager;
     private final IPortalClient portalClient;
     private final ConcurrentLinkedQueue<Pair<Request, Consumer<Response>>> awaitingHandling = new ConcurrentLinkedQueue<>();
 
     @Inject
-    public ClientRequestHandler(Logger logger, IExternalBlockWatcherManager blockWatcherManager, IPlayerDataManager playerDataManager, IPortalClient portalClient) {
+    public ClientRequestHandler(Logger logger, IExternalBlockWatcherManager blockWatcherManager, ExternalBlockChangeReceiver blockChangeReceiver, IPlayerDataManager playerDataManager, IPortalClient portalClient) {
         this.logger = logger;
         this.blockWatcherManager = blockWatcherManager;
+        this.blockChangeReceiver = blockChangeReceiver;
         this.playerDataManager = playerDataManager;
         this.portalClient = portalClient;
     }
@@ -69,6 +74,10 @@ public class ClientRequestHandler implements IRequestHandler {
                 handleRelayedRequest((RelayRequest) request, onFinish);
             }   else if(request instanceof GetBlockDataChangesRequest) {
                 handleGetBlockDataChangesRequest((GetBlockDataChangesRequest) request, onFinish);
+            }   else if(request instanceof PushBlockDataChangesRequest) {
+                handlePushBlockDataChangesRequest((PushBlockDataChangesRequest) request, onFinish);
+            }   else if(request instanceof BlockChangesLeaseRequest) {
+                handleBlockChangesLeaseRequest((BlockChangesLeaseRequest) request, onFinish);
             }   else if(request instanceof TestForwardedRequest) {
                 handleTestForwardedRequest((TestForwardedRequest) request, onFinish);
             }   else if(request instanceof CheckDestinationValidityRequest) {
@@ -95,6 +104,11 @@ public class ClientRequestHandler implements IRequestHandler {
 
     private void handleRelayedRequest(RelayRequest request, Consumer<Response> onFinish) throws IOException, ClassNotFoundException {
         Request innerRequest = request.getInnerRequest();
+        // Block changes are pushed back to the server that subscribed to them
+        if(innerRequest instanceof GetBlockDataChangesRequest) {
+            ((GetBlockDataChangesRequest) innerRequest).setOriginServer(request.getSourceServer());
+        }
+
         handleRequest(innerRequest, (response) -> {
             ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
             try {
@@ -114,6 +128,14 @@ public class ClientRequestHandler implements IRequestHandler {
         blockWatcherManager.onRequestReceived(request, onFinish);
     }
 
+    private void handlePushBlockDataChangesRequest(@NotNull PushBlockDataChangesRequest request, @NotNull Consumer<Response> onFinish) throws RequestException {
+        blockChangeReceiver.onChangesReceived(request, onFinish);
+    }
+
+    private void handleBlockChangesLeaseRequest(@NotNull BlockChangesLeaseRequest request, @NotNull Consumer<Response> onFinish) throws RequestException {
+        blockWatcherManager.onLeaseRequestReceived(request, onFinish);
+    }
+
     private void handleTestForwardedRequest(@NotNull TestForwardedRequest request, @NotNull Consumer<Response> onFinish) throws RequestException  {
         logger.info("Received test forwarded request. Content: %s", request.getTestField());
 
@@ -2,8 +2,10 @@ package com.lauriethefish.betterportals.bukkit.net;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
 import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.bukkit.util.VirtualThreads;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.*;
 import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
@@ -24,6 +26,10 @@ import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -31,6 +37,7 @@ import java.util.function.Consumer;
 public class PortalClient implements IPortalClient {
     private final JavaPlugin pl;
     private final ProxyConfig proxyConfig;
+    private final MiscConfig miscConfig;
     private final Logger logger;
     private final EncryptedObjectStreamFactory encryptedObjectStreamFactory;
     private final IRequestHandler requestHandler;
@@ -45,13 +52,17 @@ public class PortalClient implements IPortalClient {
 
     private IEncryptedObjectStream objectStream;
 
+    // Sends requests and responses in order, without blocking the thread that sent them. Created for each connection
+    private volatile ExecutorService sendExecutor;
+
     private final AtomicInteger currentRequestId = new AtomicInteger();
     private final ConcurrentMap<Integer, Consumer<Response>> waitingRequests = new ConcurrentHashMap<>();
 
     @Inject
-    public PortalClient(JavaPlugin pl, ProxyConfig proxyConfig, Logger logger, CipherManager cipherManager, EncryptedObjectStreamFactory encryptedObjectStreamFactory, IRequestHandler requestHandler, IClientReconnectHandler reconnectHandler) {
+    public PortalClient(JavaPlugin pl, ProxyConfig proxyConfig, MiscConfig miscConfig, Logger logger, CipherManager cipherManager, EncryptedObjectStreamFactory encryptedObjectStreamFactory, IRequestHandler requestHandler, IClientReconnectHandler reconnectHandler) {
         this.pl = pl;
         this.proxyConfig = proxyConfig;
+        this.miscConfig = miscConfig;
         this.logger = logger;
         this.encryptedObjectStreamFactory = encryptedObjectStreamFactory;
         this.requestHandler = requestHandler;
@@ -72,6 +83,8 @@ public class PortalClient implements IPortalClient {
             ex.printStackTrace();
         }
 
+        sendExecutor = createSendExecutor();
+
         new Thread(() -> {
             try {
                 run();
@@ -102,6 +115,40 @@ public class PortalClient implements IPortalClient {
         }).start();
     }
 
+    /**
+     * Sending blocks on the socket, and only one object can be written at once anyway, so a single thread is used for sends.
+     * This is a virtual thread if available, otherwise a platform thread.
+     * @return The executor to use for sending
+     */
+    private ExecutorService createSendExecutor() {
+        ThreadFactory threadFactory = miscConfig.isVirtualThreadsEnabled() ? VirtualThreads.createFactory("BetterPortals Proxy Send Thread ") : null;
+        if(threadFactory == null) {
+            threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "BetterPortals Proxy Send Thread");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        return Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    /**
+     * Runs <code>task</code> on the send executor, or drops it if the connection has been closed.
+     * @param task The task to run
+     */
+    private void runSendTask(Runnable task) {
+        ExecutorService executor = sendExecutor;
+        try {
+            if(executor != null) {
+                executor.execute(task);
+                return;
+            }
+        }   catch(RejectedExecutionException ignored) { }
+
+        logger.fine("Dropping send since the connection to the proxy was closed");
+    }
+
     private void run() throws IOException, GeneralSecurityException, ClassNotFoundException {
         socket = new Socket();
         socket.connect(proxyConfig.getAddress());
@@ -136,7 +183,7 @@ public class PortalClient implements IPortalClient {
      */
     private void processRequest(Request request) {
         // We don't just send the response directly, since it may take some time to process the request, and we need to be ready for more requests.
-        requestHandler.handleRequest(request, (response) -> Bukkit.getScheduler().runTaskAsynchronously(pl, () -> {
+        requestHandler.handleRequest(request, (response) -> runSendTask(() -> {
             response.setId((request).getId()); // Assign the correct request ID so that the proxy knows which request this response is for
             try {
                 send(response);
@@ -244,6 +291,11 @@ public class PortalClient implements IPortalClient {
         isRunning = false;
         hasHandshakeFinished = false;
 
+        ExecutorService executor = sendExecutor;
+        if(executor != null) {
+            executor.shutdown();
+        }
+
         try {
             if(socket != null) {
                 socket.close();
@@ -278,7 +330,7 @@ public class PortalClient implements IPortalClient {
         }
 
         // Avoid blocking the main thread
-        Bukkit.getScheduler().runTaskAsynchronously(pl, () -> {
+        runSendTask(() -> {
             try {
                 send(request);
             } catch (IOException | GeneralSecurityException ex) {
@@ -0,0 +1,373 @@
+package com.lauriethefish.betterportals.bukkit.net.requests;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A set of block changes at the destination of a cross-server portal.
+ * Batches for each subscription are numbered in the order that they are created, so that the origin can tell if one was missed.
+ * <br>The changes are stored in a compact binary format, since the first batch for a portal contains every block in its area.
+ * Changes are grouped by chunk section, and each section has a palette of the combined IDs in it. Then either:
+ * <ul>
+ *     <li>Sections with few changes store the position within the section and the palette index of each change.</li>
+ *     <li>Sections with many changes store a bitmap of which blocks changed, followed by runs of palette indices in position order.
+ *     Since the first batch contains whole sections of mostly the same blocks, this is usually only a few bytes more than the bitmap.</li>
+ * </ul>
+ * This needs at most a few bytes per change, so even the largest supported view areas are well within the maximum request size.
+ */
+public class BlockChangeBatch implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private static final int SECTION_VOLUME = 4096;
+    private static final int BITMAP_LONGS = SECTION_VOLUME / 64;
+
+    private static final byte MODE_SPARSE = 0;
+    private static final byte MODE_BITMAP = 1;
+    /**
+     * Sections with more changes than this use a bitmap, since each sparse change takes at least three bytes, and the bitmap is 512 bytes
+     */
+    private static final int BITMAP_THRESHOLD = 170;
+
+    @Getter private final int sequence;
+    @Getter private final int changeCount;
+    private final byte[] data;
+
+    /**
+     * Receives each change when decoding a batch.
+     */
+    @FunctionalInterface
+    public interface ChangeConsumer {
+        /**
+         * @param x X coordinate of the changed block at the destination
+         * @param y Y coordinate of the changed block at the destination
+         * @param z Z coordinate of the changed block at the destination
+         * @param combinedId The new combined ID of the block
+         */
+        void accept(int x, int y, int z, int combinedId);
+    }
+
+    private BlockChangeBatch(int sequence, int changeCount, byte[] data) {
+        this.sequence = sequence;
+        this.changeCount = changeCount;
+        this.data = data;
+    }
+
+    /**
+     * @return The size of the encoded changes, in bytes
+     */
+    public int getEncodedSize() {
+        return data.length;
+    }
+
+    /**
+     * Decodes the changes in this batch, passing each one to <code>consumer</code>.
+     * Changes are grouped by section, and the combined IDs of changes in the same section are usually repeated, so consumers can cache the last ID they converted.
+     * @param consumer Called with each change
+     */
+    public void forEachChange(@NotNull ChangeConsumer consumer) {
+        Decoder decoder = new Decoder(data);
+        int sectionCount = decoder.readVarInt();
+        long[] bitmap = new long[BITMAP_LONGS];
+
+        for(int section = 0; section < sectionCount; section++) {
+            int baseX = decoder.readZigZag() << 4;
+            int baseY = decoder.readZigZag() << 4;
+            int baseZ = decoder.readZigZag() << 4;
+
+            int[] palette = new int[decoder.readVarInt()];
+            for(int i = 0; i < palette.length; i++) {
+                palette[i] = decoder.readVarInt();
+            }
+
+            byte mode = decoder.readByte();
+            if(mode == MODE_SPARSE) {
+                int count = decoder.readVarInt();
+                for(int i = 0; i < count; i++) {
+                    int position = decoder.readShort();
+                    int combinedId = palette[decoder.readVarInt()];
+                    consumer.accept(baseX + (position & 15), baseY + (position >> 8), baseZ + ((position >> 4) & 15), combinedId);
+                }
+            }   else if(mode == MODE_BITMAP) {
+                for(int i = 0; i < BITMAP_LONGS; i++) {
+                    bitmap[i] = decoder.readLong();
+                }
+
+                int runRemaining = 0;
+                int combinedId = 0;
+                for(int word = 0; word < BITMAP_LONGS; word++) {
+                    long bits = bitmap[word];
+                    while(bits != 0) {
+                        int position = word * 64 + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+
+                        if(runRemaining == 0) {
+                            runRemaining = decoder.readVarInt();
+                            combinedId = palette[decoder.readVarInt()];
+                        }
+                        runRemaining--;
+                        consumer.accept(baseX + (position & 15), baseY + (position >> 8), baseZ + ((position >> 4) & 15), combinedId);
+                    }
+                }
+            }   else    {
+                throw new IllegalStateException("Unknown block change section mode " + mode);
+            }
+        }
+    }
+
+    /**
+     * Reads the primitives written by {@link Encoder}.
+     */
+    private static class Decoder {
+        private final byte[] data;
+        private int position = 0;
+
+        private Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        private byte readByte() {
+            return data[position++];
+        }
+
+        private int readShort() {
+            return ((data[position++] & 0xFF) << 8) | (data[position++] & 0xFF);
+        }
+
+        private long readLong() {
+            long result = 0;
+            for(int i = 0; i < 8; i++) {
+                result = (result << 8) | (data[position++] & 0xFF);
+            }
+            return result;
+        }
+
+        private int readVarInt() {
+            int result = 0;
+            int shift = 0;
+            byte next;
+            do {
+                next = data[position++];
+                result |= (next & 0x7F) << shift;
+                shift += 7;
+            }   while((next & 0x80) != 0);
+            return result;
+        }
+
+        private int readZigZag() {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    /**
+     * Encodes changes into a {@link BlockChangeBatch}.
+     * Changes are added one section at a time, between {@link Encoder#beginSection(int, int, int)} and {@link Encoder#endSection()}.
+     * An encoder can be reused after calling {@link Encoder#finish(int)}. This is not thread safe.
+     */
+    public static class Encoder {
+        private static final int NO_CHANGE = -1;
+
+        private byte[] buffer = new byte[4096];
+        private int length = 0;
+        private int sectionCount = 0;
+        private int changeCount = 0;
+
+        // The current section's changes, indexed by position in the section
+        private final int[] sectionIds = new int[SECTION_VOLUME];
+        private final short[] sectionPositions = new short[SECTION_VOLUME];
+        private final int[] sortedIds = new int[SECTION_VOLUME];
+        private int sectionChangeCount = 0;
+        private int sectionX;
+        private int sectionY;
+        private int sectionZ;
+        private boolean inSection = false;
+
+        public Encoder() {
+            Arrays.fill(sectionIds, NO_CHANGE);
+        }
+
+        /**
+         * Starts adding changes in a new section.
+         * @param sectionX X coordinate of the section
+         * @param sectionY Y coordinate of the section
+         * @param sectionZ Z coordinate of the section
+         */
+        public void beginSection(int sectionX, int sectionY, int sectionZ) {
+            if(inSection) {throw new IllegalStateException("Cannot begin a section before ending the last one");}
+
+            this.sectionX = sectionX;
+            this.sectionY = sectionY;
+            this.sectionZ = sectionZ;
+            inSection = true;
+        }
+
+        /**
+         * Adds a change to the current section. If the block has already been changed in this section, its combined ID is replaced.
+         * @param x X coordinate of the block, which must be in the current section
+         * @param y Y coordinate of the block, which must be in the current section
+         * @param z Z coordinate of the block, which must be in the current section
+         * @param combinedId The new combined ID of the block
+         */
+        public void addChange(int x, int y, int z, int combinedId) {
+            int position = ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+            if(sectionIds[position] == NO_CHANGE) {
+                sectionPositions[sectionChangeCount] = (short) position;
+                sectionChangeCount++;
+            }
+            sectionIds[position] = combinedId;
+        }
+
+        /**
+         * Writes the changes in the current section. Nothing is written if there were none.
+         */
+        public void endSection() {
+            if(!inSection) {throw new IllegalStateException("Cannot end a section before beginning one");}
+            inSection = false;
+            if(sectionChangeCount == 0) {return;}
+
+            writeZigZag(sectionX);
+            writeZigZag(sectionY);
+            writeZigZag(sectionZ);
+
+            // Sort the IDs, then remove duplicates to find the palette. Indices in the palette are then found with a binary search
+            for(int i = 0; i < sectionChangeCount; i++) {
+                sortedIds[i] = sectionIds[sectionPositions[i]];
+            }
+            Arrays.sort(sortedIds, 0, sectionChangeCount);
+            int paletteSize = 0;
+            for(int i = 0; i < sectionChangeCount; i++) {
+                if(paletteSize == 0 || sortedIds[paletteSize - 1] != sortedIds[i]) {
+                    sortedIds[paletteSize] = sortedIds[i];
+                    paletteSize++;
+                }
+            }
+
+            writeVarInt(paletteSize);
+            for(int i = 0; i < paletteSize; i++) {
+                writeVarInt(sortedIds[i]);
+            }
+
+            if(sectionChangeCount > BITMAP_THRESHOLD) {
+                writeBitmapSection(paletteSize);
+            }   else    {
+                writeSparseSection(paletteSize);
+            }
+
+            for(int i = 0; i < sectionChangeCount; i++) {
+                sectionIds[sectionPositions[i]] = NO_CHANGE;
+            }
+            sectionCount++;
+            changeCount += sectionChangeCount;
+            sectionChangeCount = 0;
+        }
+
+        private void writeSparseSection(int paletteSize) {
+            writeByte(MODE_SPARSE);
+            writeVarInt(sectionChangeCount);
+            for(int i = 0; i < sectionChangeCount; i++) {
+                int position = sectionPositions[i];
+                writeShort(position);
+                writeVarInt(Arrays.binarySearch(sortedIds, 0, paletteSize, sectionIds[position]));
+            }
+        }
+
+        private void writeBitmapSection(int paletteSize) {
+            writeByte(MODE_BITMAP);
+            long[] bitmap = new long[BITMAP_LONGS];
+            for(int i = 0; i < sectionChangeCount; i++) {
+                int position = sectionPositions[i];
+                bitmap[position >> 6] |= 1L << (position & 63);
+            }
+            for(long word : bitmap) {
+                writeLong(word);
+            }
+
+            // Runs of the same ID are written in position order, skipping the positions without a change
+            int runId = NO_CHANGE;
+            int runLength = 0;
+            for(int position = 0; position < SECTION_VOLUME; position++) {
+                int combinedId = sectionIds[position];
+                if(combinedId == NO_CHANGE) {continue;}
+
+                if(combinedId != runId && runLength > 0) {
+                    writeVarInt(runLength);
+                    writeVarInt(Arrays.binarySearch(sortedIds, 0, paletteSize, runId));
+                    runLength = 0;
+                }
+                runId = combinedId;
+                runLength++;
+            }
+            writeVarInt(runLength);
+            writeVarInt(Arrays.binarySearch(sortedIds, 0, paletteSize, runId));
+        }
+
+        /**
+         * @return The number of changes written so far
+         */
+        public int getChangeCount() {
+            return changeCount;
+        }
+
+        /**
+         * Creates a batch containing the changes written so far, then resets this encoder.
+         * @param sequence The sequence number of the batch
+         * @return The new batch
+         */
+        public @NotNull BlockChangeBatch finish(int sequence) {
+            if(inSection) {throw new IllegalStateException("Cannot finish a batch before ending the current section");}
+
+            // The section count is written at the start, so the sections are written after it
+            byte[] sections = Arrays.copyOf(buffer, length);
+            length = 0;
+            writeVarInt(sectionCount);
+            byte[] result = Arrays.copyOf(buffer, length + sections.length);
+            System.arraycopy(sections, 0, result, length, sections.length);
+
+            BlockChangeBatch batch = new BlockChangeBatch(sequence, changeCount, result);
+            length = 0;
+            sectionCount = 0;
+            changeCount = 0;
+            return batch;
+        }
+
+        private void ensureCapacity(int extra) {
+            if(length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            ensureCapacity(2);
+            buffer[length++] = (byte) (value >> 8);
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >> shift);
+            }
+        }
+
+        private void writeVarInt(int value) {
+            ensureCapacity(5);
+            while((value & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeZigZag(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+    }
+}
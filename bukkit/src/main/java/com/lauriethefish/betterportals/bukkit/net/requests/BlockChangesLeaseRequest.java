@@ -0,0 +1,24 @@
+package com.lauriethefish.betterportals.bukkit.net.requests;
+
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.UUID;
+
+/**
+ * Sent from the origin of a cross-server portal to keep a block change subscription alive, or to end it.
+ * Subscriptions that aren't renewed are removed by the destination, in case the origin stops without unsubscribing.
+ * The destination responds with an error if the subscription doesn't exist, in which case the origin should subscribe again.
+ */
+@Getter
+@Setter
+public class BlockChangesLeaseRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private UUID changeSetId;
+    /**
+     * Whether to end the subscription instead of renewing it
+     */
+    private boolean release;
+}
@@ -9,8 +9,10 @@ import lombok.Setter;
 import java.util.UUID;
 
 /**
- * Used to request a set of block data changes from the destination of a cross-server portal.
- * This will send all of the blocks within the portal area the first time it's sent with a particular {@link GetBlockDataChangesRequest#changeSetId}.
+ * Used to subscribe to the block data changes at the destination of a cross-server portal.
+ * The response is a {@link BlockChangeBatch} containing all of the blocks within the portal area.
+ * After that, the destination pushes each tick's changes to the origin with a {@link PushBlockDataChangesRequest}, until the subscription is released or its lease runs out.
+ * Sending this again with the same {@link GetBlockDataChangesRequest#changeSetId} resends every block, which is used to resynchronise if a batch was missed.
  */
 @Getter
 @Setter
@@ -28,4 +30,9 @@ public class GetBlockDataChangesRequest extends Request {
      */
     private int xAndZRadius;
     private int yRadius;
+
+    /**
+     * Server to push changes to. Set by the destination from the relayed request, since the origin may not know its own name
+     */
+    private String originServer;
 }
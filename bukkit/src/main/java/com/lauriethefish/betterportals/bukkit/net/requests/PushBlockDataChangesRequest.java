@@ -0,0 +1,20 @@
+package com.lauriethefish.betterportals.bukkit.net.requests;
+
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.UUID;
+
+/**
+ * Sent from the destination of a cross-server portal to the origin whenever blocks change in a subscribed area.
+ * The origin responds with an error if it no longer has a subscription with {@link PushBlockDataChangesRequest#changeSetId}.
+ */
+@Getter
+@Setter
+public class PushBlockDataChangesRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private UUID changeSetId;
+    private BlockChangeBatch batch;
+}
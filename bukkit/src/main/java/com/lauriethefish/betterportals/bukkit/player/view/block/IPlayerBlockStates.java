@@ -2,7 +2,6 @@ package com.lauriethefish.betterportals.bukkit.player.view.block;
 
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
 
 // Implementors of this class must make sure that it is thread safe
 // Manages the current blocks that the player can see
@@ -12,11 +11,12 @@ public interface IPlayerBlockStates {
     void resetAndUpdate(int minChunkX, int maxChunkY);
 
     // Note: these methods just update the array, they won't actually send any packets
+    // Blocks are keyed by their array index, so these must only be called with blocks from one block map
     // Returns if the block was not viewable last tick, AKA whether or not an update packet is needed
-    boolean setViewable(Vector position, IViewableBlockInfo block);
+    boolean setViewable(IViewableBlockInfo block);
 
     // Returns if the block was viewable last tick, AKA whether or not an update packet is needed
-    boolean setNonViewable(Vector position, IViewableBlockInfo block);
+    boolean setNonViewable(IViewableBlockInfo block);
 
     interface Factory {
         IPlayerBlockStates create(Player player);
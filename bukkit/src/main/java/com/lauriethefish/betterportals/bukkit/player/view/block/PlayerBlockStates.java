@@ -6,17 +6,20 @@ import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class PlayerBlockStates implements IPlayerBlockStates {
     private final Player player;
     private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
     private final Logger logger;
 
-    private final Map<Vector, IViewableBlockInfo> viewedStates = new HashMap<>();
+    // Indexed by the array index of each block. A bit is set for each block that the player can currently see the destination of
+    private final BitSet viewedIndices = new BitSet();
+    // The block info sent for each set bit, used to reset the block back to the origin data
+    private IViewableBlockInfo[] viewedStates = new IViewableBlockInfo[0];
+    private int viewedCount = 0;
 
     @Inject
     public PlayerBlockStates(@Assisted Player player, IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, Logger logger) {
@@ -27,7 +30,7 @@ public class PlayerBlockStates implements IPlayerBlockStates {
 
     @Override
     public void resetAndUpdate(int minChunkY, int maxChunkY) {
-        if(viewedStates.size() == 0) {
+        if(viewedCount == 0) {
             logger.finer("No states to reset!");
             return;
         }
@@ -35,22 +38,46 @@ public class PlayerBlockStates implements IPlayerBlockStates {
         // Use a MultiBlockChangeManager to actually send the changes
         IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
 
-        logger.finest("Resetting %d blocks", viewedStates.size());
-        for(Map.Entry<Vector, IViewableBlockInfo> entry : viewedStates.entrySet()) {
-            multiBlockChangeManager.addChangeOrigin(entry.getKey(), entry.getValue());
+        logger.finest("Resetting %d blocks", viewedCount);
+        for(int i = viewedIndices.nextSetBit(0); i >= 0; i = viewedIndices.nextSetBit(i + 1)) {
+            IViewableBlockInfo blockInfo = viewedStates[i];
+            multiBlockChangeManager.addChangeOrigin(blockInfo.getOriginPos().getCenterPos(), blockInfo);
+            viewedStates[i] = null;
         }
         multiBlockChangeManager.sendChanges();
 
-        viewedStates.clear();
+        viewedIndices.clear();
+        viewedCount = 0;
     }
 
     @Override
-    public boolean setViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.put(position, block) == null;
+    public boolean setViewable(IViewableBlockInfo block) {
+        int index = block.getArrayIndex();
+        if(index >= viewedStates.length) {
+            // Grow to the size needed, since the array length of the block map isn't known here
+            viewedStates = Arrays.copyOf(viewedStates, Math.max(index + 1, viewedStates.length * 2));
+        }
+
+        boolean wasViewed = viewedIndices.get(index);
+        viewedStates[index] = block;
+        if(!wasViewed) {
+            viewedIndices.set(index);
+            viewedCount++;
+        }
+        return !wasViewed;
     }
 
     @Override
-    public boolean setNonViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.remove(position, block);
+    public boolean setNonViewable(IViewableBlockInfo block) {
+        int index = block.getArrayIndex();
+        // Only reset the block if it is still showing this block info
+        if(index >= viewedStates.length || viewedStates[index] != block) {
+            return false;
+        }
+
+        viewedIndices.clear(index);
+        viewedStates[index] = null;
+        viewedCount--;
+        return true;
     }
 }
@@ -1,29 +1,32 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
-import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.bukkit.block.IBlockMap;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
+import com.lauriethefish.betterportals.bukkit.block.StateBricks;
+import com.lauriethefish.betterportals.bukkit.block.StateQueue;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
+import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import lombok.Getter;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PlayerBlockView implements IPlayerBlockView   {
@@ -37,6 +40,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
     private final Logger logger;
     private final BlockUpdateFinisher updateFinisher;
     private final boolean shouldHidePortalBlocks;
+    private final double positionEpsilon;
 
     private final int minChunkY;
     private final int maxChunkY;
@@ -47,6 +51,27 @@ public class PlayerBlockView implements IPlayerBlockView   {
     // Used to avoid a situation where the portal is no longer viewable and the blocks were reset, then an async update comes in and resends them
     private volatile boolean didDeactivate = false;
 
+    // Used by the update finisher to coalesce updates scheduled before the last one was finished
+    @Getter private final BlockUpdateFinisher.PendingUpdate pendingUpdate = new BlockUpdateFinisher.PendingUpdate();
+
+    // Inputs of the last update, used to skip updates that would have the same result. Only accessed while holding the states lock
+    private boolean hasLastUpdate = false;
+    private long lastEyeX;
+    private long lastEyeY;
+    private long lastEyeZ;
+    private PortalTransformations lastTransformations;
+    private long lastStatesVersion;
+
+    // Classification of each brick in the last update. Bricks that were entirely outside the view last time, and still are, can be skipped since their blocks are already non-viewable
+    private StateBricks lastBricks;
+    private byte[] lastBrickClasses;
+
+    // Positions of the blocks in the brick being checked, and whether each one is visible. Only accessed while holding the states lock
+    private int[] partialX = new int[StateBricks.BRICK_SIZE * StateBricks.BRICK_SIZE * StateBricks.BRICK_SIZE];
+    private int[] partialY = new int[partialX.length];
+    private int[] partialZ = new int[partialX.length];
+    private boolean[] partialVisible = new boolean[partialX.length];
+
     @Inject
     public PlayerBlockView(@Assisted Player player, @Assisted IPortal portal,
                            IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, IPlayerBlockStates.Factory blockStatesFactory,
@@ -58,6 +83,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
         this.logger = logger;
         this.updateFinisher = updateFinisher;
         this.shouldHidePortalBlocks = portal.isNetherPortal() && renderConfig.isPortalBlocksHidden();
+        this.positionEpsilon = renderConfig.getViewPositionEpsilon();
 
         World viewWorld = player.getWorld();
         minChunkY = HeightUtil.getMinHeight(viewWorld) >> 4;
@@ -80,6 +106,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
         statesLock.lock();
         try {
             blockStates.resetAndUpdate(minChunkY, maxChunkY);
+            clearLastUpdate();
         }   finally {
             statesLock.unlock();
         }
@@ -102,6 +129,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
                 logger.finest("Resetting immediately!");
                 try {
                     blockStates.resetAndUpdate(minChunkY, maxChunkY);
+                    clearLastUpdate();
                 } finally {
                     statesLock.unlock();
                 }
@@ -121,57 +149,80 @@ public class PlayerBlockView implements IPlayerBlockView   {
         statesLock.lock();
 
         try {
-            IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
-            List<PacketContainer> queuedTileEntityUpdates = new ArrayList<>();
-
-            PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(playerPosition);
-
+            Vector eyePosition = playerPosition;
+            PortalTransformations transformations = portal.getTransformations();
             IBlockMap viewableBlockArray = portal.getViewableBlocks();
-            List<IViewableBlockInfo> viewableStates = viewableBlockArray.getViewableStates();
+
+            // The version must be read before the states, otherwise states added in between would be missed next update
+            long statesVersion = viewableBlockArray.getViewableStatesVersion();
+            StateQueue.Snapshot viewableStates = viewableBlockArray.getViewableStates();
             if(viewableStates == null) {
                 return;
             }
 
-            for (IViewableBlockInfo blockInfo : viewableStates) {
-                Vector position = blockInfo.getOriginPos().getCenterPos();
-
-                boolean visible = intersectionChecker.checkIfIntersects(position);
-
-                // If visible/non-visible, change to the new state
-                // However, don't bother resending the packet again if the block has already been changed
-                // (unless we're refreshing the sent blocks)
-                if (visible) {
-                    if (blockStates.setViewable(position, blockInfo) || refresh) {
-                        multiBlockChangeManager.addChangeDestination(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getDestinationTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at destination");
-                        }
-                    }
-                } else {
-                    if (blockStates.setNonViewable(position, blockInfo)) {
-                        multiBlockChangeManager.addChangeOrigin(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getOriginTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at origin");
-                        }
-                    }
+            // If the player has barely moved, and the states haven't changed, then the same blocks will be visible as last time
+            long eyeX = quantise(eyePosition.getX());
+            long eyeY = quantise(eyePosition.getY());
+            long eyeZ = quantise(eyePosition.getZ());
+            if(!refresh && hasLastUpdate && eyeX == lastEyeX && eyeY == lastEyeY && eyeZ == lastEyeZ
+                    && transformations == lastTransformations && statesVersion == lastStatesVersion) {
+                return;
+            }
+            hasLastUpdate = true;
+            lastEyeX = eyeX;
+            lastEyeY = eyeY;
+            lastEyeZ = eyeZ;
+            lastTransformations = transformations;
+            lastStatesVersion = statesVersion;
+
+            IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
+            multiBlockChangeManager.setViewerPosition(eyePosition);
+            multiBlockChangeManager.setPortalPlane(portal.getOriginPos().getVector(), portal.getOriginPos().getDirection().toVector());
+
+            PlaneIntersectionChecker intersectionChecker = transformations.createIntersectionChecker(eyePosition);
+
+            boolean hasTileEntities = viewableBlockArray.hasTileEntities();
+
+            // Check whole bricks of blocks against the view first, so that only blocks in bricks on the edge of the view need to be checked separately
+            StateBricks bricks = viewableStates.getBricks();
+            int brickCount = bricks.getBrickCount();
+            boolean canSkipOutside = bricks == lastBricks;
+            if(!canSkipOutside) {
+                lastBricks = bricks;
+                lastBrickClasses = new byte[brickCount];
+                Arrays.fill(lastBrickClasses, (byte) -1);
+            }
+
+            for(int brick = 0; brick < brickCount; brick++) {
+                int minX = bricks.getBrickX(brick);
+                int minY = bricks.getBrickY(brick);
+                int minZ = bricks.getBrickZ(brick);
+                // Only the centers of the blocks are checked, so the box only needs to contain those
+                int brickClass = intersectionChecker.classifyBox(minX + 0.5, minY + 0.5, minZ + 0.5,
+                        minX + StateBricks.BRICK_SIZE - 0.5, minY + StateBricks.BRICK_SIZE - 0.5, minZ + StateBricks.BRICK_SIZE - 0.5);
+
+                if(canSkipOutside && brickClass == PlaneIntersectionChecker.BOX_OUTSIDE && lastBrickClasses[brick] == PlaneIntersectionChecker.BOX_OUTSIDE) {
+                    continue;
+                }
+                lastBrickClasses[brick] = (byte) brickClass;
+
+                int start = bricks.getBrickStart(brick);
+                int end = bricks.getBrickEnd(brick);
+                // Blocks in bricks on the edge of the view are checked together
+                if(brickClass == PlaneIntersectionChecker.BOX_PARTIAL) {
+                    checkPartialBrick(viewableStates, bricks, start, end, intersectionChecker);
+                }
+
+                for(int i = start; i < end; i++) {
+                    IViewableBlockInfo blockInfo = viewableStates.get(bricks.getStateIndex(i));
+
+                    boolean visible = brickClass == PlaneIntersectionChecker.BOX_PARTIAL ? partialVisible[i - start] : brickClass == PlaneIntersectionChecker.BOX_INSIDE;
+                    updateBlock(blockInfo, visible, refresh, viewableBlockArray, hasTileEntities, multiBlockChangeManager);
                 }
             }
 
             // Show the player the changed states
             multiBlockChangeManager.sendChanges();
-            try {
-                for (PacketContainer packet : queuedTileEntityUpdates) {
-                    ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
-                }
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
-            }
 
             // Removed due to being unreasonably frequent
             //logger.finest("Performed viewable block process. Time taken: %fms", timer.getTimeTakenMillis());
@@ -180,6 +231,70 @@ public class PlayerBlockView implements IPlayerBlockView   {
         }
     }
 
+    /**
+     * Finds whether each block in a brick on the edge of the view is visible, writing the results into {@link PlayerBlockView#partialVisible}.
+     * @param viewableStates The states being updated
+     * @param bricks The bricks of the states
+     * @param start Position of the first block of the brick in <code>bricks</code>
+     * @param end Position after the last block of the brick in <code>bricks</code>
+     * @param intersectionChecker Checker for the player's current position
+     */
+    private void checkPartialBrick(StateQueue.Snapshot viewableStates, StateBricks bricks, int start, int end, PlaneIntersectionChecker intersectionChecker) {
+        int count = end - start;
+        if(count > partialX.length) {
+            partialX = new int[count];
+            partialY = new int[count];
+            partialZ = new int[count];
+            partialVisible = new boolean[count];
+        }
+
+        for(int i = 0; i < count; i++) {
+            IntVector originPos = viewableStates.get(bricks.getStateIndex(start + i)).getOriginPos();
+            partialX[i] = originPos.getX();
+            partialY[i] = originPos.getY();
+            partialZ[i] = originPos.getZ();
+        }
+        intersectionChecker.checkIfBlocksIntersect(partialX, partialY, partialZ, count, partialVisible);
+    }
+
+    private void updateBlock(IViewableBlockInfo blockInfo, boolean visible, boolean refresh, IBlockMap viewableBlockArray, boolean hasTileEntities,
+                             IMultiBlockChangeManager multiBlockChangeManager) {
+        // If visible/non-visible, change to the new state
+        // However, don't bother resending the packet again if the block has already been changed
+        // (unless we're refreshing the sent blocks)
+        if (visible) {
+            if (blockStates.setViewable(blockInfo) || refresh) {
+                multiBlockChangeManager.addChangeDestination(blockInfo.getOriginPos().getCenterPos(), blockInfo);
+
+                PacketContainer nbtUpdatePacket = hasTileEntities ? viewableBlockArray.getDestinationTileEntityPacket(blockInfo.getOriginPos()) : null;
+                if (nbtUpdatePacket != null) {
+                    multiBlockChangeManager.addTileEntityUpdate(blockInfo.getOriginPos(), nbtUpdatePacket);
+                    logger.fine("Queueing tile state update at destination");
+                }
+            }
+        } else {
+            if (blockStates.setNonViewable(blockInfo)) {
+                multiBlockChangeManager.addChangeOrigin(blockInfo.getOriginPos().getCenterPos(), blockInfo);
+
+                PacketContainer nbtUpdatePacket = hasTileEntities ? viewableBlockArray.getOriginTileEntityPacket(blockInfo.getOriginPos()) : null;
+                if (nbtUpdatePacket != null) {
+                    multiBlockChangeManager.addTileEntityUpdate(blockInfo.getOriginPos(), nbtUpdatePacket);
+                    logger.fine("Queueing tile state update at origin");
+                }
+            }
+        }
+    }
+
+    private void clearLastUpdate() {
+        hasLastUpdate = false;
+        lastBricks = null;
+        lastBrickClasses = null;
+    }
+
+    private long quantise(double coordinate) {
+        return Math.round(coordinate / positionEpsilon);
+    }
+
     // Gets the right rotation of portal block depending on the portal's direction
     private WrappedBlockData getPortalBlockData() {
         PortalDirection portalDirection = portal.getOriginPos().getDirection();
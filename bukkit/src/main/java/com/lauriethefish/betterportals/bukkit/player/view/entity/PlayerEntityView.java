@@ -2,9 +2,11 @@ package com.lauriethefish.betterportals.bukkit.player.view.entity;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.bukkit.entity.IPortalEntityManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityInfo;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityPacketManipulator;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
@@ -12,20 +14,60 @@ import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.MetadataValue;
+import org.bukkit.util.Vector;
 
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * Hides the entities at the origin of the portal that are behind it, and replicates the entities at the destination that are visible through it.
+ * The state of each entity is kept between updates, and entities are only checked again if they or the player have moved.
+ * The entity lists are only compared against when their version changes, which happens when the portal's entity index sweep finds entities entering or leaving.
+ * Once an entity has been hidden/shown or replicated/removed, it keeps that state for at least {@link PlayerEntityView#MIN_STATE_TICKS}, so that entities on the edge of the portal don't cause a spawn and destroy packet every tick.
+ */
 public class PlayerEntityView implements IPlayerEntityView  {
+    /**
+     * Minimum number of updates between changes to whether an entity is hidden or replicated
+     */
+    private static final int MIN_STATE_TICKS = 5;
+
     private final Logger logger;
     private final IPortal portal;
     private final Player player;
     private final IEntityPacketManipulator packetManipulator;
     private final EntityTrackingManager trackingManager;
-    private final Map<Entity, EntityInfo> hiddenEntities = new HashMap<>();
-    private final Set<Entity> replicatedEntities = new HashSet<>();
+
+    private final Map<Entity, EntityState> originEntities = new HashMap<>();
+    private final Map<Entity, EntityState> destinationEntities = new HashMap<>();
+    private int lastListVersion = -1;
+
+    private PlaneIntersectionChecker intersectionChecker = null;
+    private double lastEyeX;
+    private double lastEyeY;
+    private double lastEyeZ;
+
+    // Reused each update to avoid allocating a location or vector for every entity
+    private final Location currentPosition = new Location(null, 0.0, 0.0, 0.0);
+    private final Vector originPosition = new Vector();
+    private int ticks = 0;
+
+    private static class EntityState {
+        // Position of the entity when it was last checked
+        private double x;
+        private double y;
+        private double z;
+        private boolean checked = false;
+        // Whether the entity should be hidden/replicated, as of the last check
+        private boolean intersects = false;
+
+        // Whether the entity is currently hidden/replicated, and when this last changed
+        private boolean applied = false;
+        private int lastChangeTick = Integer.MIN_VALUE / 2;
+
+        // Only set for hidden entities
+        private EntityInfo hiddenInfo;
+    }
 
     @Inject
     public PlayerEntityView(@Assisted IPortal portal, @Assisted Player player, IEntityPacketManipulator packetManipulator, Logger logger, EntityTrackingManager trackingManager) {
@@ -38,72 +80,145 @@ public class PlayerEntityView implements IPlayerEntityView  {
 
     @Override
     public void update() {
-        updateHiddenEntities();
-        if(!portal.isCrossServer()) {
-            updateReplicatedEntities();
+        IPortalEntityManager entityList = portal.getEntityList();
+        if(entityList.getVersion() != lastListVersion) {
+            lastListVersion = entityList.getVersion();
+            updateEntityStates(entityList);
         }
-    }
 
-    private void updateHiddenEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
+        // Every entity needs to be checked again if the player moved, since the rays are from the player's eye
+        Location eyeLocation = player.getEyeLocation();
+        boolean viewerMoved = intersectionChecker == null || eyeLocation.getX() != lastEyeX || eyeLocation.getY() != lastEyeY || eyeLocation.getZ() != lastEyeZ;
+        if(viewerMoved) {
+            lastEyeX = eyeLocation.getX();
+            lastEyeY = eyeLocation.getY();
+            lastEyeZ = eyeLocation.getZ();
+            intersectionChecker = portal.getTransformations().createIntersectionChecker(eyeLocation.toVector());
+        }
 
-        Set<Entity> nowHidden = new HashSet<>();
+        updateHiddenEntities(viewerMoved);
+        if(!portal.isCrossServer()) {
+            updateReplicatedEntities(viewerMoved);
+        }
 
-        for(Entity entity : portal.getEntityList().getOriginEntities()) {
+        ticks++;
+    }
+
+    /**
+     * Adds states for entities that have been added to the portal's lists, and removes the states of entities no longer in them.
+     * @param entityList The portal's entity lists
+     */
+    private void updateEntityStates(IPortalEntityManager entityList) {
+        Collection<Entity> nowAtOrigin = entityList.getOriginEntities();
+        for(Entity entity : nowAtOrigin) {
             if(entity == player) {continue;}
+            originEntities.computeIfAbsent(entity, key -> new EntityState());
+        }
 
-            // If the line from the player's position to the entity intersects the portal, then hide it since it'll spoil the effect by appearing in front of the blocks
-            boolean shouldBeHidden = intersectionChecker.checkIfIntersects(entity.getLocation().toVector());
-            if(!shouldBeHidden) {continue;}
+        originEntities.entrySet().removeIf(entry -> {
+            if(nowAtOrigin.contains(entry.getKey())) {return false;}
 
-            nowHidden.add(entity);
-            if(!hiddenEntities.containsKey(entity)) {
-                hide(entity);
+            // Reshow entities that are no longer hidden and that still exist
+            EntityState state = entry.getValue();
+            if(state.applied && entry.getKey().isValid()) {
+                packetManipulator.showEntity(state.hiddenInfo, player);
             }
+            return true;
+        });
+
+        if(portal.isCrossServer()) {return;}
+
+        Collection<Entity> nowAtDestination = entityList.getDestinationEntities();
+        for(Entity entity : nowAtDestination) {
+            destinationEntities.computeIfAbsent(entity, key -> new EntityState());
         }
 
-        hiddenEntities.entrySet().removeIf(entry -> {
-            boolean isHidden = nowHidden.contains(entry.getKey());
-            // Reshow entities that are no longer hidden and that still exist
-            if(!isHidden && entry.getKey().isValid()) {
-                packetManipulator.showEntity(entry.getValue(), player);
+        // Stop tracking entities that are no longer near the portal
+        destinationEntities.entrySet().removeIf(entry -> {
+            if(nowAtDestination.contains(entry.getKey())) {return false;}
+
+            if(entry.getValue().applied) {
+                trackingManager.setNoLongerTracking(entry.getKey(), portal, player, true);
             }
-            return !isHidden;
+            return true;
         });
     }
 
-    private void updateReplicatedEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
+    /**
+     * Reads the position of <code>entity</code> into {@link PlayerEntityView#currentPosition}, and finds if it has moved since it was last checked.
+     * @param entity The entity to read the position of
+     * @param state State of the entity
+     * @return Whether the entity needs to be checked again
+     */
+    private boolean hasMoved(Entity entity, EntityState state) {
+        entity.getLocation(currentPosition);
+        return !state.checked || currentPosition.getX() != state.x || currentPosition.getY() != state.y || currentPosition.getZ() != state.z;
+    }
+
+    private void setChecked(EntityState state, boolean intersects) {
+        state.x = currentPosition.getX();
+        state.y = currentPosition.getY();
+        state.z = currentPosition.getZ();
+        state.checked = true;
+        state.intersects = intersects;
+    }
 
-        // Start tracking newly replicated entities
-        Set<Entity> nowReplicated = new HashSet<>();
-        for(Entity entity : portal.getEntityList().getDestinationEntities()) {
-            if(isVanished(entity)) {
-                continue;
-            }
+    /**
+     * Finds if the entity should be changed to match whether it intersects, which isn't done if its state was changed recently.
+     * @param state State of the entity
+     * @param shouldApply Whether the entity should now be hidden or replicated
+     * @return Whether the state should be changed
+     */
+    private boolean shouldChange(EntityState state, boolean shouldApply) {
+        if(shouldApply == state.applied || ticks - state.lastChangeTick < MIN_STATE_TICKS) {return false;}
 
-            Location originPos = portal.getTransformations().moveToOrigin(entity.getLocation());
+        state.applied = shouldApply;
+        state.lastChangeTick = ticks;
+        return true;
+    }
 
-            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos.toVector());
-            if(!shouldBeReplicated) {continue;}
-            nowReplicated.add(entity);
+    private void updateHiddenEntities(boolean viewerMoved) {
+        for(Map.Entry<Entity, EntityState> entry : originEntities.entrySet()) {
+            Entity entity = entry.getKey();
+            EntityState state = entry.getValue();
 
-            // Only set it to be tracking if it wasn't previously
-            if(!replicatedEntities.contains(entity)) {
-                replicatedEntities.add(entity);
-                trackingManager.setTracking(entity, portal, player);
+            // If the line from the player's position to the entity intersects the portal, then hide it since it'll spoil the effect by appearing in front of the blocks
+            if(hasMoved(entity, state) || viewerMoved) {
+                setChecked(state, intersectionChecker.checkIfIntersects(currentPosition.getX(), currentPosition.getY(), currentPosition.getZ()));
+            }
+
+            if(!shouldChange(state, state.intersects)) {continue;}
+
+            if(state.applied) {
+                state.hiddenInfo = new EntityInfo(entity);
+                packetManipulator.hideEntity(state.hiddenInfo, player);
+            }   else if(entity.isValid()) {
+                packetManipulator.showEntity(state.hiddenInfo, player);
             }
         }
+    }
+
+    private void updateReplicatedEntities(boolean viewerMoved) {
+        Matrix destinationToOrigin = portal.getTransformations().getDestinationToOrigin();
 
-        // Stop tracking entities that are no longer visible through the portal
-        replicatedEntities.removeIf(entity -> {
-            boolean isReplicated = nowReplicated.contains(entity);
+        for(Map.Entry<Entity, EntityState> entry : destinationEntities.entrySet()) {
+            Entity entity = entry.getKey();
+            EntityState state = entry.getValue();
 
-            if(!isReplicated) {
+            if(hasMoved(entity, state) || viewerMoved) {
+                destinationToOrigin.transform(currentPosition.getX(), currentPosition.getY(), currentPosition.getZ(), originPosition);
+                setChecked(state, intersectionChecker.checkIfIntersects(originPosition));
+            }
+
+            // Vanishing doesn't move the entity, so this is checked every time
+            if(!shouldChange(state, state.intersects && !isVanished(entity))) {continue;}
+
+            if(state.applied) {
+                trackingManager.setTracking(entity, portal, player);
+            }   else    {
                 trackingManager.setNoLongerTracking(entity, portal, player, true);
             }
-            return !isReplicated;
-        });
+        }
     }
 
     /**
@@ -123,18 +238,23 @@ public class PlayerEntityView implements IPlayerEntityView  {
         return false;
     }
 
-    // Send packets to remove the entity from the player's view
-    private void hide(Entity entity) {
-        EntityInfo entityInfo = new EntityInfo(entity);
-        packetManipulator.hideEntity(entityInfo, player);
-        hiddenEntities.put(entity, entityInfo);
-    }
-
     @Override
     public void onDeactivate(boolean shouldResetEntities) {
-        if(shouldResetEntities) {
-            hiddenEntities.forEach((entity, entityInfo) -> packetManipulator.showEntity(entityInfo, player));
-        }
-        replicatedEntities.forEach(entity -> trackingManager.setNoLongerTracking(entity, portal, player, shouldResetEntities));
+        originEntities.forEach((entity, state) -> {
+            if(shouldResetEntities && state.applied) {
+                packetManipulator.showEntity(state.hiddenInfo, player);
+            }
+        });
+        originEntities.clear();
+
+        destinationEntities.forEach((entity, state) -> {
+            if(state.applied) {
+                trackingManager.setNoLongerTracking(entity, portal, player, shouldResetEntities);
+            }
+        });
+        destinationEntities.clear();
+
+        intersectionChecker = null;
+        lastListVersion = -1;
     }
 }
@@ -102,6 +102,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
         logger.finer("Portal was deactivated");
         chunkLoader.unforceloadPortalChunks(destPos);
         viewableBlocks.reset();
+        entityList.onDeactivate();
         ticksSinceActivated = -1;
     }
 
@@ -3,38 +3,76 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handles doing the final processing for portal block updates on another thread
  * Doing tons of raycasts to find which blocks are visible is moderately expensive, so happens on another thread
  */
 public abstract class BlockUpdateFinisher {
-    private enum BlockViewUpdateType {
-        REGULAR, // Update blocks
-        REFRESH, // Update and refresh all blocks
-        RESET // Reset all blocks
+    // Pending update types, in order of priority. A pending update is only replaced by one of a higher priority
+    private static final int NO_UPDATE = 0;
+    private static final int REGULAR_UPDATE = 1; // Update blocks
+    private static final int REFRESH_UPDATE = 2; // Update and refresh all blocks
+    private static final int RESET_UPDATE = 3; // Reset all blocks
+
+    /**
+     * Stored by each view to hold its pending update.
+     * Each view has at most one pending update, so scheduling an update never needs to search the queue.
+     */
+    public static class PendingUpdate {
+        private final AtomicInteger type = new AtomicInteger(NO_UPDATE);
+        // Time that the pending update was first scheduled, in nanoseconds
+        private volatile long scheduledAt;
+        // Held while finishing the update, so that a view queued again while finishing waits for the previous update
+        private final ReentrantLock finishLock = new ReentrantLock();
     }
 
-    private static class BlockViewUpdateInfo {
-        PlayerBlockView blockView;
-        BlockViewUpdateType type;
-        public BlockViewUpdateInfo(PlayerBlockView blockView, BlockViewUpdateType type) {
-            this.blockView = blockView;
-            this.type = type;
+    /**
+     * Timings of the updates finished by one worker
+     */
+    public static class WorkerStatistics {
+        private final AtomicLong finishedCount = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        private void record(long latency) {
+            finishedCount.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
         }
 
-        // Equals only requires the BlockViewUpdateInfo to be equal - used to check if an update is already pending
-        @Override
-        public boolean equals(Object other) {
-            if(!(other instanceof BlockViewUpdateInfo)) {return false;}
+        /**
+         * @return The number of updates finished by this worker
+         */
+        public long getFinishedCount() {
+            return finishedCount.get();
+        }
+
+        /**
+         * @return The average time from an update being scheduled to it being finished, in milliseconds
+         */
+        public double getAverageLatencyMillis() {
+            long count = finishedCount.get();
+            return count == 0 ? 0.0 : totalLatency.get() / (double) count / 1_000_000d;
+        }
 
-            return blockView == ((BlockViewUpdateInfo) other).blockView;
+        /**
+         * @return The longest time from an update being scheduled to it being finished, in milliseconds
+         */
+        public double getMaxLatencyMillis() {
+            return maxLatency.get() / 1_000_000d;
         }
     }
 
-    private final BlockingQueue<BlockViewUpdateInfo> updateQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PlayerBlockView> updateQueue = new LinkedBlockingQueue<>();
+    private final WorkerStatistics statistics = new WorkerStatistics();
     protected final Logger logger;
 
     private volatile boolean hasStopped = false;
@@ -43,33 +81,62 @@ public abstract class BlockUpdateFinisher {
         this.logger = logger;
     }
 
-    private void processUpdate(BlockViewUpdateInfo next) {
-        if(next.type == BlockViewUpdateType.RESET) {
-            logger.fine("Running scheduled reset");
-            next.blockView.finishReset();
-        }   else    {
-            next.blockView.finishUpdate(next.type == BlockViewUpdateType.REFRESH);
+    /**
+     * Finishes the pending update of <code>blockView</code>, if it has one.
+     * Can be called from multiple threads for the same view. The view is only queued again once its update has been taken, which happens while holding its lock, so updates always finish in order.
+     * @param blockView The view to update
+     * @param statistics Statistics of the worker finishing the update
+     */
+    protected void processUpdate(PlayerBlockView blockView, WorkerStatistics statistics) {
+        PendingUpdate pending = blockView.getPendingUpdate();
+        pending.finishLock.lock();
+        try {
+            // Must be read before the type is cleared, since another update may be scheduled afterwards
+            long scheduledAt = pending.scheduledAt;
+            int type = pending.type.getAndSet(NO_UPDATE);
+
+            if(type == NO_UPDATE) {
+                return;
+            }   else if(type == RESET_UPDATE) {
+                logger.fine("Running scheduled reset");
+                blockView.finishReset();
+            }   else    {
+                blockView.finishUpdate(type == REFRESH_UPDATE);
+            }
+
+            statistics.record(System.nanoTime() - scheduledAt);
+        }   finally {
+            pending.finishLock.unlock();
         }
     }
 
     protected void processUpdatesContinually()  {
         try {
             while (!hasStopped) {
-                BlockViewUpdateInfo next = updateQueue.take();
-                processUpdate(next);
+                PlayerBlockView next = updateQueue.take();
+                processUpdate(next, statistics);
             }
         }   catch(InterruptedException ignored) { }
     }
 
     protected void finishPendingUpdates() {
         while(true) {
-            BlockViewUpdateInfo next = updateQueue.poll();
+            PlayerBlockView next = updateQueue.poll();
             if(next == null) {return;}
 
-            processUpdate(next);
+            processUpdate(next, statistics);
         }
     }
 
+    /**
+     * Queues <code>blockView</code> to have its pending update finished.
+     * Called at most once for each pending update.
+     * @param blockView The view to queue
+     */
+    protected void enqueue(PlayerBlockView blockView) {
+        updateQueue.add(blockView);
+    }
+
     /**
      * Starts the task/thread that is being used
      */
@@ -82,42 +149,55 @@ public abstract class BlockUpdateFinisher {
         hasStopped = true;
     }
 
+    /**
+     * @return The number of views waiting for their update to be finished
+     */
+    public int getQueueDepth() {
+        return updateQueue.size();
+    }
+
+    /**
+     * @return The statistics of each worker finishing updates
+     */
+    public List<WorkerStatistics> getWorkerStatistics() {
+        return Collections.singletonList(statistics);
+    }
+
     /**
      * Schedules the update for <code>blockView</code> to happen on another thread.
      * @param blockView The block view to be updated
      * @param refresh Whether to resend all block states regardless of if they were already sent
      */
     public void scheduleUpdate(PlayerBlockView blockView, boolean refresh) {
-        BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, refresh ? BlockViewUpdateType.REFRESH : BlockViewUpdateType.REGULAR);
-
-        if(updateQueue.contains(updateInfo)) {
-            logger.fine("Block update was scheduled when previous update had not finished. Server is running behind!");
-            return;
-        }
-
-        try {
-            updateQueue.put(updateInfo);
-        }   catch(InterruptedException ex) {
-            ex.printStackTrace();
-        }
+        schedule(blockView, refresh ? REFRESH_UPDATE : REGULAR_UPDATE);
     }
 
     /**
      * Schedules a block reset which will call {@link PlayerBlockView#finishReset()} when ran.
-     * This will remove any block updates currently queued for this view
+     * This will replace any block update currently queued for this view
      * @param blockView The block view to reset
      */
     public void scheduleReset(PlayerBlockView blockView) {
-        try {
-            BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, BlockViewUpdateType.RESET);
+        schedule(blockView, RESET_UPDATE);
+    }
 
-            // Remove any updates pending to update the given view
-            updateQueue.remove(updateInfo);
+    private void schedule(PlayerBlockView blockView, int type) {
+        PendingUpdate pending = blockView.getPendingUpdate();
+        while(true) {
+            int previous = pending.type.get();
+            if(previous >= type) {
+                logger.fine("Block update was scheduled when previous update had not finished. Server is running behind!");
+                return;
+            }
 
-            // Now we can schedule our reset
-            updateQueue.put(updateInfo);
-        }   catch(InterruptedException ex) {
-            ex.printStackTrace();
+            if(pending.type.compareAndSet(previous, type)) {
+                // If an update was already pending, the view is already queued, and will now do this update instead
+                if(previous == NO_UPDATE) {
+                    pending.scheduledAt = System.nanoTime();
+                    enqueue(blockView);
+                }
+                return;
+            }
         }
     }
 }
@@ -0,0 +1,66 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool used to run the initial flood fill of portal block maps off the main thread.
+ * With many portals activating at once (e.g. after a restart), doing every fill on the main thread causes lag spikes.
+ */
+@Singleton
+public class FloodFillExecutor {
+    private final Logger logger;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private ExecutorService executor;
+
+    @Inject
+    public FloodFillExecutor(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Creates the thread pool. Threads are only started once tasks are submitted.
+     */
+    public void start() {
+        int poolSize = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        logger.fine("Starting flood fill executor with %d threads", poolSize);
+
+        executor = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "BetterPortals Flood Fill Thread " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the thread pool, interrupting any running flood fills.
+     */
+    public void stop() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Submits a flood fill to be run on the thread pool.
+     * @param task The flood fill to run
+     * @param <T> The result of the flood fill
+     * @return A future which completes when the flood fill has finished
+     * @throws IllegalStateException If the executor has not been started
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        if(executor == null) {
+            throw new IllegalStateException("Flood fill executor was not started");
+        }
+
+        return executor.submit(task);
+    }
+}
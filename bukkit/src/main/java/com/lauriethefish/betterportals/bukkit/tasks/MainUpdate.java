@@ -2,7 +2,10 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.bukkit.BlockPacketScheduler;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.block.fetch.ChunkSnapshotCache;
+import com.lauriethefish.betterportals.bukkit.entity.EntityIndex;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.net.ClientRequestHandler;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
@@ -23,8 +26,11 @@ public class MainUpdate implements Runnable {
     private final PlayerDataManager playerDataManager;
     private final IPortalActivityManager activityManager;
     private final EntityTrackingManager entityTrackingManager;
+    private final EntityIndex entityIndex;
     private final ClientRequestHandler requestHandler;
     private final IExternalBlockWatcherManager blockWatcherManager;
+    private final ChunkSnapshotCache snapshotCache;
+    private final BlockPacketScheduler packetScheduler;
     private final Logger logger;
 
     @Inject
@@ -32,14 +38,20 @@ public class MainUpdate implements Runnable {
                       PlayerDataManager playerDataManager,
                       IPortalActivityManager activityManager,
                       EntityTrackingManager entityTrackingManager,
+                      EntityIndex entityIndex,
                       ClientRequestHandler requestHandler,
-                      IExternalBlockWatcherManager blockWatcherManager, Logger logger) {
+                      IExternalBlockWatcherManager blockWatcherManager,
+                      ChunkSnapshotCache snapshotCache,
+                      BlockPacketScheduler packetScheduler, Logger logger) {
         this.pl = pl;
         this.playerDataManager = playerDataManager;
         this.activityManager = activityManager;
         this.entityTrackingManager = entityTrackingManager;
+        this.entityIndex = entityIndex;
         this.requestHandler = requestHandler;
         this.blockWatcherManager = blockWatcherManager;
+        this.snapshotCache = snapshotCache;
+        this.packetScheduler = packetScheduler;
         this.logger = logger;
     }
 
@@ -50,6 +62,14 @@ public class MainUpdate implements Runnable {
     @Override
     public void run() {
         try {
+            // Lets the snapshot cache know when a new block update interval starts
+            snapshotCache.update();
+            // Entity snapshots from the last tick are now out of date
+            entityTrackingManager.startTick();
+
+            // Find the entities that have entered or left the area around each active portal
+            entityIndex.update();
+
             playerDataManager.getPlayers().forEach(IPlayerData::onUpdate);
 
             // Update replicated entities
@@ -62,6 +82,9 @@ public class MainUpdate implements Runnable {
 
             blockWatcherManager.update();
 
+            // Send block changes that were deferred to stay within the per-tick limit
+            packetScheduler.update();
+
         }   catch(RuntimeException ex) {
             logger.severe("A critical error occurred during main update.");
             logger.severe("Please create an issue at %s to get this fixed.", ISSUES_URL);
@@ -0,0 +1,118 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Finishes block view updates on multiple threads, so that lots of players near portals don't back up a single thread.
+ * Each view is always finished by the same worker, so the updates of each view are still finished in the order they were scheduled.
+ */
+@Singleton
+public class ShardedBlockUpdateFinisher extends BlockUpdateFinisher {
+    private class Worker implements Runnable {
+        private final BlockingQueue<PlayerBlockView> updateQueue = new LinkedBlockingQueue<>();
+        private final WorkerStatistics statistics = new WorkerStatistics();
+        private final Thread thread;
+
+        private Worker(int index) {
+            thread = new Thread(this, "BetterPortals View Update Thread " + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            logger.fine("Hello from block view update thread!");
+
+            try {
+                while (!thread.isInterrupted()) {
+                    PlayerBlockView next = updateQueue.take();
+                    processUpdate(next, statistics);
+                }
+            }   catch(InterruptedException ignored) { }
+
+            logger.fine("Goodbye from block view update thread!");
+        }
+    }
+
+    private final RenderConfig renderConfig;
+    // Before starting, views are queued on a worker that isn't running yet, then moved to the started workers
+    private volatile Worker[] workers = {new Worker(1)};
+
+    @Inject
+    public ShardedBlockUpdateFinisher(Logger logger, RenderConfig renderConfig) {
+        super(logger);
+        this.renderConfig = renderConfig;
+    }
+
+    @Override
+    public void start() {
+        int workerCount = renderConfig.getBlockUpdateWorkerThreads();
+        logger.fine("Starting block view update finisher with %d threads", workerCount);
+
+        List<PlayerBlockView> leftOver = drainQueuedViews();
+        Worker[] newWorkers = new Worker[workerCount];
+        for(int i = 0; i < workerCount; i++) {
+            newWorkers[i] = new Worker(i + 1);
+        }
+        workers = newWorkers;
+
+        // Views left queued from before the last stop would otherwise never be updated again, since they still have a pending update
+        leftOver.forEach(this::enqueue);
+
+        for(Worker worker : newWorkers) {
+            worker.thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        for(Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        super.stop();
+    }
+
+    /**
+     * Removes every view queued on the current workers.
+     * @return The removed views
+     */
+    protected List<PlayerBlockView> drainQueuedViews() {
+        List<PlayerBlockView> result = new ArrayList<>();
+        for(Worker worker : workers) {
+            worker.updateQueue.drainTo(result);
+        }
+        return result;
+    }
+
+    @Override
+    protected void enqueue(PlayerBlockView blockView) {
+        Worker[] currentWorkers = workers;
+        currentWorkers[Math.floorMod(System.identityHashCode(blockView), currentWorkers.length)].updateQueue.add(blockView);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for(Worker worker : workers) {
+            depth += worker.updateQueue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public List<WorkerStatistics> getWorkerStatistics() {
+        List<WorkerStatistics> result = new ArrayList<>();
+        for(Worker worker : workers) {
+            result.add(worker.statistics);
+        }
+        return result;
+    }
+}
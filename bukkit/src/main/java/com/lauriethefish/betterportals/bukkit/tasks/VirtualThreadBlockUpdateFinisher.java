@@ -0,0 +1,86 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
+import com.lauriethefish.betterportals.bukkit.util.VirtualThreads;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finishes each block view update on its own virtual thread, when running on Java 21 or newer.
+ * Virtual threads are cheap to create, and only run on as many platform threads as there are cores.
+ * Updates are still coalesced for each view, so there is never more than one thread per view waiting.
+ * On older JVMs, or if virtual threads are disabled in the config, this falls back to the worker threads of {@link ShardedBlockUpdateFinisher}.
+ */
+@Singleton
+public class VirtualThreadBlockUpdateFinisher extends ShardedBlockUpdateFinisher {
+    private final MiscConfig miscConfig;
+
+    private final WorkerStatistics virtualThreadStatistics = new WorkerStatistics();
+    private final AtomicInteger runningCount = new AtomicInteger();
+
+    // Null if virtual threads are not being used
+    private volatile ThreadFactory threadFactory;
+
+    @Inject
+    public VirtualThreadBlockUpdateFinisher(Logger logger, RenderConfig renderConfig, MiscConfig miscConfig) {
+        super(logger, renderConfig);
+        this.miscConfig = miscConfig;
+    }
+
+    @Override
+    public void start() {
+        ThreadFactory factory = miscConfig.isVirtualThreadsEnabled() ? VirtualThreads.createFactory("BetterPortals View Update Thread ") : null;
+        if(factory == null) {
+            logger.fine("Virtual threads are not available, using platform threads to finish block view updates");
+            super.start();
+            return;
+        }
+
+        logger.fine("Using virtual threads to finish block view updates");
+        threadFactory = factory;
+        drainQueuedViews().forEach(this::enqueue);
+    }
+
+    @Override
+    public void stop() {
+        threadFactory = null;
+        super.stop();
+    }
+
+    @Override
+    protected void enqueue(PlayerBlockView blockView) {
+        ThreadFactory factory = threadFactory;
+        // Queued on the workers while stopped, and moved back to virtual threads if started again
+        if(factory == null) {
+            super.enqueue(blockView);
+            return;
+        }
+
+        runningCount.incrementAndGet();
+        factory.newThread(() -> {
+            try {
+                processUpdate(blockView, virtualThreadStatistics);
+            }   finally {
+                runningCount.decrementAndGet();
+            }
+        }).start();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return threadFactory == null ? super.getQueueDepth() : runningCount.get();
+    }
+
+    @Override
+    public List<WorkerStatistics> getWorkerStatistics() {
+        return threadFactory == null ? super.getWorkerStatistics() : Collections.singletonList(virtualThreadStatistics);
+    }
+}
@@ -0,0 +1,31 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+/**
+ * Utility functions for packing a block position into a single <code>long</code>.
+ * The layout is the same as the one used by Minecraft: 26 bits for X, 26 bits for Z and 12 bits for Y.
+ */
+public final class BlockPositionUtil {
+    private BlockPositionUtil() {}
+
+    /**
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @return The packed position
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (long) (y & 0xFFF);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+}
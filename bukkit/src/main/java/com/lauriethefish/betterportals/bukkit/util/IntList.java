@@ -0,0 +1,59 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive integers.
+ * Used instead of {@link java.util.ArrayList} in hot loops to avoid boxing every element.
+ */
+public class IntList {
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int initialCapacity) {
+        this.values = new int[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * Adds <code>value</code> to the end of the list, growing the backing array if necessary.
+     * @param value The value to add
+     */
+    public void add(int value) {
+        if(size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * @param index Index of the value to get
+     * @return The value at <code>index</code>
+     * @throws IndexOutOfBoundsException If <code>index</code> is not within the list
+     */
+    public int get(int index) {
+        if(index >= size) {throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);}
+
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all values from the list. The backing array is kept to avoid reallocating it.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive <code>long</code> keys to objects.
+ * Used instead of {@link java.util.HashMap} for maps keyed by packed positions, so that keys don't need to be boxed or allocated for each lookup.
+ * Null values are not allowed, since a null value marks an empty slot.
+ * This is not thread safe.
+ * @param <V> Type of the values
+ */
+public class LongObjectMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+    }
+
+    private static int hash(long key) {
+        // Mix the bits so that nearby positions don't cluster in the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while(values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param key The key to find
+     * @return The value for <code>key</code>, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        return (V) values[findSlot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return values[findSlot(key)] != null;
+    }
+
+    /**
+     * Sets the value for <code>key</code>, replacing any existing value.
+     * @param key The key to set the value of
+     * @param value The new value
+     */
+    public void put(long key, @NotNull V value) {
+        int slot = findSlot(key);
+        if(values[slot] == null) {
+            if(size + 1 > keys.length * LOAD_FACTOR) {
+                resize(keys.length * 2);
+                slot = findSlot(key);
+            }
+            size++;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * Removes the value for <code>key</code>, if there is one.
+     * @param key The key to remove
+     * @return Whether a value was removed
+     */
+    public boolean remove(long key) {
+        int slot = findSlot(key);
+        if(values[slot] == null) {return false;}
+
+        // Shift back any later entries in the same probe sequence, so that lookups don't stop at the gap
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while(values[next] != null) {
+            int ideal = hash(keys[next]) & mask;
+            // Only move the entry if its ideal slot is not between the gap and its current slot
+            if(((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+
+        size--;
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new Object[newCapacity];
+
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] != null) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return A copy of this map, which is not affected by later changes to this map
+     */
+    public @NotNull LongObjectMap<V> copy() {
+        LongObjectMap<V> copy = new LongObjectMap<>(2);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+}
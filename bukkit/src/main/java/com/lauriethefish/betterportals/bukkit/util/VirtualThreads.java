@@ -0,0 +1,49 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The plugin is compiled for Java 17, so virtual threads (added in Java 21) can only be created using reflection.
+ */
+public class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+        }   catch(ReflectiveOperationException ignored) { }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /**
+     * Creates a factory for virtual threads, if the running JVM supports them.
+     * @param namePrefix Prefix of the name of each thread, which is followed by a counter starting at 1
+     * @return The factory, or null if virtual threads are not available
+     */
+    public static @Nullable ThreadFactory createFactory(String namePrefix) {
+        if(OF_VIRTUAL == null) {return null;}
+
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        }   catch(ReflectiveOperationException | RuntimeException ex) {
+            // On Java 19 and 20, virtual threads are a preview feature, and creating them fails unless previews are enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import com.lauriethefish.betterportals.bukkit.net.requests.BlockChangeBatch;
+import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockChangeBatchTests {
+    // Larger than any portal effect size that is practical to render, so the initial batch for any real config is smaller than this
+    private static final int MAX_TESTED_XZ = 64;
+    private static final int MAX_TESTED_Y = 64;
+    // Higher than the number of block states in current versions
+    private static final int MAX_COMBINED_ID = 30_000;
+
+    private BlockChangeBatch.Encoder encoder;
+
+    @BeforeEach
+    public void setUp() {
+        encoder = new BlockChangeBatch.Encoder();
+    }
+
+    private static long packPosition(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    private static Map<Long, Integer> decode(BlockChangeBatch batch) {
+        Map<Long, Integer> result = new HashMap<>();
+        batch.forEachChange((x, y, z, combinedId) -> {
+            Integer existing = result.put(packPosition(x, y, z), combinedId);
+            assertNull(existing, "Each position should only be decoded once");
+        });
+        return result;
+    }
+
+    // Adds a change to both the encoder and the expected changes
+    private void addChange(Map<Long, Integer> expected, int x, int y, int z, int combinedId) {
+        encoder.addChange(x, y, z, combinedId);
+        expected.put(packPosition(x, y, z), combinedId);
+    }
+
+    @Test
+    public void testNegativeSectionCoordinates() {
+        Map<Long, Integer> expected = new HashMap<>();
+        encoder.beginSection(-2, -4, -3);
+        addChange(expected, -32, -64, -48, 1);
+        addChange(expected, -17, -49, -33, 2);
+        addChange(expected, -25, -60, -40, 3);
+        encoder.endSection();
+
+        BlockChangeBatch batch = encoder.finish(7);
+        assertEquals(7, batch.getSequence());
+        assertEquals(3, batch.getChangeCount());
+        assertEquals(expected, decode(batch));
+    }
+
+    @Test
+    public void testSparseSection() {
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+        encoder.beginSection(3, 5, -1);
+        for(int i = 0; i < 100; i++) {
+            addChange(expected, 48 + random.nextInt(16), 80 + random.nextInt(16), -16 + random.nextInt(16), random.nextInt(MAX_COMBINED_ID));
+        }
+        encoder.endSection();
+
+        BlockChangeBatch batch = encoder.finish(0);
+        assertEquals(expected.size(), batch.getChangeCount());
+        assertEquals(expected, decode(batch));
+    }
+
+    @Test
+    public void testFullSectionWithMixedRuns() {
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        encoder.beginSection(-1, 0, 1);
+        // Added out of position order, with long runs of stone and air broken up by single ores, like a real section
+        for(int z = 31; z >= 16; z--) {
+            for(int x = -16; x < 0; x++) {
+                for(int y = 0; y < 16; y++) {
+                    int combinedId;
+                    if(random.nextInt(50) == 0) {
+                        combinedId = 100 + random.nextInt(20);
+                    }   else    {
+                        combinedId = y < 10 ? 1 : 0;
+                    }
+                    addChange(expected, x, y, z, combinedId);
+                }
+            }
+        }
+        encoder.endSection();
+
+        BlockChangeBatch batch = encoder.finish(0);
+        assertEquals(4096, batch.getChangeCount());
+        assertEquals(expected, decode(batch));
+    }
+
+    @Test
+    public void testDuplicateChangesKeepLast() {
+        Map<Long, Integer> expected = new HashMap<>();
+        encoder.beginSection(0, 0, 0);
+        addChange(expected, 1, 2, 3, 10);
+        addChange(expected, 4, 5, 6, 11);
+        addChange(expected, 1, 2, 3, 12);
+        encoder.endSection();
+
+        BlockChangeBatch batch = encoder.finish(0);
+        assertEquals(2, batch.getChangeCount());
+        assertEquals(expected, decode(batch));
+        assertEquals(12, decode(batch).get(packPosition(1, 2, 3)));
+    }
+
+    @Test
+    public void testEmptySectionsAndReuse() {
+        encoder.beginSection(0, 0, 0);
+        encoder.endSection();
+        BlockChangeBatch empty = encoder.finish(1);
+        assertEquals(0, empty.getChangeCount());
+        assertTrue(decode(empty).isEmpty());
+
+        // Nothing from the previous batch should be carried over once it is finished
+        Map<Long, Integer> expected = new HashMap<>();
+        encoder.beginSection(0, 0, 0);
+        addChange(expected, 0, 0, 0, 5);
+        encoder.endSection();
+        encoder.beginSection(0, 1, 0);
+        addChange(expected, 0, 16, 0, 6);
+        encoder.endSection();
+
+        BlockChangeBatch batch = encoder.finish(2);
+        assertEquals(2, batch.getSequence());
+        assertEquals(expected, decode(batch));
+    }
+
+    @Test
+    public void testMaxSizeInitialBatchFitsInRequest() throws IOException {
+        // Every block in the area is sent in the first batch. Random IDs make every change a separate run and a large palette, which is the worst case for the encoding
+        Random random = new Random(2);
+        int originX = 1000;
+        int originY = 64;
+        int originZ = -1000;
+        int minX = originX - MAX_TESTED_XZ; int maxX = originX + MAX_TESTED_XZ;
+        int minY = originY - MAX_TESTED_Y; int maxY = originY + MAX_TESTED_Y;
+        int minZ = originZ - MAX_TESTED_XZ; int maxZ = originZ + MAX_TESTED_XZ;
+
+        for(int sectionX = minX >> 4; sectionX <= maxX >> 4; sectionX++) {
+            for(int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+                for(int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+                    encoder.beginSection(sectionX, sectionY, sectionZ);
+                    for(int x = Math.max(minX, sectionX << 4); x <= Math.min(maxX, (sectionX << 4) + 15); x++) {
+                        for(int y = Math.max(minY, sectionY << 4); y <= Math.min(maxY, (sectionY << 4) + 15); y++) {
+                            for(int z = Math.max(minZ, sectionZ << 4); z <= Math.min(maxZ, (sectionZ << 4) + 15); z++) {
+                                encoder.addChange(x, y, z, random.nextInt(MAX_COMBINED_ID));
+                            }
+                        }
+                    }
+                    encoder.endSection();
+                }
+            }
+        }
+
+        BlockChangeBatch batch = encoder.finish(0);
+        int areaSize = (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        assertEquals(areaSize, batch.getChangeCount());
+
+        // The batch is sent serialized, so check the serialized size rather than only the encoded changes
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try(ObjectOutputStream stream = new ObjectOutputStream(serialized)) {
+            stream.writeObject(batch);
+        }
+        assertTrue(batch.getEncodedSize() < serialized.size());
+        assertTrue(serialized.size() < IEncryptedObjectStream.MAX_REQUEST_SIZE,
+                String.format("Initial batch of %d bytes was larger than the maximum request size", serialized.size()));
+    }
+}
@@ -0,0 +1,254 @@
+import com.lauriethefish.betterportals.bukkit.block.MultiBlockChangeBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MultiBlockChangeBuilderTests {
+    private MultiBlockChangeBuilder<String> builder;
+
+    // A change as written to a packet, with its position converted back to block coordinates
+    private static class WrittenChange {
+        private final int x;
+        private final int y;
+        private final int z;
+        private final String data;
+
+        private WrittenChange(int x, int y, int z, String data) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.data = data;
+        }
+    }
+
+    // The section and number of changes of each packet written
+    private static class WrittenPacket {
+        private final int sectionX;
+        private final int sectionY;
+        private final int sectionZ;
+        private final int count;
+        private final List<WrittenChange> changes = new ArrayList<>();
+
+        private WrittenPacket(int sectionX, int sectionY, int sectionZ, int count) {
+            this.sectionX = sectionX;
+            this.sectionY = sectionY;
+            this.sectionZ = sectionZ;
+            this.count = count;
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        builder = new MultiBlockChangeBuilder<>(String[]::new);
+    }
+
+    private static WrittenPacket readPacket(int sectionX, int sectionY, int sectionZ, short[] positions, String[] data, int offset, int count) {
+        WrittenPacket packet = new WrittenPacket(sectionX, sectionY, sectionZ, count);
+        for(int i = offset; i < offset + count; i++) {
+            int position = positions[i];
+            packet.changes.add(new WrittenChange(
+                    sectionX * 16 + (position >> 8 & 0xF),
+                    sectionY * 16 + (position & 0xF),
+                    sectionZ * 16 + (position >> 4 & 0xF),
+                    data[i]
+            ));
+        }
+        return packet;
+    }
+
+    private List<WrittenPacket> writeAll(int maxChangesPerPacket) {
+        List<WrittenPacket> packets = new ArrayList<>();
+        builder.writePackets(maxChangesPerPacket, (sectionX, sectionY, sectionZ, positions, data, offset, count) ->
+                packets.add(readPacket(sectionX, sectionY, sectionZ, positions, data, offset, count)));
+        return packets;
+    }
+
+    @Test
+    public void testLaterChangesReplaceEarlier() {
+        builder.addChange(1, 2, 3, "stone");
+        builder.addChange(4, 5, 6, "dirt");
+        builder.addChange(1, 2, 3, "air");
+
+        assertEquals(2, builder.getChangeCount());
+
+        List<WrittenPacket> packets = writeAll(Integer.MAX_VALUE);
+        assertEquals(1, packets.size());
+        List<WrittenChange> changes = packets.get(0).changes;
+        assertEquals(2, changes.size());
+
+        // The replaced change keeps its place, but has the newest data
+        WrittenChange first = changes.get(0);
+        assertEquals(1, first.x);
+        assertEquals(2, first.y);
+        assertEquals(3, first.z);
+        assertEquals("air", first.data);
+        assertEquals("dirt", changes.get(1).data);
+    }
+
+    @Test
+    public void testAddChangesReplacesExisting() {
+        builder.addChange(0, 0, 0, "stone");
+
+        MultiBlockChangeBuilder<String> other = new MultiBlockChangeBuilder<>(String[]::new);
+        other.addChange(0, 0, 0, "air");
+        other.addChange(1, 0, 0, "dirt");
+        other.writePackets(Integer.MAX_VALUE, builder::addChanges);
+
+        assertEquals(2, builder.getChangeCount());
+        List<WrittenChange> changes = writeAll(Integer.MAX_VALUE).get(0).changes;
+        assertEquals("air", changes.get(0).data);
+        assertEquals("dirt", changes.get(1).data);
+    }
+
+    @Test
+    public void testNegativeCoordinates() {
+        builder.addChange(-1, -64, -17, "stone");
+
+        List<WrittenPacket> packets = writeAll(Integer.MAX_VALUE);
+        assertEquals(1, packets.size());
+        WrittenPacket packet = packets.get(0);
+        assertEquals(-1, packet.sectionX);
+        assertEquals(-4, packet.sectionY);
+        assertEquals(-2, packet.sectionZ);
+
+        WrittenChange change = packet.changes.get(0);
+        assertEquals(-1, change.x);
+        assertEquals(-64, change.y);
+        assertEquals(-17, change.z);
+    }
+
+    @Test
+    public void testSortByDistance() {
+        builder.addChange(-40, 0, 0, "a"); // Section -3
+        builder.addChange(0, 0, 0, "b"); // Section 0
+        builder.addChange(90, 0, 0, "c"); // Section 5
+        builder.addChange(20, 0, 0, "d"); // Section 1
+
+        builder.sortByDistance(90.0, 8.0, 8.0);
+
+        List<WrittenPacket> packets = writeAll(Integer.MAX_VALUE);
+        assertEquals(4, packets.size());
+        assertEquals(5, packets.get(0).sectionX);
+        assertEquals(1, packets.get(1).sectionX);
+        assertEquals(0, packets.get(2).sectionX);
+        assertEquals(-3, packets.get(3).sectionX);
+    }
+
+    @Test
+    public void testWritePacketsSplitsAtLimit() {
+        for(int i = 0; i < 40; i++) {
+            builder.addChange(i & 0xF, i >> 4, 0, Integer.toString(i));
+        }
+        builder.addChange(16, 0, 0, "other");
+
+        List<WrittenPacket> packets = writeAll(16);
+        assertEquals(4, packets.size());
+        assertEquals(16, packets.get(0).count);
+        assertEquals(16, packets.get(1).count);
+        assertEquals(8, packets.get(2).count);
+        assertEquals(1, packets.get(3).count);
+        assertEquals(1, packets.get(3).sectionX);
+
+        // Each packet continues from where the last one finished
+        assertEquals("0", packets.get(0).changes.get(0).data);
+        assertEquals("16", packets.get(1).changes.get(0).data);
+        assertEquals("32", packets.get(2).changes.get(0).data);
+        assertEquals("39", packets.get(2).changes.get(7).data);
+
+        // Writing doesn't remove the changes
+        assertEquals(41, builder.getChangeCount());
+    }
+
+    @Test
+    public void testWriteFirstPacketRemovesWritten() {
+        for(int i = 0; i < 40; i++) {
+            builder.addChange(i & 0xF, i >> 4, 0, Integer.toString(i));
+        }
+        builder.addChange(16, 0, 0, "other");
+
+        List<WrittenPacket> packets = new ArrayList<>();
+        MultiBlockChangeBuilder.PacketWriter<String> writer = (sectionX, sectionY, sectionZ, positions, data, offset, count) ->
+                packets.add(readPacket(sectionX, sectionY, sectionZ, positions, data, offset, count));
+
+        assertEquals(16, builder.writeFirstPacket(16, writer));
+        assertEquals(25, builder.getChangeCount());
+        assertEquals(16, builder.writeFirstPacket(16, writer));
+        // Only the remainder of the first section is written, even though the limit would allow more
+        assertEquals(8, builder.writeFirstPacket(16, writer));
+        assertEquals(1, builder.getSectionCount());
+        assertEquals(1, builder.writeFirstPacket(16, writer));
+
+        assertTrue(builder.isEmpty());
+        assertEquals(0, builder.writeFirstPacket(16, writer));
+
+        assertEquals("0", packets.get(0).changes.get(0).data);
+        assertEquals("16", packets.get(1).changes.get(0).data);
+        assertEquals("32", packets.get(2).changes.get(0).data);
+        assertEquals("other", packets.get(3).changes.get(0).data);
+    }
+
+    @Test
+    public void testChangeAfterWriteFirstPacketIsNotDuplicated() {
+        for(int i = 0; i < 4; i++) {
+            builder.addChange(i, 0, 0, "stone");
+        }
+        builder.writeFirstPacket(2, (sectionX, sectionY, sectionZ, positions, data, offset, count) -> {});
+
+        // Position 3 is still queued, so it should be replaced. Position 0 was sent, so it should be added again
+        builder.addChange(3, 0, 0, "air");
+        builder.addChange(0, 0, 0, "air");
+        assertEquals(3, builder.getChangeCount());
+    }
+
+    @Test
+    public void testClearRemovesAllChanges() {
+        builder.addChange(0, 0, 0, "stone");
+        builder.addChange(100, 0, 0, "stone");
+        builder.clear();
+
+        assertTrue(builder.isEmpty());
+        assertEquals(0, writeAll(Integer.MAX_VALUE).size());
+
+        // Reused sections must not remember the changes from before
+        builder.addChange(0, 0, 0, "air");
+        assertEquals(1, builder.getChangeCount());
+    }
+
+    @Test
+    public void testFullSection() {
+        // Every block in the section, so that the arrays of changes have to grow to the full section
+        for(int i = 0; i < 4096; i++) {
+            builder.addChange(i >> 8, i & 0xF, (i >> 4) & 0xF, Integer.toString(i));
+        }
+        assertEquals(4096, builder.getChangeCount());
+
+        List<WrittenChange> changes = writeAll(Integer.MAX_VALUE).get(0).changes;
+        assertEquals(4096, changes.size());
+        WrittenChange last = changes.get(4095);
+        assertEquals(15, last.x);
+        assertEquals(15, last.y);
+        assertEquals(15, last.z);
+        assertEquals("4095", last.data);
+
+        // The section is reused after clearing, with its arrays back to their initial size
+        builder.clear();
+        for(int i = 0; i < 100; i++) {
+            builder.addChange(i & 0xF, i >> 4, 0, "air");
+        }
+        assertEquals(100, builder.getChangeCount());
+        assertEquals("air", writeAll(Integer.MAX_VALUE).get(0).changes.get(99).data);
+    }
+
+    @Test
+    public void testInvalidPacketLimit() {
+        builder.addChange(0, 0, 0, "stone");
+        assertThrows(IllegalArgumentException.class, () -> builder.writePackets(0, (sectionX, sectionY, sectionZ, positions, data, offset, count) -> {}));
+        assertThrows(IllegalArgumentException.class, () -> builder.writeFirstPacket(0, (sectionX, sectionY, sectionZ, positions, data, offset, count) -> {}));
+    }
+}
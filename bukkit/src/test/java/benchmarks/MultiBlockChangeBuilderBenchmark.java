@@ -0,0 +1,106 @@
+package benchmarks;
+
+import com.comphenix.protocol.wrappers.BlockPosition;
+import com.lauriethefish.betterportals.bukkit.block.MultiBlockChangeBuilder;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares {@link MultiBlockChangeBuilder} with the map based grouping that it replaced.
+ * Both group the changes of a default size portal view into per-section arrays, as is done before sending the packets.
+ * This isn't part of the normal tests, run it with <code>gradlew :bukkit:benchmark</code>.
+ */
+@Tag("benchmark")
+public class MultiBlockChangeBuilderBenchmark {
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] zs;
+    private final String[] data;
+
+    public MultiBlockChangeBuilderBenchmark() {
+        // A view of 27x15x27 blocks, not aligned to section boundaries, with about half of the blocks changed
+        Random random = new Random(0);
+        int count = 27 * 15 * 27 / 2;
+        xs = new int[count];
+        ys = new int[count];
+        zs = new int[count];
+        data = new String[count];
+        for(int i = 0; i < count; i++) {
+            xs[i] = 100 + random.nextInt(27);
+            ys[i] = 60 + random.nextInt(15);
+            zs[i] = -200 + random.nextInt(27);
+            data[i] = i % 2 == 0 ? "stone" : "air";
+        }
+    }
+
+    private int runMapBased() {
+        Map<BlockPosition, Map<Vector, String>> changes = new HashMap<>();
+        for(int i = 0; i < xs.length; i++) {
+            Vector position = new Vector(xs[i] + 0.5, ys[i] + 0.5, zs[i] + 0.5);
+            BlockPosition sectionPosition = new BlockPosition(xs[i] >> 4, ys[i] >> 4, zs[i] >> 4);
+            changes.computeIfAbsent(sectionPosition, k -> new HashMap<>()).put(position, data[i]);
+        }
+
+        int total = 0;
+        for(Map<Vector, String> section : changes.values()) {
+            String[] sectionData = new String[section.size()];
+            short[] positions = new short[section.size()];
+            int i = 0;
+            for(Map.Entry<Vector, String> entry : section.entrySet()) {
+                Vector position = entry.getKey();
+                positions[i] = (short) ((position.getBlockX() & 0xF) << 8 | (position.getBlockZ() & 0xF) << 4 | (position.getBlockY() & 0xF));
+                sectionData[i] = entry.getValue();
+                i++;
+            }
+            total += sectionData.length;
+        }
+        return total;
+    }
+
+    private int runBuilder(MultiBlockChangeBuilder<String> builder) {
+        for(int i = 0; i < xs.length; i++) {
+            builder.addChange(xs[i], ys[i], zs[i], data[i]);
+        }
+        builder.sortByDistance(113.5, 67.5, -186.5);
+
+        int[] total = new int[1];
+        builder.writePackets(Integer.MAX_VALUE, (sectionX, sectionY, sectionZ, positions, sectionData, offset, count) -> total[0] += count);
+        builder.clear();
+        return total[0];
+    }
+
+    @Test
+    public void compareWithMapBasedGrouping() {
+        MultiBlockChangeBuilder<String> builder = new MultiBlockChangeBuilder<>(String[]::new);
+        assertEquals(runMapBased(), runBuilder(builder));
+
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runMapBased();
+            runBuilder(builder);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            runMapBased();
+        }
+        double mapMillis = (System.nanoTime() - start) / 1_000_000d / ITERATIONS;
+
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            runBuilder(builder);
+        }
+        double builderMillis = (System.nanoTime() - start) / 1_000_000d / ITERATIONS;
+
+        System.out.printf("Map based grouping: %.04fms per update. Builder: %.04fms per update%n", mapMillis, builderMillis);
+    }
+}
@@ -1,8 +1,10 @@
 package implementations;
 
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import lombok.Getter;
@@ -36,6 +38,21 @@ public class TestMultiBlockChangeManager implements IMultiBlockChangeManager {
 
     }
 
+    @Override
+    public void addTileEntityUpdate(IntVector position, PacketContainer packet) {
+
+    }
+
+    @Override
+    public void setViewerPosition(Vector position) {
+
+    }
+
+    @Override
+    public void setPortalPlane(Vector center, Vector normal) {
+
+    }
+
     @Override
     public void sendChanges() {
         wereChangesSent = true;
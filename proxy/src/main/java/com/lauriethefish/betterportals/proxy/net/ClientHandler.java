@@ -7,6 +7,7 @@ import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.*;
 import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStreamFactory;
 import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
 import lombok.Getter;
 import org.jetbrains.annotations.NotNull;
@@ -161,6 +162,10 @@ public class ClientHandler implements IClientHandler {
     private void processRequest(Request request) {
         // We don't just send the response directly, since it may take some time to process the request, and we need to be ready for more requests.
         int requestId = request.getId();
+        if(request instanceof RelayRequest) {
+            ((RelayRequest) request).setSourceServer(serverName);
+        }
+
         requestHandler.handleRequest(request, (response) -> {
             response.setId(requestId); // Assign the correct request ID so that the client knows which request this response is for
             try {
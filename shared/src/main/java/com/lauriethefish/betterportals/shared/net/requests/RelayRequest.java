@@ -13,6 +13,10 @@ public class RelayRequest extends Request   {
     private static final long serialVersionUID = 1L;
 
     @Getter @Setter private String destination;
+    /**
+     * Set by the proxy to the name of the server that sent the request, so that the destination can send requests back to it.
+     */
+    @Getter @Setter private String sourceServer;
     /**
      * The inner request is stored as a byte array, since it contains types that the proxy might not be able to deserialize.
      */